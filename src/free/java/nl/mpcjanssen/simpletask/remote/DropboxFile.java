@@ -30,6 +30,7 @@ public class DropboxFile {
     private String remoteFile;
     private File localFile;
     private String originalRev;
+    private File baseFile;
     private DropboxAPI.Entry loadedMetadata;
     private DropboxFileStatus status;
     private Exception error;
@@ -47,6 +48,17 @@ public class DropboxFile {
         this.status = DropboxFileStatus.INITIALIZED;
     }
 
+    /**
+     * @param remoteFile  name of the remote file
+     * @param localFile   name of the local file
+     * @param originalRev original revision number
+     * @param baseFile    copy of the file at the original revision
+     */
+    public DropboxFile(String remoteFile, File localFile, String originalRev, File baseFile) {
+        this(remoteFile, localFile, originalRev);
+        this.baseFile = baseFile;
+    }
+
     /**
      * @return the loadedMetadata
      */
@@ -110,5 +122,13 @@ public class DropboxFile {
         return originalRev;
     }
 
+    /**
+     * @return the copy of the file at the original revision, null if
+     * there is none
+     */
+    public File getBaseFile() {
+        return baseFile;
+    }
+
 
 }
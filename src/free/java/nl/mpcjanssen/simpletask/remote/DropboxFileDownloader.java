@@ -34,6 +34,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 
 public class DropboxFileDownloader {
@@ -72,25 +73,34 @@ public class DropboxFileDownloader {
         status = DropboxFileStatus.STARTED;
         Log.d(TAG, "pullFiles started");
 
-        // load each metadata
-        for (DropboxFile file : files) {
-            loadMetadata(file);
+        // load the metadata of all files at once, each file is downloaded
+        // as soon as its metadata shows a newer rev
+        ArrayList<Runnable> transfers = new ArrayList<Runnable>(files.size());
+        for (final DropboxFile file : files) {
+            transfers.add(new Runnable() {
+                @Override
+                public void run() {
+                    pullFile(file);
+                }
+            });
         }
+        ConcurrentTransfers.run(transfers);
+
+        status = DropboxFileStatus.SUCCESS;
+    }
 
-        // load each file with a newer rev
-        for (DropboxFile file : files) {
-            if (file.getStatus() == DropboxFileStatus.FOUND) {
+    private void pullFile(DropboxFile file) {
+        loadMetadata(file);
+        if (file.getStatus() == DropboxFileStatus.FOUND) {
+            loadFile(file);
+        } else if (file.getStatus() == DropboxFileStatus.NOT_CHANGED) {
+            // Check if we still have a local copy. This could have been removed
+            // When switching todo files
+            File copy = file.getBaseFile() != null ? file.getBaseFile() : file.getLocalFile();
+            if (!copy.exists()) {
                 loadFile(file);
-            } else if (file.getStatus() == DropboxFileStatus.NOT_CHANGED) {
-                // Check if we still have a local copy. This could have been removed
-                // When switching todo files
-                if (!file.getLocalFile().exists()) {
-                    loadFile(file);
-                }
             }
         }
-
-        status = DropboxFileStatus.SUCCESS;
     }
 
     private void loadMetadata(DropboxFile file) {
@@ -25,7 +25,9 @@ package nl.mpcjanssen.simpletask.remote;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 
 import nl.mpcjanssen.simpletask.Simpletask;
@@ -75,18 +77,33 @@ public class DropboxFileUploader {
 		status = DropboxFileStatus.STARTED;
 		Log.d(TAG, "pushFiles started");
 		
-		// load each metadata
-		for (DropboxFile file : files) {
-			loadMetadata(file);
+		// load the metadata of all files at once, nothing is uploaded
+		// until every file is known not to conflict
+		ArrayList<Runnable> checks = new ArrayList<Runnable>(files.size());
+		for (final DropboxFile file : files) {
+			checks.add(new Runnable() {
+				@Override
+				public void run() {
+					loadMetadata(file);
+				}
+			});
 		}
+		ConcurrentTransfers.run(checks);
 
 		// upload each file that has changed
-		for (DropboxFile file : files) {
+		ArrayList<Runnable> uploads = new ArrayList<Runnable>(files.size());
+		for (final DropboxFile file : files) {
 			if (file.getStatus() == DropboxFileStatus.FOUND
 					|| file.getStatus() == DropboxFileStatus.NOT_FOUND) {
-				uploadFile(file);
+				uploads.add(new Runnable() {
+					@Override
+					public void run() {
+						uploadFile(file);
+					}
+				});
 			}
 		}
+		ConcurrentTransfers.run(uploads);
 
 		status = DropboxFileStatus.SUCCESS;
 	}
@@ -120,6 +137,11 @@ public class DropboxFileUploader {
 			file.setLoadedMetadata(metadata);
 
 			if (!overwrite && !metadata.rev.equals(file.getOriginalRev())) {
+				if (mergeRemoteChanges(file)) {
+					Log.d(TAG, "remote changes merged. returning FOUND status.");
+					file.setStatus(DropboxFileStatus.FOUND);
+					return;
+				}
 				Log.d(TAG, "revs don't match! Returning CONFLICT status.");
 				file.setStatus(DropboxFileStatus.CONFLICT);
 				throw new RemoteConflictException("Local file "
@@ -132,6 +154,45 @@ public class DropboxFileUploader {
 		}
 	}
 
+	/**
+	 * Merges the remote changes since the last sync into the local file.
+	 * 
+	 * @return false if there is no copy of the last synced version or if
+	 *         both sides changed the same lines
+	 */
+	private boolean mergeRemoteChanges(DropboxFile file) {
+		File baseFile = file.getBaseFile();
+		if (baseFile == null || !baseFile.exists()) {
+			Log.d(TAG, "No base version of " + file.getRemoteFile() + " to merge with");
+			return false;
+		}
+		File localFile = file.getLocalFile();
+		File remoteFile = new File(localFile.getParentFile(), "." + localFile.getName() + ".remote");
+		try {
+			FileOutputStream outputStream = new FileOutputStream(remoteFile);
+			try {
+				dropboxApi.getFile(file.getRemoteFile(),
+						file.getLoadedMetadata().rev, outputStream, null);
+			} finally {
+				outputStream.close();
+			}
+			TodoMerge merge = TodoMerge.merge(baseFile, localFile, remoteFile, localFile);
+			if (merge.hasConflicts()) {
+				Log.d(TAG, "Lines changed on both sides: " + merge.getConflicts());
+				return false;
+			}
+			Log.d(TAG, "Merged " + file.getRemoteFile() + " at rev = "
+					+ file.getLoadedMetadata().rev);
+			return true;
+		} catch (DropboxException e) {
+			throw new RemoteException("Cannot get file from Dropbox", e);
+		} catch (IOException e) {
+			throw new RemoteException("Problem with IO", e);
+		} finally {
+			remoteFile.delete();
+		}
+	}
+
 	private void uploadFile(DropboxFile file) {
 		Log.d(TAG, "Uploading " + file.getRemoteFile());
 
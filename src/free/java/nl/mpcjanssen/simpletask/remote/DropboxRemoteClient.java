@@ -23,6 +23,7 @@
 package nl.mpcjanssen.simpletask.remote;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 
@@ -53,6 +54,14 @@ public class DropboxRemoteClient implements RemoteClient {
 	private static final File DONE_TXT_TMP_FILE = new File(
 			TodoApplication.getAppContext().getFilesDir(),
 			"tmp/done.txt");
+	// Copies of the files as they were at the last sync, used to merge
+	// remote changes into local changes
+	private static final File TODO_TXT_BASE_FILE = new File(
+			TodoApplication.getAppContext().getFilesDir(),
+			"base/todo.txt");
+	private static final File DONE_TXT_BASE_FILE = new File(
+			TodoApplication.getAppContext().getFilesDir(),
+			"base/done.txt");
 
 	private DropboxAPI<AndroidAuthSession> dropboxApi;
 	private TodoApplication todoApplication;
@@ -136,6 +145,8 @@ public class DropboxRemoteClient implements RemoteClient {
 		clearAuthToken();
 		dropboxApi.getSession().unlink();
 		TODO_TXT_TMP_FILE.delete();
+		TODO_TXT_BASE_FILE.delete();
+		DONE_TXT_BASE_FILE.delete();
 	}
 
 	@Override
@@ -175,9 +186,11 @@ public class DropboxRemoteClient implements RemoteClient {
 
 	@Override
 	public PullTodoResult pullTodo() {
+		// The pulled todo.txt is moved away, the base copy shows it
+		// was pulled before
 		DropboxFile todoFile = new DropboxFile(
 				getTodoFile(), TODO_TXT_TMP_FILE,
-				loadRev(Constants.PREF_TODO_REV));
+				loadRev(Constants.PREF_TODO_REV), TODO_TXT_BASE_FILE);
 		DropboxFile doneFile = new DropboxFile(
 				getDoneFile(), DONE_TXT_TMP_FILE,
 				loadRev(Constants.PREF_DONE_REV));
@@ -193,10 +206,12 @@ public class DropboxRemoteClient implements RemoteClient {
 		File downloadedDoneFile = null;
 		if (todoFile.getStatus() == DropboxFileStatus.SUCCESS) {
 			downloadedTodoFile = todoFile.getLocalFile();
+			storeBase(downloadedTodoFile, TODO_TXT_BASE_FILE);
 			storeRev(Constants.PREF_TODO_REV, todoFile.getLoadedMetadata().rev);
 		}
 		if (doneFile.getStatus() == DropboxFileStatus.SUCCESS) {
 			downloadedDoneFile = doneFile.getLocalFile();
+			storeBase(downloadedDoneFile, DONE_TXT_BASE_FILE);
 			storeRev(Constants.PREF_DONE_REV, doneFile.getLoadedMetadata().rev);
 		} else if (doneFile.getStatus() == DropboxFileStatus.NOT_FOUND) {
             // Couldn't download done file from dropbox
@@ -212,13 +227,13 @@ public class DropboxRemoteClient implements RemoteClient {
 		if (todoFile != null) {
 			dropboxFiles.add(new DropboxFile(
 					getTodoFile(), todoFile,
-					loadRev(Constants.PREF_TODO_REV)));
+					loadRev(Constants.PREF_TODO_REV), TODO_TXT_BASE_FILE));
 		}
 
 		if (doneFile != null) {
 			dropboxFiles.add(new DropboxFile(
 					getDoneFile(), doneFile,
-					loadRev(Constants.PREF_DONE_REV)));
+					loadRev(Constants.PREF_DONE_REV), DONE_TXT_BASE_FILE));
 		}
 
 		DropboxFileUploader uploader = new DropboxFileUploader(dropboxApi,
@@ -226,23 +241,36 @@ public class DropboxRemoteClient implements RemoteClient {
 		uploader.pushFiles();
 
 		if (uploader.getStatus() == DropboxFileStatus.SUCCESS) {
-			if (dropboxFiles.size() > 0) {
-				DropboxFile todoDropboxFile = dropboxFiles.get(0);
-				if (todoDropboxFile.getStatus() == DropboxFileStatus.SUCCESS) {
-					storeRev(Constants.PREF_TODO_REV,
-							todoDropboxFile.getLoadedMetadata().rev);
+			for (DropboxFile dropboxFile : dropboxFiles) {
+				if (dropboxFile.getStatus() != DropboxFileStatus.SUCCESS) {
+					continue;
 				}
-			}
-			if (dropboxFiles.size() > 1) {
-				DropboxFile doneDropboxFile = dropboxFiles.get(1);
-				if (doneDropboxFile.getStatus() == DropboxFileStatus.SUCCESS) {
+				storeBase(dropboxFile.getLocalFile(), dropboxFile.getBaseFile());
+				if (dropboxFile.getBaseFile() == TODO_TXT_BASE_FILE) {
+					storeRev(Constants.PREF_TODO_REV,
+							dropboxFile.getLoadedMetadata().rev);
+				} else {
 					storeRev(Constants.PREF_DONE_REV,
-							doneDropboxFile.getLoadedMetadata().rev);
+							dropboxFile.getLoadedMetadata().rev);
 				}
 			}
 		}
 	}
 
+	/**
+	 * Keep a copy of a synced file to merge later changes against.
+	 */
+	private void storeBase(File syncedFile, File baseFile) {
+		try {
+			Util.createParentDirectory(baseFile);
+			Util.writeFile(new FileInputStream(syncedFile), baseFile);
+		} catch (Exception e) {
+			// Without a base version the next conflict can't be merged
+			Log.w(TAG, "Failed to store base version of " + syncedFile, e);
+			baseFile.delete();
+		}
+	}
+
 	@Override
 	public boolean startLogin() {
 		dropboxApi.getSession().startAuthentication(
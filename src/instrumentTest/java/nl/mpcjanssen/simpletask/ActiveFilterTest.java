@@ -4,9 +4,11 @@ import junit.framework.TestCase;
 
 import org.joda.time.DateTime;
 
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
 
-import nl.mpcjanssen.simpletask.ActiveFilter;
+import nl.mpcjanssen.simpletask.task.Task;
+import nl.mpcjanssen.simpletask.task.TaskIndex;
 
 /**
  * Created with IntelliJ IDEA.
@@ -16,4 +18,96 @@ import nl.mpcjanssen.simpletask.ActiveFilter;
  */
 
 public class ActiveFilterTest extends TestCase {
+
+    private ArrayList<Task> tasks() {
+        String future = new DateTime().plusDays(10).toString("yyyy-MM-dd");
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        tasks.add(new Task(0, "(A) Call mom @phone +family"));
+        tasks.add(new Task(1, "x 2014-01-01 Buy milk @shop @errands"));
+        tasks.add(new Task(2, "(B) Plan trip +family +holiday t:" + future));
+        tasks.add(new Task(3, "Read book"));
+        tasks.add(new Task(4, "(A) Pay bills @home +finance t:2013-01-01"));
+        return tasks;
+    }
+
+    private void assertSameResult(ActiveFilter filter, ArrayList<Task> tasks, TaskIndex index) {
+        ArrayList<Task> expected = filter.apply(tasks);
+        ArrayList<Task> actual = filter.apply(tasks, index);
+        assertEquals(expected, actual);
+    }
+
+    public void testIndexedApply() {
+        ArrayList<Task> tasks = tasks();
+        TaskIndex index = new TaskIndex();
+        index.rebuild(tasks);
+        for (boolean not : new boolean[]{false, true}) {
+            ActiveFilter filter = new ActiveFilter(null);
+            assertSameResult(filter, tasks, index);
+            filter.setContexts(new ArrayList<String>(Arrays.asList("phone", "-")));
+            filter.setContextsNot(not);
+            assertSameResult(filter, tasks, index);
+            filter.setProjects(new ArrayList<String>(Arrays.asList("family")));
+            filter.setProjectsNot(!not);
+            assertSameResult(filter, tasks, index);
+            filter.setPriorities(new ArrayList<String>(Arrays.asList("A")));
+            filter.setPrioritiesNot(not);
+            assertSameResult(filter, tasks, index);
+            filter.setHideCompleted(true);
+            filter.setHideFuture(true);
+            assertSameResult(filter, tasks, index);
+            filter.clear();
+            assertSameResult(filter, tasks, index);
+            filter.setSearch("b");
+            assertSameResult(filter, tasks, index);
+        }
+
+        // Tasks changed after indexing are still filtered correctly
+        ActiveFilter filter = new ActiveFilter(null);
+        filter.setHideCompleted(true);
+        tasks.get(0).markComplete(new DateTime());
+        assertEquals(3, filter.apply(tasks, index).size());
+        assertSameResult(filter, tasks, index);
+    }
+
+    private ActiveFilter filter(String sort, String... contexts) {
+        ActiveFilter filter = new ActiveFilter(null);
+        filter.setSort(new ArrayList<String>(Arrays.asList(sort)));
+        filter.setContexts(new ArrayList<String>(Arrays.asList(contexts)));
+        return filter;
+    }
+
+    public void testCacheKey() {
+        ActiveFilter filter = filter("+!alphabetical", "phone", "home");
+        assertEquals(filter.getCacheKey(), filter("+!alphabetical", "home", "phone").getCacheKey());
+        assertFalse(filter.getCacheKey().equals(filter("-!alphabetical", "phone", "home").getCacheKey()));
+        ActiveFilter other = filter("+!alphabetical", "phone", "home");
+        other.setName("Other title");
+        other.setHideTags(true);
+        assertEquals(filter.getCacheKey(), other.getCacheKey());
+        other.setContextsNot(true);
+        assertFalse(filter.getCacheKey().equals(other.getCacheKey()));
+    }
+
+    public void testNarrowSearch() {
+        ArrayList<Task> tasks = tasks();
+        ActiveFilter previous = filter("+!alphabetical");
+        ActiveFilter filter = filter("+!alphabetical");
+        assertTrue(filter.narrowsSearch(null));
+        String[] typed = {"b", "bi", "bil", "bill @h", "bill @home"};
+        for (String search : typed) {
+            filter.setSearch(search);
+            assertTrue(filter.narrowsSearch(previous.getSearch()));
+            assertEquals(filter.apply(tasks), filter.applySearch(previous.apply(tasks)));
+            previous.setSearch(search);
+        }
+        // Removing or changing text needs a full search
+        filter.setSearch("bill @hom");
+        assertFalse(filter.narrowsSearch("bill @home"));
+        filter.setSearch("book");
+        assertFalse(filter.narrowsSearch("bo x"));
+        assertTrue(filter.narrowsSearch("OK"));
+        filter.setSearch(null);
+        assertFalse(filter.narrowsSearch("book"));
+        assertEquals(filter.getCacheKeyWithoutSearch(), previous.getCacheKeyWithoutSearch());
+    }
 }
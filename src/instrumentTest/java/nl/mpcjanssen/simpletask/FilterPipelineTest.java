@@ -0,0 +1,94 @@
+package nl.mpcjanssen.simpletask;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+public class FilterPipelineTest extends TestCase {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static FilterPipeline.Callback<String> collect(final List<String> results, final CountDownLatch done) {
+        return new FilterPipeline.Callback<String>() {
+            @Override
+            public void onResult(String result) {
+                results.add(result);
+                done.countDown();
+            }
+        };
+    }
+
+    private static FilterPipeline.Job<String> result(final String value) {
+        return new FilterPipeline.Job<String>() {
+            @Override
+            public String run(FilterPipeline.Request request) {
+                return value;
+            }
+        };
+    }
+
+    public void testOnlyLatestIsDelivered() throws InterruptedException {
+        FilterPipeline pipeline = new FilterPipeline(DIRECT);
+        final List<String> results = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        pipeline.submit(new FilterPipeline.Job<String>() {
+            @Override
+            public String run(FilterPipeline.Request request) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    return null;
+                }
+                assertTrue(request.isCancelled());
+                return "first";
+            }
+        }, collect(results, done));
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        // Queued behind the running job and replaced before it starts
+        pipeline.submit(result("second"), collect(results, done));
+        pipeline.submit(result("third"), collect(results, done));
+        assertTrue(pipeline.isBusy());
+        release.countDown();
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        pipeline.shutdown();
+
+        assertEquals(Collections.singletonList("third"), results);
+        assertFalse(pipeline.isBusy());
+        assertEquals(3, pipeline.getSubmittedCount());
+        assertEquals(1, pipeline.getDeliveredCount());
+        assertEquals(2, pipeline.getDroppedCount());
+        assertTrue(pipeline.getLastComputeTime() >= 0);
+    }
+
+    public void testFailedJobIsDropped() throws InterruptedException {
+        FilterPipeline pipeline = new FilterPipeline(DIRECT);
+        List<String> results = new ArrayList<String>();
+        CountDownLatch done = new CountDownLatch(1);
+        pipeline.submit(new FilterPipeline.Job<String>() {
+            @Override
+            public String run(FilterPipeline.Request request) {
+                throw new IllegalStateException("failed");
+            }
+        }, collect(results, done));
+        pipeline.submit(result("ok"), collect(results, done));
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        pipeline.shutdown();
+
+        assertEquals(Collections.singletonList("ok"), results);
+        assertEquals(1, pipeline.getDeliveredCount());
+        assertEquals(1, pipeline.getDroppedCount());
+    }
+}
@@ -0,0 +1,69 @@
+package nl.mpcjanssen.simpletask.remote;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+public class FileRangeTest extends TestCase {
+    private File m_file;
+
+    @Override
+    protected void setUp() throws Exception {
+        m_file = File.createTempFile("todo", ".txt");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        m_file.delete();
+    }
+
+    private void write(String contents, boolean append) throws IOException {
+        FileWriter writer = new FileWriter(m_file, append);
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+    }
+
+    public void testSameSizeWithSameModificationTime() throws IOException {
+        write("(A) Task one\n", false);
+        long modified = m_file.lastModified();
+        FileRange range = FileRange.of(m_file);
+        assertTrue(range.matches(m_file));
+
+        write("(B) Task one\n", false);
+        m_file.setLastModified(modified);
+        assertFalse(range.matches(m_file));
+        assertFalse(range.equals(FileRange.of(m_file)));
+    }
+
+    public void testRewriteWithSameContents() throws IOException {
+        write("Task\n", false);
+        FileRange range = FileRange.of(m_file);
+        m_file.setLastModified(m_file.lastModified() - 60000);
+        write("Task\n", false);
+        assertTrue(range.matches(m_file));
+    }
+
+    public void testMissingFile() throws IOException {
+        m_file.delete();
+        assertNull(FileRange.of(m_file));
+    }
+
+    public void testExtend() throws IOException {
+        write("x 2014-01-01 Task one\n", false);
+        FileRange range = FileRange.of(m_file);
+        write("x 2014-01-02 Task two\n", true);
+        FileRange extended = range.extend(m_file);
+        assertEquals(FileRange.of(m_file), extended);
+        assertEquals(range, FileRange.of(m_file, range.getLength()));
+
+        // An extended range can be extended again
+        write("x 2014-01-03 Task three\n", true);
+        assertEquals(FileRange.of(m_file), extended.extend(m_file));
+        assertEquals(FileRange.of(m_file), FileRange.EMPTY.extend(m_file));
+    }
+}
@@ -0,0 +1,185 @@
+package nl.mpcjanssen.simpletask.remote;
+
+import junit.framework.TestCase;
+
+import nl.mpcjanssen.simpletask.util.Util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class FileSystemRemoteClientTest extends TestCase {
+    private File m_dir;
+    private FileSystemRemoteClient m_client;
+
+    @Override
+    protected void setUp() throws Exception {
+        m_dir = File.createTempFile("remote", "");
+        m_dir.delete();
+        m_client = new FileSystemRemoteClient(new File(m_dir, "remote"), new File(m_dir, "pull"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(m_dir);
+    }
+
+    private void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private File write(String name, String contents, boolean append) throws IOException {
+        File file = new File(m_dir, name);
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file, append);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    public void testAppend() throws IOException {
+        StringBuilder done = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            done.append("x 2014-01-01 Task ").append(i).append("\n");
+        }
+        File local = write("done.txt", done.toString(), false);
+        assertNull(m_client.getRange(SyncFile.DONE));
+        assertNotNull(m_client.append(SyncFile.DONE, local, FileRange.EMPTY));
+        assertEquals(local.length(), m_client.getBytesUploaded());
+
+        write("done.txt", "x 2014-01-02 New\n", true);
+        FileRange remote = m_client.getRange(SyncFile.DONE);
+        assertEquals(remote, FileRange.of(local, remote.getLength()));
+        assertEquals(FileRange.of(local), m_client.append(SyncFile.DONE, local, remote));
+        // Only the new line was sent
+        assertEquals(local.length(), m_client.getBytesUploaded());
+
+        // The remote file changed in the mean time
+        assertNull(m_client.append(SyncFile.DONE, local, remote));
+    }
+
+    public void testDownload() throws IOException {
+        write("remote/done.txt", "a\nb\n", false);
+        File local = new File(m_dir, "done.txt");
+        assertEquals(m_client.getRange(SyncFile.DONE),
+                m_client.download(SyncFile.DONE, local, FileRange.EMPTY));
+
+        write("remote/done.txt", "c\n", true);
+        assertEquals(m_client.getRange(SyncFile.DONE),
+                m_client.download(SyncFile.DONE, local, FileRange.of(local)));
+        assertEquals(6, m_client.getBytesDownloaded());
+
+        write("done.txt", "d\n", false);
+        assertNull(m_client.download(SyncFile.DONE, local, FileRange.of(local)));
+    }
+
+    public void testPushAndPull() throws IOException {
+        File todo = write("todo.txt", "a\n", false);
+        m_client.pushTodo(todo, null, false);
+        // Nothing changed since the push
+        assertNull(m_client.pullTodo().getTodoFile());
+
+        FileSystemRemoteClient other = new FileSystemRemoteClient(new File(m_dir, "remote"), new File(m_dir, "other"));
+        PullTodoResult result = other.pullTodo();
+        assertEquals(FileRange.of(todo), FileRange.of(result.getTodoFile()));
+        assertNull(result.getDoneFile());
+
+        // The pulled file can be moved away
+        assertTrue(result.getTodoFile().delete());
+        assertNull(other.pullTodo().getTodoFile());
+    }
+
+    public void testRevs() throws IOException {
+        File todo = write("todo.txt", "a\nb\n", false);
+        m_client.pushTodo(todo, null, false);
+        String rev = m_client.getRemoteRev(SyncFile.TODO);
+        assertEquals(rev, m_client.getSyncedRev(SyncFile.TODO));
+
+        // Unchanged files are not downloaded again
+        m_client.pullTodo();
+        long downloaded = m_client.getBytesDownloaded();
+        m_client.pullTodo();
+        assertEquals(downloaded, m_client.getBytesDownloaded());
+
+        // Another device changes the file
+        FileSystemRemoteClient other = new FileSystemRemoteClient(new File(m_dir, "remote"), new File(m_dir, "other"));
+        other.pullTodo();
+        File otherTodo = write("other/todo.txt", "a\nb\nc\n", false);
+        other.pushTodo(otherTodo, null, false);
+        assertFalse(rev.equals(m_client.getRemoteRev(SyncFile.TODO)));
+
+        // Changes on both sides are merged
+        write("todo.txt", "x a\nb\n", false);
+        m_client.pushTodo(todo, null, false);
+        assertEquals("x a\nb\nc\n", Util.readStream(new FileInputStream(m_client.getRemoteFile(SyncFile.TODO))));
+
+        // Changes of the same line conflict
+        other.pullTodo();
+        write("other/todo.txt", "x a\nb other\nc\n", false);
+        other.pushTodo(otherTodo, null, false);
+        write("todo.txt", "x a\nb local\nc\n", false);
+        try {
+            m_client.pushTodo(todo, null, false);
+            fail("Conflict expected");
+        } catch (RemoteConflictException e) {
+            // expected
+        }
+        m_client.pushTodo(todo, null, true);
+    }
+
+    public void testInjectedFailures() throws IOException {
+        File todo = write("todo.txt", "a\n", false);
+        m_client.failNext(1);
+        try {
+            m_client.pushTodo(todo, null, false);
+            fail("Failure expected");
+        } catch (RemoteException e) {
+            assertNull(m_client.getRemoteRev(SyncFile.TODO));
+        }
+        m_client.pushTodo(todo, null, false);
+        assertNotNull(m_client.getRemoteRev(SyncFile.TODO));
+    }
+
+    public void testBenchmark() throws IOException {
+        SyncBenchmark benchmark = new SyncBenchmark(new File(m_dir, "benchmark"), 1);
+        benchmark.setFailureRate(0.05);
+        benchmark.run(200);
+        assertTrue(benchmark.finish());
+        assertTrue(benchmark.getTimings().get("merged push").getCount() > 0);
+        assertTrue(benchmark.getTimings().get("conflict").getCount() > 0);
+    }
+
+    public void testTransfersOverlap() throws IOException {
+        File todo = write("todo.txt", "a\n", false);
+        File done = write("done.txt", "x b\n", false);
+        FileSystemRemoteClient other = new FileSystemRemoteClient(new File(m_dir, "remote"), new File(m_dir, "other"));
+        other.pushTodo(todo, done, false);
+
+        // Metadata and download of both files, one after the other this
+        // takes four round trips
+        long latency = 200;
+        m_client.setLatency(latency);
+        long start = System.currentTimeMillis();
+        PullTodoResult result = m_client.pullTodo();
+        long elapsed = System.currentTimeMillis() - start;
+        assertNotNull(result.getTodoFile());
+        assertNotNull(result.getDoneFile());
+        assertTrue("Pull took " + elapsed + " ms", elapsed >= 2 * latency && elapsed < 3 * latency);
+
+        // Unchanged files only need the metadata
+        start = System.currentTimeMillis();
+        m_client.pullTodo();
+        elapsed = System.currentTimeMillis() - start;
+        assertTrue("Pull took " + elapsed + " ms", elapsed < 2 * latency);
+    }
+}
@@ -0,0 +1,299 @@
+package nl.mpcjanssen.simpletask.remote;
+
+import org.joda.time.DateTime;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import nl.mpcjanssen.simpletask.TodoApplication;
+import nl.mpcjanssen.simpletask.task.LocalFileTaskRepository;
+import nl.mpcjanssen.simpletask.task.MemoryPreferences;
+import nl.mpcjanssen.simpletask.task.Task;
+import nl.mpcjanssen.simpletask.task.TaskBag;
+
+/**
+ * Drives push, pull and conflict cycles between two devices sharing a
+ * {@link FileSystemRemoteClient} directory and measures the time of every
+ * sync operation. Every device is a {@link TaskBag} with its own todo.txt
+ * and done.txt, synced with {@link TaskBag#pushToRemote(boolean, boolean)}
+ * and {@link TaskBag#pullFromRemote(boolean)}.
+ *
+ * Every cycle one device edits its tasks and pushes. Regularly the other
+ * device edits first without syncing, so the push has to merge, and
+ * sometimes both edit the same task, so the push conflicts. A device which
+ * gets a conflict pulls and drops its own edits. Failed calls are retried
+ * in the next cycle.
+ *
+ * Run from the command line with the number of cycles, the latency in ms
+ * and the failure rate as arguments.
+ */
+public class SyncBenchmark {
+    private static final String PUSH = "push";
+    private static final String MERGED_PUSH = "merged push";
+    private static final String CONFLICT = "conflict";
+    private static final String PULL = "pull";
+    private static final String FAILURE = "failure";
+    private static final DateTime COMPLETED = new DateTime(2014, 1, 1, 0, 0);
+
+    private final Device[] m_devices;
+    private final Random m_random;
+    private final LinkedHashMap<String, Timing> m_timings = new LinkedHashMap<String, Timing>();
+    private int m_nextTask;
+
+    public static class Timing {
+        private int count;
+        private long totalNanos;
+        private long maxNanos;
+
+        void add(long nanos) {
+            count++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        @Override
+        public String toString() {
+            if (count == 0) {
+                return "0";
+            }
+            return count + " x " + (totalNanos / count / 1000) + " us (max " + (maxNanos / 1000) + " us)";
+        }
+    }
+
+    private class Device {
+        final String name;
+        final FileSystemRemoteClient client;
+        final File todoFile;
+        final File doneFile;
+        final TaskBag bag;
+        boolean dirty;
+
+        Device(File remoteDir, File dir) {
+            name = dir.getName();
+            client = new FileSystemRemoteClient(remoteDir, new File(dir, "pull"));
+            todoFile = new File(dir, "todo.txt");
+            doneFile = new File(dir, "done.txt");
+            MemoryPreferences sharedPreferences = new MemoryPreferences();
+            sharedPreferences.edit().putBoolean("todotxtprependdate", false).commit();
+            TaskBag.Preferences preferences = new TaskBag.Preferences(sharedPreferences);
+            bag = new TaskBag(preferences,
+                    new LocalFileTaskRepository(new TodoApplication(), todoFile, preferences),
+                    new RemoteClientManager(client));
+        }
+
+        void edit() {
+            List<Task> tasks = bag.getTasks();
+            int action = m_random.nextInt(4);
+            if (tasks.isEmpty() || action < 2) {
+                bag.addAsTask("Task " + (m_nextTask++) + " @bench +sync");
+            } else if (action == 2) {
+                Task task = tasks.get(m_random.nextInt(tasks.size()));
+                bag.updateTask(task, task.inFileFormat() + " edited on " + name);
+            } else {
+                Task task = tasks.get(m_random.nextInt(tasks.size()));
+                bag.archive(bag.edit(Collections.singletonList(task), new TaskBag.Edit() {
+                    @Override
+                    public void apply(Task task) {
+                        task.markComplete(COMPLETED);
+                    }
+                }));
+            }
+            dirty = true;
+        }
+
+        /**
+         * @return the name of the timing the push counts for
+         */
+        String push() {
+            boolean merge = changedRemotely(SyncFile.TODO) || changedRemotely(SyncFile.DONE);
+            bag.pushToRemote(true, false);
+            dirty = false;
+            return merge ? MERGED_PUSH : PUSH;
+        }
+
+        boolean changedRemotely(SyncFile file) {
+            String rev = client.getRemoteRev(file);
+            return rev != null && !rev.equals(client.getSyncedRev(file));
+        }
+
+        void pull() {
+            bag.pullFromRemote(true);
+            dirty = false;
+        }
+
+        ArrayList<String> tasks() {
+            ArrayList<String> lines = new ArrayList<String>();
+            for (Task task : bag.getTasks()) {
+                lines.add(task.inFileFormat());
+            }
+            return lines;
+        }
+    }
+
+    public SyncBenchmark(File dir, long seed) {
+        File remoteDir = new File(dir, "remote");
+        m_devices = new Device[] {
+                new Device(remoteDir, new File(dir, "a")),
+                new Device(remoteDir, new File(dir, "b"))
+        };
+        m_random = new Random(seed);
+        for (String name : new String[] { PUSH, MERGED_PUSH, CONFLICT, PULL, FAILURE }) {
+            m_timings.put(name, new Timing());
+        }
+    }
+
+    public void setLatency(long millis) {
+        for (Device device : m_devices) {
+            device.client.setLatency(millis);
+        }
+    }
+
+    public void setFailureRate(double rate) {
+        for (int i = 0; i < m_devices.length; i++) {
+            m_devices[i].client.setFailureRate(rate, m_random.nextLong() + i);
+        }
+    }
+
+    public void run(int cycles) {
+        for (Device device : m_devices) {
+            sync(device);
+        }
+        for (int cycle = 0; cycle < cycles; cycle++) {
+            Device device = m_devices[m_random.nextInt(2)];
+            Device other = m_devices[device == m_devices[0] ? 1 : 0];
+            if (m_random.nextInt(4) == 0) {
+                // Unsynced changes on the other device
+                other.edit();
+            }
+            device.edit();
+            sync(device);
+            if (m_random.nextInt(3) == 0) {
+                sync(other);
+            }
+        }
+    }
+
+    /**
+     * Pushes the local changes if any and pulls otherwise.
+     */
+    private void sync(Device device) {
+        long start = System.nanoTime();
+        String timing;
+        try {
+            if (device.dirty) {
+                try {
+                    timing = device.push();
+                } catch (RemoteConflictException e) {
+                    device.pull();
+                    timing = CONFLICT;
+                }
+            } else {
+                device.pull();
+                timing = PULL;
+            }
+        } catch (RemoteException e) {
+            timing = FAILURE;
+        }
+        m_timings.get(timing).add(System.nanoTime() - start);
+    }
+
+    /**
+     * Syncs both devices without failures.
+     *
+     * @return true if both devices ended up with the remote files
+     */
+    public boolean finish() throws IOException {
+        setFailureRate(0);
+        for (Device device : m_devices) {
+            sync(device);
+        }
+        for (Device device : m_devices) {
+            sync(device);
+        }
+        Device a = m_devices[0];
+        Device b = m_devices[1];
+        ArrayList<String> todo = a.tasks();
+        ArrayList<String> done = readLines(a.doneFile);
+        return todo.equals(b.tasks()) && done.equals(readLines(b.doneFile))
+                && todo.equals(readLines(a.todoFile)) && todo.equals(readLines(b.todoFile))
+                && todo.equals(readLines(a.client.getRemoteFile(SyncFile.TODO)))
+                && done.equals(readLines(a.client.getRemoteFile(SyncFile.DONE)));
+    }
+
+    public Map<String, Timing> getTimings() {
+        return m_timings;
+    }
+
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Timing> entry : m_timings.entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        }
+        long up = 0;
+        long down = 0;
+        for (Device device : m_devices) {
+            up += device.client.getBytesUploaded();
+            down += device.client.getBytesDownloaded();
+        }
+        sb.append("bytes uploaded: ").append(up).append(", downloaded: ").append(down).append("\n");
+        return sb.toString();
+    }
+
+    private static ArrayList<String> readLines(File file) throws IOException {
+        ArrayList<String> lines = new ArrayList<String>();
+        if (!file.exists()) {
+            return lines;
+        }
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    lines.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int cycles = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 0;
+        double failureRate = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+        File dir = File.createTempFile("syncbenchmark", "");
+        dir.delete();
+        SyncBenchmark benchmark = new SyncBenchmark(dir, 42);
+        benchmark.setLatency(latency);
+        benchmark.setFailureRate(failureRate);
+        long start = System.nanoTime();
+        benchmark.run(cycles);
+        boolean consistent = benchmark.finish();
+        System.out.println(cycles + " cycles in " + (System.nanoTime() - start) / 1000000 + " ms");
+        System.out.print(benchmark.report());
+        System.out.println(consistent ? "devices consistent" : "DEVICES DIVERGED");
+        // The background writers of the task bags keep running
+        System.exit(consistent ? 0 : 1);
+    }
+}
@@ -0,0 +1,116 @@
+package nl.mpcjanssen.simpletask.remote;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class SyncSchedulerTest extends TestCase {
+
+    private static class Recorder implements SyncScheduler.Operations, SyncScheduler.Listener {
+        final ArrayList<String> calls = new ArrayList<String>();
+        final ArrayList<Integer> results = new ArrayList<Integer>();
+        CountDownLatch done = new CountDownLatch(1);
+        int failures;
+        RemoteException failure;
+        int running;
+        int maxRunning;
+
+        private void call(String call) {
+            synchronized (this) {
+                calls.add(call);
+                running++;
+                maxRunning = Math.max(maxRunning, running);
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                running--;
+                if (failures > 0) {
+                    failures--;
+                    throw failure;
+                }
+            }
+        }
+
+        @Override
+        public void push(boolean overwrite) {
+            call("push " + overwrite);
+        }
+
+        @Override
+        public void pull() {
+            call("pull");
+        }
+
+        @Override
+        public void onSyncStart(int direction) {
+        }
+
+        @Override
+        public synchronized void onSyncDone(int direction, int result) {
+            results.add(result);
+            done.countDown();
+        }
+    }
+
+    public void testPushesAreCoalesced() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        SyncScheduler scheduler = new SyncScheduler(recorder, recorder, 100, 10, 100, 3);
+        for (int i = 0; i < 10; i++) {
+            scheduler.requestPush(i == 5);
+        }
+        assertEquals(1, scheduler.getQueueDepth());
+        assertEquals(9, scheduler.getCoalescedRequests());
+        assertTrue(recorder.done.await(2, TimeUnit.SECONDS));
+        scheduler.shutdown();
+        assertEquals(1, recorder.calls.size());
+        assertEquals("push true", recorder.calls.get(0));
+        assertEquals(0, scheduler.getQueueDepth());
+        assertTrue(scheduler.getLastSyncLatency() >= 100);
+    }
+
+    public void testPullRunsAfterPendingPush() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        recorder.done = new CountDownLatch(2);
+        SyncScheduler scheduler = new SyncScheduler(recorder, recorder, 10000, 10, 100, 3);
+        scheduler.requestPush(false);
+        scheduler.requestPull();
+        scheduler.requestPull();
+        assertTrue(recorder.done.await(2, TimeUnit.SECONDS));
+        scheduler.shutdown();
+        assertEquals(2, recorder.calls.size());
+        assertEquals("push false", recorder.calls.get(0));
+        assertEquals("pull", recorder.calls.get(1));
+        assertEquals(1, recorder.maxRunning);
+    }
+
+    public void testRetryWithBackoff() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        recorder.failures = 2;
+        recorder.failure = new RemoteException("offline");
+        SyncScheduler scheduler = new SyncScheduler(recorder, recorder, 0, 10, 100, 3);
+        scheduler.requestPush(false);
+        assertTrue(recorder.done.await(2, TimeUnit.SECONDS));
+        scheduler.shutdown();
+        assertEquals(3, recorder.calls.size());
+        assertEquals(Integer.valueOf(SyncScheduler.SUCCESS), recorder.results.get(0));
+        assertEquals(1, recorder.results.size());
+    }
+
+    public void testConflictIsNotRetried() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        recorder.failures = 1;
+        recorder.failure = new RemoteConflictException("conflict");
+        SyncScheduler scheduler = new SyncScheduler(recorder, recorder, 0, 10, 100, 3);
+        scheduler.requestPush(false);
+        assertTrue(recorder.done.await(2, TimeUnit.SECONDS));
+        scheduler.shutdown();
+        assertEquals(1, recorder.calls.size());
+        assertEquals(Integer.valueOf(SyncScheduler.CONFLICT), recorder.results.get(0));
+    }
+}
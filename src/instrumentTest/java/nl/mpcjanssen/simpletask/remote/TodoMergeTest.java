@@ -0,0 +1,48 @@
+package nl.mpcjanssen.simpletask.remote;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class TodoMergeTest extends TestCase {
+    private static final List<String> BASE = Arrays.asList("a", "b", "c", "d");
+
+    private TodoMerge merge(List<String> local, List<String> remote) {
+        return TodoMerge.merge(BASE, local, remote);
+    }
+
+    public void testUnchanged() {
+        TodoMerge merge = merge(BASE, BASE);
+        assertEquals(BASE, merge.getLines());
+        assertFalse(merge.hasConflicts());
+    }
+
+    public void testEditsOnBothSides() {
+        TodoMerge merge = merge(Arrays.asList("a", "x b", "c", "d", "e"),
+                Arrays.asList("A", "b", "c", "f"));
+        assertFalse(merge.hasConflicts());
+        assertEquals(Arrays.asList("A", "x b", "c", "f", "e"), merge.getLines());
+    }
+
+    public void testSameEditOnBothSides() {
+        TodoMerge merge = merge(Arrays.asList("a", "x b", "c", "d", "e"),
+                Arrays.asList("a", "x b", "c", "d", "e"));
+        assertFalse(merge.hasConflicts());
+        assertEquals(Arrays.asList("a", "x b", "c", "d", "e"), merge.getLines());
+    }
+
+    public void testConflict() {
+        TodoMerge merge = merge(Arrays.asList("a", "b local", "c", "d"),
+                Arrays.asList("a", "b remote", "c", "x d"));
+        assertEquals(Arrays.asList("b"), merge.getConflicts());
+        assertEquals(Arrays.asList("a", "b local", "b remote", "c", "x d"), merge.getLines());
+    }
+
+    public void testDuplicates() {
+        TodoMerge merge = TodoMerge.merge(Arrays.asList("a", "a", "b"),
+                Arrays.asList("a", "b"), Arrays.asList("a", "a", "b", "c"));
+        assertFalse(merge.hasConflicts());
+        assertEquals(Arrays.asList("a", "b", "c"), merge.getLines());
+    }
+}
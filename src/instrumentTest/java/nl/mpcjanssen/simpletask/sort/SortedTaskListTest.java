@@ -0,0 +1,106 @@
+package nl.mpcjanssen.simpletask.sort;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import nl.mpcjanssen.simpletask.ActiveFilter;
+import nl.mpcjanssen.simpletask.task.Task;
+
+public class SortedTaskListTest extends TestCase {
+
+    private ArrayList<Task> tasks() {
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        tasks.add(new Task(0, "(A) Call mom @phone +family"));
+        tasks.add(new Task(1, "Buy milk @shop"));
+        tasks.add(new Task(2, "Buy bread @shop"));
+        tasks.add(new Task(3, "(B) Plan trip +family"));
+        tasks.add(new Task(4, "Read book"));
+        tasks.add(new Task(5, "Pay bills @home"));
+        return tasks;
+    }
+
+    private ActiveFilter filter() {
+        ActiveFilter filter = new ActiveFilter(null);
+        filter.setSort(new ArrayList<String>(Arrays.asList("+!completed", "+!by_context", "-!by_prio")));
+        filter.setHideCompleted(true);
+        return filter;
+    }
+
+    private void assertSameAsReset(SortedTaskList list, ActiveFilter filter, List<Task> all, boolean addAtEnd) {
+        SortedTaskList expected = new SortedTaskList(filter, addAtEnd);
+        expected.reset(all, filter.apply(new ArrayList<Task>(all)));
+        assertEquals(expected.getTasks(), list.getTasks());
+    }
+
+    public void testUpdate() {
+        List<Task> none = Collections.emptyList();
+        for (boolean addAtEnd : new boolean[]{true, false}) {
+            ArrayList<Task> all = tasks();
+            ActiveFilter filter = filter();
+            SortedTaskList list = new SortedTaskList(filter, addAtEnd);
+            assertFalse(list.update(none, none, none));
+            list.reset(all, filter.apply(all));
+
+            Task shop = all.get(2);
+            shop.markComplete(new DateTime());
+            assertTrue(list.update(none, none, Arrays.asList(shop)));
+            assertSameAsReset(list, filter, all, addAtEnd);
+            shop.markIncomplete();
+            list.update(none, none, Arrays.asList(shop));
+            assertSameAsReset(list, filter, all, addAtEnd);
+
+            Task phone = all.get(0);
+            phone.addList("shop");
+            list.update(none, none, Arrays.asList(phone));
+            assertSameAsReset(list, filter, all, addAtEnd);
+
+            Task added = new Task(6, "Buy eggs @shop");
+            Task second = new Task(7, "Buy cheese @shop");
+            for (Task t : new Task[]{added, second}) {
+                if (addAtEnd) {
+                    all.add(t);
+                } else {
+                    all.add(0, t);
+                }
+            }
+            list.update(Arrays.asList(added, second), none, none);
+            assertSameAsReset(list, filter, all, addAtEnd);
+
+            Task removed = addAtEnd ? phone : added;
+            all.remove(removed);
+            list.update(none, Arrays.asList(removed), none);
+            assertSameAsReset(list, filter, all, addAtEnd);
+        }
+    }
+
+    public void testReplace() {
+        List<Task> none = Collections.emptyList();
+        for (boolean addAtEnd : new boolean[]{true, false}) {
+            ArrayList<Task> all = tasks();
+            ActiveFilter filter = filter();
+            SortedTaskList list = new SortedTaskList(filter, addAtEnd);
+            assertFalse(list.replace(none, none));
+            list.reset(all, filter.apply(all));
+
+            // Sorts equal to the other @shop task, keeps its place
+            Task milk = all.get(1);
+            Task cheese = new Task(milk.getId(), "Buy cheese @shop");
+            all.set(1, cheese);
+            assertTrue(list.replace(Arrays.asList(milk, null), Arrays.asList(cheese, all.get(2))));
+            assertSameAsReset(list, filter, all, addAtEnd);
+            assertFalse(list.getTasks().contains(milk));
+
+            Task book = all.get(4);
+            Task done = new Task(book.getId(), "x 2014-01-01 Read book");
+            all.set(4, done);
+            list.replace(Arrays.asList(book), Arrays.asList(done));
+            assertSameAsReset(list, filter, all, addAtEnd);
+        }
+    }
+}
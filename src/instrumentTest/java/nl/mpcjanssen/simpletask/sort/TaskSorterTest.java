@@ -0,0 +1,79 @@
+package nl.mpcjanssen.simpletask.sort;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import nl.mpcjanssen.simpletask.task.Task;
+
+public class TaskSorterTest extends TestCase {
+    private static final String[] SORT_TYPES = {"file_order", "by_context", "by_project",
+            "alphabetical", "by_prio", "completed", "by_creation_date", "in_future",
+            "by_due_date", "by_threshold_date"};
+
+    private ArrayList<Task> randomTasks(Random random, int count) {
+        String future = new DateTime().plusDays(5).toString("yyyy-MM-dd");
+        String[] words = {"call", "Call", "buy", "Ärger", "ärger", "zebra", "@Home", "@home",
+                "@work", "@äpfel", "+Garden", "+garden", "+project", "due:2014-01-0",
+                "t:2013-12-2", "t:" + future, "2014-02-30"};
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        for (int id = 0; id < count; id++) {
+            StringBuilder sb = new StringBuilder();
+            if (random.nextInt(4) == 0) {
+                sb.append("x 2014-01-0").append(1 + random.nextInt(9)).append(" ");
+            }
+            if (random.nextInt(2) == 0) {
+                sb.append("(").append((char) ('A' + random.nextInt(4))).append(") ");
+            }
+            if (random.nextInt(2) == 0) {
+                sb.append("2013-1").append(random.nextInt(3)).append("-1").append(random.nextInt(10)).append(" ");
+            }
+            int length = 1 + random.nextInt(5);
+            for (int i = 0; i < length; i++) {
+                String word = words[random.nextInt(words.length)];
+                if (word.endsWith("-0") || word.endsWith("-2")) {
+                    word = word + (1 + random.nextInt(9));
+                }
+                sb.append(word).append(" ");
+            }
+            tasks.add(new Task(id, sb.toString().trim()));
+        }
+        Collections.shuffle(tasks, random);
+        return tasks;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void testSameOrderAsMultiComparator() {
+        Random random = new Random(42);
+        for (int round = 0; round < 500; round++) {
+            ArrayList<Task> tasks = randomTasks(random, 1 + random.nextInt(60));
+            ArrayList<String> sorts = new ArrayList<String>();
+            int criteria = 1 + random.nextInt(4);
+            for (int i = 0; i < criteria; i++) {
+                sorts.add((random.nextBoolean() ? "+" : "-") + "!"
+                        + SORT_TYPES[random.nextInt(SORT_TYPES.length)]);
+            }
+            ArrayList<Task> expected = new ArrayList<Task>(tasks);
+            Collections.sort(expected, MultiComparator.create(sorts));
+            ArrayList<Task> actual = new ArrayList<Task>(tasks);
+            TaskSorter.sort(actual, sorts);
+            assertEquals(sorts.toString(), expected, actual);
+        }
+    }
+
+    public void testOldSortFormat() {
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        tasks.add(new Task(0, "b @work"));
+        tasks.add(new Task(1, "a"));
+        tasks.add(new Task(2, "c @Home"));
+        TaskSorter.sort(tasks, new ArrayList<String>(Arrays.asList("by_context", "unknown")));
+        assertEquals("a", tasks.get(0).inFileFormat());
+        assertEquals("c @Home", tasks.get(1).inFileFormat());
+        assertEquals("b @work", tasks.get(2).inFileFormat());
+    }
+}
@@ -0,0 +1,146 @@
+package nl.mpcjanssen.simpletask.task;
+
+import android.content.SharedPreferences;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Shared preferences kept in memory, to create a {@link TaskBag} without
+ * an Android context.
+ */
+public class MemoryPreferences implements SharedPreferences {
+    private final HashMap<String, Object> m_values = new HashMap<String, Object>();
+
+    @SuppressWarnings("unchecked")
+    private synchronized <T> T get(String key, T defValue) {
+        return m_values.containsKey(key) ? (T) m_values.get(key) : defValue;
+    }
+
+    @Override
+    public synchronized Map<String, ?> getAll() {
+        return new HashMap<String, Object>(m_values);
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        return get(key, defValue);
+    }
+
+    @Override
+    public Set<String> getStringSet(String key, Set<String> defValues) {
+        return get(key, defValues);
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return get(key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        return get(key, defValue);
+    }
+
+    @Override
+    public float getFloat(String key, float defValue) {
+        return get(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return get(key, defValue);
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return m_values.containsKey(key);
+    }
+
+    @Override
+    public Editor edit() {
+        return new Editor() {
+            private final HashMap<String, Object> m_changes = new HashMap<String, Object>();
+            private boolean m_clear;
+
+            @Override
+            public Editor putString(String key, String value) {
+                m_changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putStringSet(String key, Set<String> values) {
+                m_changes.put(key, values);
+                return this;
+            }
+
+            @Override
+            public Editor putInt(String key, int value) {
+                m_changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putLong(String key, long value) {
+                m_changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putFloat(String key, float value) {
+                m_changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putBoolean(String key, boolean value) {
+                m_changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor remove(String key) {
+                m_changes.put(key, null);
+                return this;
+            }
+
+            @Override
+            public Editor clear() {
+                m_clear = true;
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                synchronized (MemoryPreferences.this) {
+                    if (m_clear) {
+                        m_values.clear();
+                    }
+                    for (Map.Entry<String, Object> change : m_changes.entrySet()) {
+                        if (change.getValue() == null) {
+                            m_values.remove(change.getKey());
+                        } else {
+                            m_values.put(change.getKey(), change.getValue());
+                        }
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                commit();
+            }
+        };
+    }
+
+    @Override
+    public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+    }
+
+    @Override
+    public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+    }
+}
@@ -0,0 +1,203 @@
+package nl.mpcjanssen.simpletask.task;
+
+import junit.framework.TestCase;
+
+import org.joda.time.DateTime;
+
+import nl.mpcjanssen.simpletask.TodoApplication;
+import nl.mpcjanssen.simpletask.remote.FileRange;
+import nl.mpcjanssen.simpletask.remote.FileSystemRemoteClient;
+import nl.mpcjanssen.simpletask.remote.PullTodoResult;
+import nl.mpcjanssen.simpletask.remote.RemoteClientManager;
+import nl.mpcjanssen.simpletask.remote.SyncFile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+public class TaskBagTest extends TestCase {
+    private File m_dir;
+    private File m_remoteDir;
+    private File m_todoFile;
+    private TaskBag m_bag;
+    private String m_addDuringPull;
+    private String m_archiveDuringDownload;
+
+    @Override
+    protected void setUp() throws Exception {
+        m_dir = File.createTempFile("taskbag", "");
+        m_dir.delete();
+        m_remoteDir = new File(m_dir, "remote");
+        m_todoFile = new File(m_dir, "local/todo.txt");
+        FileSystemRemoteClient client = new FileSystemRemoteClient(m_remoteDir, new File(m_dir, "pull")) {
+            @Override
+            public PullTodoResult pullTodoOnly() {
+                PullTodoResult result = super.pullTodoOnly();
+                if (m_addDuringPull != null) {
+                    m_bag.addAsTask(m_addDuringPull);
+                }
+                return result;
+            }
+
+            @Override
+            public FileRange download(SyncFile file, File local, FileRange localRange) {
+                if (m_archiveDuringDownload != null) {
+                    archive(m_bag, m_archiveDuringDownload);
+                    m_archiveDuringDownload = null;
+                }
+                return super.download(file, local, localRange);
+            }
+        };
+        m_bag = bag(m_todoFile, client);
+    }
+
+    private TaskBag bag(File todoFile, FileSystemRemoteClient client) {
+        MemoryPreferences sharedPreferences = new MemoryPreferences();
+        sharedPreferences.edit().putBoolean("todotxtprependdate", false).commit();
+        TaskBag.Preferences preferences = new TaskBag.Preferences(sharedPreferences);
+        return new TaskBag(preferences,
+                new LocalFileTaskRepository(new TodoApplication(), todoFile, preferences),
+                new RemoteClientManager(client));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        m_bag.flush();
+        delete(m_dir);
+    }
+
+    private void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void write(File file, String contents) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private void archive(TaskBag bag, String text) {
+        for (Task task : bag.getTasks()) {
+            if (task.inFileFormat().equals(text)) {
+                bag.archive(bag.edit(Collections.singletonList(task), new TaskBag.Edit() {
+                    @Override
+                    public void apply(Task task) {
+                        task.markComplete(new DateTime(2014, 1, 1, 0, 0));
+                    }
+                }));
+                return;
+            }
+        }
+        fail("No task " + text);
+    }
+
+    private List<String> texts() {
+        return LocalFileTaskRepository.lines(m_bag.getTasks());
+    }
+
+    public void testPullKeepsChangesMadeWhilePulling() throws IOException {
+        write(m_todoFile, "Local task\n");
+        m_bag.reload();
+        write(new File(m_remoteDir, "todo.txt"), "Local task\nRemote task\n");
+        m_addDuringPull = "Added during pull";
+
+        m_bag.pullFromRemote(true);
+        assertEquals(3, m_bag.size());
+        assertTrue(texts().contains("Remote task"));
+        assertTrue(texts().contains("Added during pull"));
+        // Tasks new to the bag don't take the id of another task
+        HashSet<Long> ids = new HashSet<Long>();
+        for (Task task : m_bag.getTasks()) {
+            assertTrue(ids.add(task.getId()));
+        }
+        // The merged tasks were written
+        assertFalse(m_bag.isDirty());
+        assertEquals(texts(), LocalFileTaskRepository.loadLines(m_todoFile));
+    }
+
+    public void testPullReplacesUnchangedTasks() throws IOException {
+        write(m_todoFile, "Local task\n");
+        m_bag.reload();
+        write(new File(m_remoteDir, "todo.txt"), "Remote task\n");
+
+        m_bag.pullFromRemote(true);
+        assertEquals(1, m_bag.size());
+        assertEquals("Remote task", m_bag.getTaskAt(0).inFileFormat());
+        assertEquals(texts(), LocalFileTaskRepository.loadLines(m_todoFile));
+    }
+
+    public void testDoneIsSyncedByAppending() throws IOException {
+        FileSystemRemoteClient client = new FileSystemRemoteClient(m_remoteDir, new File(m_dir, "other/pull"));
+        File otherTodoFile = new File(m_dir, "other/todo.txt");
+        TaskBag other = bag(otherTodoFile, client);
+        File done = new File(m_dir, "local/done.txt");
+        File otherDone = new File(m_dir, "other/done.txt");
+        File remoteDone = new File(m_remoteDir, "done.txt");
+        write(m_todoFile, "Task 1\nTask 2\nTask 3\n");
+        m_bag.reload();
+        archive(m_bag, "Task 1");
+        m_bag.pushToRemote(true, false);
+        assertEquals(LocalFileTaskRepository.loadLines(done), LocalFileTaskRepository.loadLines(remoteDone));
+
+        other.reload();
+        other.pullFromRemote(true);
+        assertEquals(LocalFileTaskRepository.loadLines(remoteDone), LocalFileTaskRepository.loadLines(otherDone));
+        assertEquals(2, other.size());
+
+        // Only the newly archived task is uploaded
+        long doneLength = done.length();
+        long uploaded = client.getBytesUploaded();
+        archive(other, "Task 2");
+        other.pushToRemote(true, false);
+        assertEquals(otherTodoFile.length() + otherDone.length() - doneLength,
+                client.getBytesUploaded() - uploaded);
+
+        // A task archived while pulling is kept after the pulled ones
+        m_archiveDuringDownload = "Task 3";
+        m_bag.pullFromRemote(true);
+        List<String> expected = LocalFileTaskRepository.loadLines(remoteDone);
+        expected.add("x 2014-01-01 Task 3");
+        assertEquals(expected, LocalFileTaskRepository.loadLines(done));
+        assertEquals(0, m_bag.size());
+
+        // A rewritten remote file replaces done.txt
+        write(remoteDone, "x 2014-01-02 Rewritten\n");
+        m_bag.pullFromRemote(true);
+        assertEquals(Collections.singletonList("x 2014-01-02 Rewritten"), LocalFileTaskRepository.loadLines(done));
+        other.flush();
+    }
+
+    public void testSearchFindsArchivedTasks() throws IOException {
+        write(m_todoFile, "Call mom @phone\nBuy milk @shop\nCall plumber\n");
+        m_bag.reload();
+        archive(m_bag, "Call plumber");
+        m_bag.addAsTask("Call dad @phone");
+
+        ArrayList<Task> found = m_bag.search("call");
+        assertEquals(3, found.size());
+        assertSame(m_bag.getTaskAt(0), found.get(0));
+        assertEquals("Call dad @phone", found.get(1).inFileFormat());
+        assertEquals("x 2014-01-01 Call plumber", found.get(2).inFileFormat());
+        // Archived tasks never get the id of a task in the bag
+        assertTrue(found.get(2).getId() < 0);
+
+        found = m_bag.search("PHONE mom");
+        assertEquals(1, found.size());
+        assertSame(m_bag.getTaskAt(0), found.get(0));
+        assertTrue(m_bag.search("plumber tomorrow").isEmpty());
+    }
+}
@@ -0,0 +1,60 @@
+package nl.mpcjanssen.simpletask.task;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class TaskIndexTest extends TestCase {
+
+    private ArrayList<Task> tasks() {
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        tasks.add(new Task(0, "(A) Call mom @phone +family"));
+        tasks.add(new Task(1, "Buy milk @shop @errands"));
+        tasks.add(new Task(2, "Plan trip +family +holiday"));
+        return tasks;
+    }
+
+    public void testBuild() {
+        TaskIndex index = new TaskIndex();
+        index.rebuild(tasks());
+        assertEquals(Arrays.asList("errands", "phone", "shop"), index.getContexts());
+        assertEquals(Arrays.asList("family", "holiday"), index.getProjects());
+        assertEquals(Arrays.asList(Priority.NONE, Priority.A), index.getPriorities());
+        assertEquals(2, index.getProjectCount("family"));
+        assertEquals(1, index.getContextCount("-"));
+        assertEquals(2, index.getContextIds(Arrays.asList("phone", "-")).cardinality());
+    }
+
+    public void testSyncFollowsChanges() {
+        ArrayList<Task> tasks = tasks();
+        TaskIndex index = new TaskIndex();
+        index.rebuild(tasks);
+        tasks.get(0).removeTag("@phone");
+        tasks.get(0).setPriority(Priority.NONE);
+        tasks.remove(1);
+        tasks.add(new Task(3, "New @home"));
+        assertEquals(-1, index.getId(tasks.get(0)));
+        index.sync(tasks);
+        assertEquals(Arrays.asList("home"), index.getContexts());
+        assertEquals(Arrays.asList(Priority.NONE), index.getPriorities());
+        assertEquals(3, index.size());
+        assertEquals(tasks.get(2), index.getTask(index.getId(tasks.get(2))));
+    }
+
+    public void testQuery() {
+        ArrayList<Task> tasks = tasks();
+        TaskIndex index = new TaskIndex();
+        index.rebuild(tasks);
+        tasks.add(new Task(3, "Not indexed +family"));
+        ArrayList<Priority> noPriorities = new ArrayList<Priority>();
+        TaskIndex.Matches matches = index.query(tasks, noPriorities, false,
+                Arrays.asList("shop"), true, Arrays.asList("family"), false, false, false);
+        assertTrue(matches.isMatched(0));
+        assertFalse(matches.isMatched(1));
+        assertTrue(matches.isMatched(2));
+        assertFalse(matches.isMatched(3));
+        assertTrue(matches.isUnindexed(3));
+        assertFalse(matches.isUnindexed(0));
+    }
+}
@@ -0,0 +1,81 @@
+package nl.mpcjanssen.simpletask.task;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+public class TaskLexerTest extends TestCase {
+
+    private static final String[] LINES = {
+            "",
+            " ",
+            "x",
+            "x ",
+            "x  two spaces",
+            "X 2013-01-01 2012-12-01 Done",
+            "x 2013-01-01 (A) 2012-12-01 Done with prio @home +proj",
+            "(B) Call 0612345678 about due:2014-01-01 t:2013-12-24",
+            "2013-01-01 (A) not a priority",
+            "(a) lower case is no priority",
+            "Mail john.doe@example.com\tor see https://example.com/page?a=1. rec:2w h:1",
+            "@@errands +proj. @ + ends with space ",
+            "note:something 10:30 overdue:2014-01-01"
+    };
+
+    private String concat(List<TaskToken> tokens) {
+        StringBuilder sb = new StringBuilder();
+        for (TaskToken token : tokens) {
+            sb.append(token.getText());
+        }
+        return sb.toString();
+    }
+
+    public void testRoundTrip() {
+        for (String line : LINES) {
+            assertEquals(line, concat(TaskLexer.tokenize(line)));
+            Task t = new Task(0, line);
+            assertEquals(t.inFileFormat(), concat(t.getTokens()));
+        }
+    }
+
+    public void testHeader() {
+        List<TaskToken> tokens = TaskLexer.tokenize("x 2013-01-01 (A) 2012-12-01 Done");
+        assertEquals(TaskToken.Type.COMPLETED, tokens.get(0).getType());
+        assertEquals(TaskToken.Type.COMPLETION_DATE, tokens.get(2).getType());
+        assertEquals(TaskToken.Type.PRIORITY, tokens.get(4).getType());
+        assertEquals("A", tokens.get(4).getValue());
+        assertEquals(TaskToken.Type.CREATION_DATE, tokens.get(6).getType());
+        assertEquals(TaskToken.Type.WORD, tokens.get(8).getType());
+
+        Task t = new Task(0, "2013-01-01 (A) not a priority");
+        assertEquals(Priority.NONE, t.getPriority());
+        assertEquals("2013-01-01", t.getPrependedDate());
+        t = new Task(0, "x test");
+        assertTrue(t.isCompleted());
+        assertEquals("", t.getCompletionDate());
+        assertEquals("test", t.getTextWithoutCompletionInfo());
+    }
+
+    public void testWords() {
+        Task t = new Task(0, "Mail john.doe@example.com\tor see https://example.com/page?a=1. @@errands +proj. call 0612345678 now");
+        assertEquals("john.doe@example.com", t.getMailAddresses().get(0));
+        assertEquals("https://example.com/page?a=1", t.getLinks().get(0).toString());
+        assertEquals("0612345678", t.getPhoneNumbers().get(0));
+        assertEquals("@errands", t.getLists().get(0));
+        assertEquals("proj", t.getTags().get(0));
+
+        t = new Task(0, "note:something overdue:2014-01-01 h:10");
+        assertEquals(null, t.getDueDate());
+        assertFalse(t.isHidden());
+        assertEquals(TaskToken.Type.KEY_VALUE, t.getTokens().get(0).getType());
+    }
+
+    public void testDatelessScreenFormat() {
+        Task t = new Task(0, "(B) 2013-01-01 Test due:2014-01-01 t:2013-12-24 @home");
+        assertEquals("(B) Test @home", t.datelessScreenFormat());
+        t.setDueDate("");
+        assertEquals("(B) 2013-01-01 Test t:2013-12-24 @home", t.inFileFormat());
+        t.setThresholdDate("2013-12-25");
+        assertEquals("(B) 2013-01-01 Test t:2013-12-25 @home", t.inFileFormat());
+    }
+}
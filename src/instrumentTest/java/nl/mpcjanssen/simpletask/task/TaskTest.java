@@ -156,4 +156,38 @@ public class TaskTest extends TestCase {
         Task t1 = new Task(0, "x 2013-11-31 Test");
         assertEquals("2013-11-31",t1.getCompletionDate());
     }
+
+    public void testParsedFieldsFollowUpdates() {
+        Task t = new Task(0, "(B) 2013-01-01 Test @work +proj");
+        assertEquals(Priority.B, t.getPriority());
+        assertEquals("2013-01-01", t.getPrependedDate());
+        assertEquals("work", t.getLists().get(0));
+        t.setPriority(Priority.A);
+        t.addList("home");
+        t.addTag("alpha");
+        t.setDueDate("2014-02-02");
+        t.setThresholdDate("2014-01-01");
+        assertEquals(Priority.A, t.getPriority());
+        assertEquals(2, t.getLists().size());
+        assertEquals("home", t.getLists().get(0));
+        assertEquals("alpha", t.getTags().get(0));
+        assertEquals("2014-02-02", t.getDueDate().toString("yyyy-MM-dd"));
+        assertEquals("2014-01-01", t.getThresholdDateString(""));
+        t.markComplete(new DateTime());
+        assertTrue(t.isCompleted());
+        assertEquals(Priority.A, t.getPriority());
+        t.update("Other h:1 rec:2w");
+        assertFalse(t.isCompleted());
+        assertTrue(t.isHidden());
+        assertEquals("2w", t.getRecurrencePattern());
+        assertEquals(0, t.getLists().size());
+        assertEquals(null, t.getDueDate());
+    }
+
+    public void testFoldedTextFollowsChanges() {
+        Task task = new Task(0, "Buy milk");
+        assertEquals("BUY MILK", task.getFoldedText());
+        task.update("Buy bread");
+        assertEquals("BUY BREAD", task.getFoldedText());
+    }
 }
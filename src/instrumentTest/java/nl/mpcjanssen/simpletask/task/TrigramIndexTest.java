@@ -0,0 +1,85 @@
+package nl.mpcjanssen.simpletask.task;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class TrigramIndexTest extends TestCase {
+    private File m_dir;
+    private File m_done;
+    private File m_index;
+
+    @Override
+    protected void setUp() throws Exception {
+        m_dir = File.createTempFile("trigrams", "");
+        m_dir.delete();
+        m_dir.mkdirs();
+        m_done = new File(m_dir, "done.txt");
+        m_index = new File(m_dir, ".done.txt.idx");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        m_done.delete();
+        m_index.delete();
+        m_dir.delete();
+    }
+
+    private void write(String contents, boolean append) throws IOException {
+        FileOutputStream os = new FileOutputStream(m_done, append);
+        try {
+            os.write(contents.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+    }
+
+    public void testTodoLines() {
+        TrigramIndex index = new TrigramIndex(m_done, m_index);
+        index.updateTodo(Arrays.asList("(A) Call mom @phone", "Buy milk @shop", "Pay bills +finance"));
+        assertEquals(Collections.singletonList("Buy milk @shop"), index.searchTodo("MILK"));
+        assertEquals(Collections.singletonList("(A) Call mom @phone"), index.searchTodo("mom pho"));
+        // Too short for the index
+        assertEquals(2, index.searchTodo("m").size());
+        assertTrue(index.searchTodo("mom shop").isEmpty());
+
+        index.updateTodo(Arrays.asList("Buy bread @shop", "Pay bills +finance"));
+        assertTrue(index.searchTodo("milk").isEmpty());
+        assertEquals(Collections.singletonList("Buy bread @shop"), index.searchTodo("@sho"));
+        assertEquals(2, index.getTodoLineCount());
+    }
+
+    public void testDoneIsSavedAndExtended() throws IOException {
+        write("x 2013-01-01 Renew passport\nx 2013-02-01 Buy milk\r\n", false);
+        TrigramIndex index = new TrigramIndex(m_done, m_index);
+        assertEquals(Collections.singletonList("x 2013-01-01 Renew passport"), index.searchDone("passport"));
+        assertEquals(2, index.getDoneLineCount());
+        assertTrue(m_index.exists());
+
+        // A new instance reads the saved index and only indexes new lines
+        write("x 2014-03-01 Buy more milk\nx 2014-04-01 No line break", true);
+        index = new TrigramIndex(m_done, m_index);
+        assertEquals(Arrays.asList("x 2013-02-01 Buy milk", "x 2014-03-01 Buy more milk"),
+                index.searchDone("MILK"));
+        assertEquals(3, index.getDoneLineCount());
+        assertEquals(Collections.singletonList("x 2014-04-01 No line break"), index.searchDone("break"));
+        assertEquals(4, index.searchDone("x").size());
+    }
+
+    public void testReplacedDoneIsIndexedAgain() throws IOException {
+        write("x 2013-01-01 Renew passport\n", false);
+        TrigramIndex index = new TrigramIndex(m_done, m_index);
+        assertEquals(1, index.searchDone("passport").size());
+
+        write("x 2013-01-01 Renew licence\nx 2013-01-02 Wash car\n", false);
+        assertTrue(index.searchDone("passport").isEmpty());
+        assertEquals(Collections.singletonList("x 2013-01-02 Wash car"), index.searchDone("car"));
+
+        m_done.delete();
+        assertTrue(index.searchDone("car").isEmpty());
+    }
+}
@@ -0,0 +1,47 @@
+package nl.mpcjanssen.simpletask.util;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DebouncerTest extends TestCase {
+
+    private static Runnable counter(final AtomicInteger count) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                count.incrementAndGet();
+            }
+        };
+    }
+
+    public void testBurstRunsOnce() throws InterruptedException {
+        Debouncer debouncer = new Debouncer(100);
+        AtomicInteger count = new AtomicInteger();
+        for (int i = 0; i < 20; i++) {
+            debouncer.trigger("todo.txt", counter(count));
+            Thread.sleep(10);
+        }
+        assertTrue(debouncer.isPending("todo.txt"));
+        assertEquals(0, count.get());
+        Thread.sleep(300);
+        debouncer.shutdown();
+        assertEquals(1, count.get());
+        assertEquals(20, debouncer.getEventCount());
+        assertEquals(1, debouncer.getRunCount());
+        assertFalse(debouncer.isPending("todo.txt"));
+    }
+
+    public void testKeysAreIndependent() throws InterruptedException {
+        Debouncer debouncer = new Debouncer(50);
+        AtomicInteger todo = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+        debouncer.trigger("todo.txt", counter(todo));
+        debouncer.trigger("done.txt", counter(done));
+        debouncer.trigger("todo.txt", counter(todo));
+        Thread.sleep(250);
+        debouncer.shutdown();
+        assertEquals(1, todo.get());
+        assertEquals(1, done.get());
+    }
+}
@@ -0,0 +1,22 @@
+package nl.mpcjanssen.simpletask.util;
+
+import junit.framework.TestCase;
+
+public class FrameTraceTest extends TestCase {
+
+    public void testSummary() {
+        FrameTrace trace = new FrameTrace("test");
+        assertEquals("no frames", trace.getSummary());
+        long time = 0;
+        trace.frame(time);
+        for (int i = 0; i < 1000; i++) {
+            // Every tenth frame misses a vsync
+            time += (i % 10 == 9 ? 33 : 16) * 1000000L;
+            trace.frame(time);
+        }
+        String summary = trace.getSummary();
+        assertTrue(summary, summary.startsWith("1000 frames"));
+        assertTrue(summary, summary.contains("max 33.0 ms"));
+        assertTrue(summary, summary.endsWith("100 over 17 ms"));
+    }
+}
@@ -0,0 +1,101 @@
+package nl.mpcjanssen.simpletask.util;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import nl.mpcjanssen.simpletask.task.Task;
+import nl.mpcjanssen.simpletask.task.TaskPersistException;
+
+public class TaskIoTest extends TestCase {
+    private final static String TAG = TaskIoTest.class.getSimpleName();
+
+    private File writeFile(String contents) throws IOException {
+        File file = File.createTempFile("todo", ".txt");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    public void testLineBreaks() throws IOException {
+        TaskIo.LoadedTasks loaded = TaskIo.loadTasksFromFile(writeFile("a\n\nb\rc\r\n d \n"));
+        assertTrue(loaded.hasWindowsLineBreaks());
+        ArrayList<Task> tasks = loaded.getTasks();
+        assertEquals(4, tasks.size());
+        assertEquals("a", tasks.get(0).inFileFormat());
+        assertEquals(0, tasks.get(0).getId());
+        assertEquals(2, tasks.get(1).getId());
+        assertEquals(3, tasks.get(2).getId());
+        assertEquals("d", tasks.get(3).inFileFormat());
+        assertEquals(4, tasks.get(3).getId());
+
+        loaded = TaskIo.loadTasksFromFile(writeFile("a\nb"));
+        assertFalse(loaded.hasWindowsLineBreaks());
+        tasks = loaded.getTasks();
+        assertEquals(2, tasks.size());
+        assertEquals("b", tasks.get(1).inFileFormat());
+
+        assertEquals(0, TaskIo.loadTasksFromFile(writeFile("")).getTasks().size());
+    }
+
+    public void testUtf8() throws IOException {
+        ArrayList<Task> tasks = TaskIo.loadTasksFromFile(writeFile("Café @théâtre\n日本語 +テスト\n")).getTasks();
+        assertEquals("Café @théâtre", tasks.get(0).inFileFormat());
+        assertEquals("日本語 +テスト", tasks.get(1).inFileFormat());
+    }
+
+    public void testAtomicWrite() throws IOException {
+        File file = writeFile("old\n");
+        ArrayList<Task> tasks = new ArrayList<Task>();
+        tasks.add(new Task(0, "new"));
+        TaskIo.writeToFile(tasks, file, false);
+        assertEquals("new", TaskIo.loadTasksFromFile(file).getTasks().get(0).inFileFormat());
+        assertFalse(new File(file.getParentFile(), "." + file.getName() + ".tmp").exists());
+
+        // A directory can't be replaced by the temporary file
+        File dir = new File(file.getParentFile(), file.getName() + ".dir");
+        assertTrue(dir.mkdir());
+        try {
+            TaskIo.writeToFile(tasks, dir, false);
+            fail("Expected TaskPersistException");
+        } catch (TaskPersistException e) {
+            // expected
+        } finally {
+            dir.delete();
+        }
+        assertFalse(new File(dir.getParentFile(), "." + dir.getName() + ".tmp").exists());
+    }
+
+    public void testLoadThroughput() throws IOException {
+        for (int lines : new int[]{10000, 100000}) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < lines; i++) {
+                sb.append("(B) 2014-01-01 Task number ").append(i)
+                        .append(" @context").append(i % 10)
+                        .append(" +project").append(i % 100)
+                        .append(" due:2014-02-").append(10 + i % 18)
+                        .append(i % 2 == 0 ? "\r\n" : "\n");
+            }
+            File file = writeFile(sb.toString());
+            long start = System.nanoTime();
+            TaskIo.LoadedTasks loaded = TaskIo.loadTasksFromFile(file);
+            long elapsed = System.nanoTime() - start;
+            ArrayList<Task> tasks = loaded.getTasks();
+            assertEquals(lines, tasks.size());
+            assertEquals(lines - 1, tasks.get(lines - 1).getId());
+            assertTrue(loaded.hasWindowsLineBreaks());
+            Log.i(TAG, "Loaded " + lines + " lines in " + elapsed / 1000000 + " ms ("
+                    + (lines * 1000000000L / Math.max(1, elapsed)) + " lines/s)");
+        }
+    }
+}
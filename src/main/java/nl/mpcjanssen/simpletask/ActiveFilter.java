@@ -10,6 +10,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 
 import nl.mpcjanssen.simpletask.task.ByContextFilter;
 import nl.mpcjanssen.simpletask.task.ByPriorityFilter;
@@ -17,7 +18,10 @@ import nl.mpcjanssen.simpletask.task.ByProjectFilter;
 import nl.mpcjanssen.simpletask.task.ByTextFilter;
 import nl.mpcjanssen.simpletask.task.Priority;
 import nl.mpcjanssen.simpletask.task.Task;
+import nl.mpcjanssen.simpletask.task.TaskBag;
 import nl.mpcjanssen.simpletask.task.TaskFilter;
+import nl.mpcjanssen.simpletask.task.TaskIndex;
+import nl.mpcjanssen.simpletask.task.TaskSnapshot;
 import nl.mpcjanssen.simpletask.util.Strings;
 import nl.mpcjanssen.simpletask.util.Util;
 
@@ -82,6 +86,29 @@ public class ActiveFilter {
     }
 
 
+    /**
+     * @return a filter with the same settings which can be used on another
+     * thread while this one changes
+     */
+    public ActiveFilter copy() {
+        ActiveFilter copy = new ActiveFilter(mResources);
+        copy.m_prios = new ArrayList<Priority>(m_prios);
+        copy.m_contexts = new ArrayList<String>(m_contexts);
+        copy.m_projects = new ArrayList<String>(m_projects);
+        copy.m_sorts = new ArrayList<String>(getSort());
+        copy.m_projectsNot = m_projectsNot;
+        copy.m_search = m_search;
+        copy.m_priosNot = m_priosNot;
+        copy.m_contextsNot = m_contextsNot;
+        copy.m_hideCompleted = m_hideCompleted;
+        copy.m_hideFuture = m_hideFuture;
+        copy.m_hideLists = m_hideLists;
+        copy.m_hideTags = m_hideTags;
+        copy.mPrefName = mPrefName;
+        copy.mName = mName;
+        return copy;
+    }
+
     public void initFromBundle(Bundle bundle) {
         m_prios = Priority.toPriority(bundle.getStringArrayList(INTENT_PRIORITIES_FILTER));
         m_contexts = bundle.getStringArrayList(INTENT_CONTEXTS_FILTER);
@@ -250,6 +277,34 @@ public class ActiveFilter {
         editor.commit();
     }
 
+    /**
+     * @return the settings of saveInPrefs which decide which tasks match
+     * and in what order, equal for filters with the same result
+     */
+    public String getCacheKey() {
+        return getCacheKeyWithoutSearch() + (Strings.isEmptyOrNull(m_search) ? "" : m_search);
+    }
+
+    /**
+     * @return the cache key of this filter with any search left out,
+     * filters with the same key only differ in the searched text
+     */
+    String getCacheKeyWithoutSearch() {
+        StringBuilder key = new StringBuilder();
+        key.append(Util.join(getSort(), "\n")).append('\u0000');
+        key.append(sorted(m_contexts)).append('\u0000').append(m_contextsNot).append('\u0000');
+        key.append(sorted(Priority.inCode(m_prios))).append('\u0000').append(m_priosNot).append('\u0000');
+        key.append(sorted(m_projects)).append('\u0000').append(m_projectsNot).append('\u0000');
+        key.append(m_hideCompleted).append('\u0000').append(m_hideFuture).append('\u0000');
+        return key.toString();
+    }
+
+    private static String sorted(ArrayList<String> items) {
+        ArrayList<String> copy = new ArrayList<String>(items);
+        Collections.sort(copy);
+        return Util.join(copy, "\n");
+    }
+
     public void saveInIntent(Intent target) {
         target.putExtra(INTENT_CONTEXTS_FILTER, Util.join(m_contexts, "\n"));
         target.putExtra(INTENT_CONTEXTS_FILTER_NOT, m_contextsNot);
@@ -280,6 +335,39 @@ public class ActiveFilter {
         this.m_search = search;
     }
 
+    String getSearch() {
+        return m_search;
+    }
+
+    /**
+     * @return true if the tasks matching this filter are a subset of the
+     * tasks matching the same filter searching for previousSearch
+     */
+    boolean narrowsSearch(String previousSearch) {
+        if (Strings.isEmptyOrNull(m_search)) {
+            return Strings.isEmptyOrNull(previousSearch);
+        }
+        return new ByTextFilter(m_search, false).narrows(new ByTextFilter(previousSearch, false));
+    }
+
+    /**
+     * Applies only the search of this filter, for tasks already matching
+     * the rest of it. The order of tasks is kept.
+     */
+    ArrayList<Task> applySearch(List<Task> tasks) {
+        if (Strings.isEmptyOrNull(m_search)) {
+            return new ArrayList<Task>(tasks);
+        }
+        ByTextFilter search = new ByTextFilter(m_search, false);
+        ArrayList<Task> matched = new ArrayList<Task>();
+        for (Task t : tasks) {
+            if (search.apply(t)) {
+                matched.add(t);
+            }
+        }
+        return matched;
+    }
+
     public ArrayList<String> getContexts() {
         return m_contexts;
     }
@@ -316,19 +404,80 @@ public class ActiveFilter {
         this.m_projects = projects;
     }
 
-    public ArrayList<Task> apply(ArrayList<Task> tasks) {
+    public ArrayList<Task> apply(TaskBag taskBag) {
+        return apply(taskBag.getSnapshot(), taskBag);
+    }
+
+    /**
+     * Filters a snapshot of the bag, the bag's index is used to speed up
+     * the filtering.
+     */
+    public ArrayList<Task> apply(TaskSnapshot snapshot, TaskBag taskBag) {
+        return apply(snapshot.getTasks(), taskBag.getIndex());
+    }
+
+    public ArrayList<Task> apply(List<Task> tasks) {
+        return apply(tasks, null);
+    }
+
+    ArrayList<Task> apply(List<Task> tasks, TaskIndex index) {
+        if (index != null) {
+            return query(tasks, index);
+        }
         AndFilter filter = new AndFilter();
         ArrayList<Task> matched = new ArrayList<Task>();
         for (Task t : tasks) {
-            if (t.isCompleted() && this.getHideCompleted()) {
-                continue;
-            }
-            if (t.inFuture() && this.getHideFuture()) {
-                continue;
+            if (matches(t, filter)) {
+                matched.add(t);
             }
-            if (filter.apply(t)) {
+        }
+        return matched;
+    }
+
+    public boolean matches(Task t) {
+        return matches(t, new AndFilter());
+    }
+
+    private boolean matches(Task t, AndFilter filter) {
+        if (t.isCompleted() && this.getHideCompleted()) {
+            return false;
+        }
+        if (t.inFuture() && this.getHideFuture()) {
+            return false;
+        }
+        return filter.apply(t);
+    }
+
+    /**
+     * Answers the filter with set operations on the index. Priorities,
+     * contexts, projects and the hide flags each narrow down the set of
+     * matching task ids, only the text search is evaluated per task.
+     * Tasks that are not (or no longer) indexed are checked one by one.
+     */
+    private ArrayList<Task> query(List<Task> tasks, TaskIndex index) {
+        TaskIndex.Matches matches = index.query(tasks, m_prios, m_priosNot,
+                m_contexts, m_contextsNot, m_projects, m_projectsNot,
+                getHideCompleted(), getHideFuture());
+
+        TaskFilter residual = null;
+        if (!Strings.isEmptyOrNull(m_search)) {
+            residual = new ByTextFilter(m_search, false);
+        }
+        AndFilter unindexed = null;
+        ArrayList<Task> matched = new ArrayList<Task>();
+        int position = 0;
+        for (Task t : tasks) {
+            if (matches.isUnindexed(position)) {
+                if (unindexed == null) {
+                    unindexed = new AndFilter();
+                }
+                if (matches(t, unindexed)) {
+                    matched.add(t);
+                }
+            } else if (matches.isMatched(position) && (residual == null || residual.apply(t))) {
                 matched.add(t);
             }
+            position++;
         }
         return matched;
     }
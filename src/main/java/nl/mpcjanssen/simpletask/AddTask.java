@@ -198,6 +198,12 @@ public class AddTask extends ThemedActivity {
         super.onBackPressed();
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        taskBag.flushInBackground();
+    }
+
     private void addBackgroundTask(String taskText) {
         for (String task : taskText.split("\r\n|\r|\n")) {
             taskBag.addAsTask(task);
@@ -14,7 +14,6 @@ import android.view.View;
 import android.widget.RemoteViews;
 import android.widget.RemoteViewsService;
 
-import nl.mpcjanssen.simpletask.sort.*;
 import nl.mpcjanssen.simpletask.task.*;
 import nl.mpcjanssen.simpletask.util.Strings;
 import nl.mpcjanssen.simpletask.util.Util;
@@ -62,12 +61,13 @@ class AppWidgetRemoteViewsFactory implements RemoteViewsService.RemoteViewsFacto
     void setFilteredTasks() {
 	Log.v(TAG, "setFilteredTasks called");
 	visibleTasks.clear();
-        for (Task t : mFilter.apply(application.getTaskBag().getTasks())) {
+        // Filtered and sorted once for all widgets with the same filter
+        FilterCache.Result result = application.getFilterCache().get(mFilter, application.getTaskBag());
+        for (Task t : result.getTasks()) {
             if (!t.isHidden()) {
                 visibleTasks.add(t);
             }
         }
-	Collections.sort(visibleTasks,MultiComparator.create(mFilter.getSort()));
     }
 
     @Override
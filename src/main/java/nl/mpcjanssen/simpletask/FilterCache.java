@@ -0,0 +1,169 @@
+/**
+ * This file is part of Simpletask.
+ *
+ * @license http://www.gnu.org/licenses/gpl.html
+ */
+package nl.mpcjanssen.simpletask;
+
+import org.joda.time.LocalDate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.mpcjanssen.simpletask.sort.TaskSorter;
+import nl.mpcjanssen.simpletask.task.Task;
+import nl.mpcjanssen.simpletask.task.TaskBag;
+import nl.mpcjanssen.simpletask.task.TaskSnapshot;
+import nl.mpcjanssen.simpletask.util.Strings;
+
+/**
+ * Filtered and sorted tasks shared by the task list and the widgets.
+ *
+ * Results are kept per filter (see {@link ActiveFilter#getCacheKey()}) for
+ * the snapshot of the task bag they were computed from. Widgets and the
+ * task list showing the same filter only filter and sort the tasks once
+ * per change of the bag. Results are dropped at midnight as well because
+ * tasks with a threshold date move out of the future.
+ *
+ * While a search is typed every keystroke gives a new filter. If a cached
+ * result of the same snapshot differs only by a search the new one narrows
+ * (see {@link ActiveFilter#narrowsSearch(String)}), only its tasks are
+ * searched and they are already sorted.
+ */
+public class FilterCache {
+    private static final int MAX_ENTRIES = 8;
+
+    private final LinkedHashMap<String, Result> m_results =
+            new LinkedHashMap<String, Result>(MAX_ENTRIES, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    private int m_hits;
+    private int m_misses;
+    private int m_narrowed;
+
+    /**
+     * The tasks of one snapshot matching a filter, in sort order.
+     */
+    public static class Result {
+        private final TaskSnapshot m_snapshot;
+        private final LocalDate m_day;
+        private final List<Task> m_tasks;
+        private final String m_keyWithoutSearch;
+        private final String m_search;
+
+        Result(TaskSnapshot snapshot, LocalDate day, ArrayList<Task> tasks, ActiveFilter filter) {
+            m_snapshot = snapshot;
+            m_day = day;
+            m_tasks = Collections.unmodifiableList(tasks);
+            m_keyWithoutSearch = filter.getCacheKeyWithoutSearch();
+            m_search = filter.getSearch();
+        }
+
+        private boolean isCurrent(TaskSnapshot snapshot, LocalDate today) {
+            // Snapshots are compared by identity, a new bag starts over
+            // with the same versions
+            return m_snapshot == snapshot && m_day.equals(today);
+        }
+
+        /**
+         * @return the snapshot the tasks were selected from
+         */
+        public TaskSnapshot getSnapshot() {
+            return m_snapshot;
+        }
+
+        /**
+         * @return the matching tasks in sort order, hidden tasks included
+         */
+        public List<Task> getTasks() {
+            return m_tasks;
+        }
+    }
+
+    /**
+     * Filters and sorts the current snapshot of the bag, or returns the
+     * result of an earlier call for the same filter and snapshot. Can be
+     * called from any thread.
+     */
+    public Result get(ActiveFilter filter, TaskBag taskBag) {
+        String key = filter.getCacheKey();
+        TaskSnapshot snapshot = taskBag.getSnapshot();
+        LocalDate today = new LocalDate();
+        Result previous;
+        synchronized (this) {
+            Result cached = m_results.get(key);
+            if (cached != null && cached.isCurrent(snapshot, today)) {
+                m_hits++;
+                return cached;
+            }
+            m_misses++;
+            previous = findNarrowed(filter, snapshot, today);
+        }
+        // Compute without holding the cache so other filters aren't blocked
+        ArrayList<Task> tasks;
+        if (previous != null) {
+            tasks = filter.applySearch(previous.m_tasks);
+        } else {
+            tasks = filter.apply(snapshot, taskBag);
+            TaskSorter.sort(tasks, filter.getSort());
+        }
+        Result result = new Result(snapshot, today, tasks, filter);
+        synchronized (this) {
+            if (previous != null) {
+                m_narrowed++;
+                if (!Strings.isEmptyOrNull(previous.m_search)) {
+                    // Keep the intermediate results of typing a search from
+                    // pushing out the results of other filters
+                    m_results.remove(previous.m_keyWithoutSearch + previous.m_search);
+                }
+            }
+            m_results.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * @return the smallest current result filter narrows down, or null
+     */
+    private Result findNarrowed(ActiveFilter filter, TaskSnapshot snapshot, LocalDate today) {
+        if (Strings.isEmptyOrNull(filter.getSearch())) {
+            return null;
+        }
+        String keyWithoutSearch = filter.getCacheKeyWithoutSearch();
+        Result best = null;
+        for (Result result : m_results.values()) {
+            if (result.isCurrent(snapshot, today)
+                    && result.m_keyWithoutSearch.equals(keyWithoutSearch)
+                    && filter.narrowsSearch(result.m_search)
+                    && (best == null || result.m_tasks.size() < best.m_tasks.size())) {
+                best = result;
+            }
+        }
+        return best;
+    }
+
+    public synchronized void clear() {
+        m_results.clear();
+    }
+
+    public synchronized int getHitCount() {
+        return m_hits;
+    }
+
+    public synchronized int getMissCount() {
+        return m_misses;
+    }
+
+    /**
+     * @return number of misses answered by narrowing down an earlier search
+     */
+    public synchronized int getNarrowedCount() {
+        return m_narrowed;
+    }
+}
@@ -0,0 +1,211 @@
+/**
+ * This file is part of Simpletask.
+ *
+ * @license http://www.gnu.org/licenses/gpl.html
+ */
+package nl.mpcjanssen.simpletask;
+
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Computes the contents of the task list on a background thread.
+ *
+ * Only the latest request counts: submitting a new request abandons the
+ * one in progress, and a result is only delivered if no newer request was
+ * submitted in the mean time. Jobs should check {@link Request#isCancelled()}
+ * between steps to stop early. Results are delivered through the executor
+ * passed to the constructor, normally one posting to the main thread.
+ */
+public class FilterPipeline {
+    final static String TAG = FilterPipeline.class.getSimpleName();
+
+    public interface Job<T> {
+        /**
+         * Runs on the background thread.
+         *
+         * @return the result, ignored if the request was cancelled
+         */
+        T run(Request request);
+    }
+
+    public interface Callback<T> {
+        /**
+         * Runs on the delivery executor, only for the latest request.
+         */
+        void onResult(T result);
+    }
+
+    private final Executor m_delivery;
+    private final ExecutorService m_executor = Executors.newSingleThreadExecutor();
+    private long m_generation;
+    private Request m_latest;
+    private int m_submitted;
+    private int m_delivered;
+    private int m_dropped;
+    private long m_lastComputeTime = -1;
+    private long m_totalComputeTime;
+
+    public class Request {
+        private final long m_requestGeneration;
+        private Future<?> m_future;
+        private boolean m_started;
+        private boolean m_finished;
+        private long m_computeTime;
+
+        Request(long generation) {
+            m_requestGeneration = generation;
+        }
+
+        /**
+         * @return true if a newer request was submitted
+         */
+        public boolean isCancelled() {
+            synchronized (FilterPipeline.this) {
+                return m_requestGeneration != m_generation;
+            }
+        }
+    }
+
+    public FilterPipeline(Executor delivery) {
+        m_delivery = delivery;
+    }
+
+    /**
+     * Runs job in the background and passes its result to callback,
+     * abandoning the request in progress.
+     */
+    public synchronized <T> void submit(final Job<T> job, final Callback<T> callback) {
+        m_generation++;
+        m_submitted++;
+        if (m_latest != null) {
+            // Not interrupted, the job may hold the task bag
+            m_latest.m_future.cancel(false);
+            if (!m_latest.m_started) {
+                // Won't run at all
+                finish(m_latest, false);
+            }
+        }
+        final Request request = new Request(m_generation);
+        m_latest = request;
+        request.m_future = m_executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (!start(request)) {
+                    return;
+                }
+                long start = System.currentTimeMillis();
+                final T result;
+                try {
+                    result = job.run(request);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Filtering tasks failed", e);
+                    finish(request, false);
+                    return;
+                }
+                if (!computed(request, System.currentTimeMillis() - start)) {
+                    return;
+                }
+                m_delivery.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (deliver(request)) {
+                            callback.onResult(result);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private synchronized boolean start(Request request) {
+        if (request.m_finished) {
+            return false;
+        }
+        request.m_started = true;
+        return true;
+    }
+
+    /**
+     * @return false if the result is outdated already
+     */
+    private synchronized boolean computed(Request request, long time) {
+        if (request.isCancelled()) {
+            finish(request, false);
+            return false;
+        }
+        request.m_computeTime = time;
+        return true;
+    }
+
+    private synchronized boolean deliver(Request request) {
+        boolean current = !request.isCancelled();
+        finish(request, current);
+        if (current) {
+            m_lastComputeTime = request.m_computeTime;
+            m_totalComputeTime += request.m_computeTime;
+        }
+        return current;
+    }
+
+    /**
+     * Counts every request once, as delivered or dropped.
+     */
+    private void finish(Request request, boolean delivered) {
+        if (request.m_finished) {
+            return;
+        }
+        request.m_finished = true;
+        if (delivered) {
+            m_delivered++;
+        } else {
+            m_dropped++;
+        }
+    }
+
+    /**
+     * @return true if the latest request wasn't delivered yet
+     */
+    public synchronized boolean isBusy() {
+        return m_latest != null && !m_latest.m_finished;
+    }
+
+    public synchronized int getSubmittedCount() {
+        return m_submitted;
+    }
+
+    public synchronized int getDeliveredCount() {
+        return m_delivered;
+    }
+
+    /**
+     * @return number of requests which were abandoned or whose result was
+     * replaced by a newer one
+     */
+    public synchronized int getDroppedCount() {
+        return m_dropped;
+    }
+
+    /**
+     * @return time in ms the last delivered computation took, -1 if there
+     * was none
+     */
+    public synchronized long getLastComputeTime() {
+        return m_lastComputeTime;
+    }
+
+    public synchronized long getAverageComputeTime() {
+        if (m_delivered == 0) {
+            return 0;
+        }
+        return m_totalComputeTime / m_delivered;
+    }
+
+    public void shutdown() {
+        m_executor.shutdownNow();
+    }
+}
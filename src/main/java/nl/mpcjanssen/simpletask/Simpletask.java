@@ -10,11 +10,11 @@ package nl.mpcjanssen.simpletask;
 
 import nl.mpcjanssen.simpletask.adapters.DrawerAdapter;
 import nl.mpcjanssen.simpletask.remote.RemoteClient;
-import nl.mpcjanssen.simpletask.sort.MultiComparator;
+import nl.mpcjanssen.simpletask.sort.SortedTaskList;
 import nl.mpcjanssen.simpletask.task.Priority;
 import nl.mpcjanssen.simpletask.task.Task;
 import nl.mpcjanssen.simpletask.task.TaskBag;
-import nl.mpcjanssen.simpletask.util.Strings;
+import nl.mpcjanssen.simpletask.util.FrameTrace;
 import nl.mpcjanssen.simpletask.util.Util;
 import nl.mpcjanssen.simpletask.util.Util.OnMultiChoiceDialogListener;
 
@@ -30,9 +30,7 @@ import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 import android.content.res.Configuration;
-import android.content.res.Resources;
 import android.database.DataSetObserver;
-import android.graphics.Color;
 import android.graphics.Paint;
 import android.net.Uri;
 import android.os.AsyncTask;
@@ -41,7 +39,6 @@ import android.provider.CalendarContract;
 import android.provider.CalendarContract.Events;
 import android.support.v4.app.ActionBarDrawerToggle;
 import android.support.v4.widget.DrawerLayout;
-import android.text.SpannableString;
 import android.util.Log;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
@@ -81,6 +78,7 @@ import org.joda.time.format.ISODateTimeFormat;
 import java.io.File;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.Executor;
 
 import static java.lang.Thread.sleep;
 
@@ -98,6 +96,8 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
     TodoApplication m_app;
     ActiveFilter mFilter;
     TaskAdapter m_adapter;
+    private TaskRenderCache m_renderCache;
+    private FilterPipeline m_pipeline;
     private BroadcastReceiver m_broadcastReceiver;
     private LocalBroadcastManager localBroadcastManager;
     private ActionMode actionMode;
@@ -156,6 +156,13 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
     public void onCreate(Bundle savedInstanceState) {
 	Log.v(TAG, "onCreate");
 	m_app = (TodoApplication) getApplication();
+	m_renderCache = new TaskRenderCache(getResources());
+	m_pipeline = new FilterPipeline(new Executor() {
+		@Override
+		public void execute(Runnable command) {
+		    runOnUiThread(command);
+		}
+	    });
     m_app.setActionBarStyle(getWindow());
 
     requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
@@ -321,6 +328,24 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
 	lv.setTextFilterEnabled(true);
 	lv.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
 	lv.setMultiChoiceModeListener(new ActionBarListener());
+	if (BuildConfig.DEBUG) {
+	    // Log the frame times and view inflations of every scroll
+	    final FrameTrace trace = new FrameTrace("Task list scroll");
+	    lv.setOnScrollListener(new AbsListView.OnScrollListener() {
+		    @Override
+		    public void onScrollStateChanged(AbsListView view, int scrollState) {
+			if (scrollState == SCROLL_STATE_IDLE) {
+			    trace.stop(m_adapter.getInflationCounts() + " for " + m_adapter.getCount() + " lines");
+			} else {
+			    trace.start();
+			}
+		    }
+
+		    @Override
+		    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+		    }
+		});
+	}
 
 	// If we were started with a selected task,
 	// select it now and clear it from the intent
@@ -339,14 +364,19 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
 
     private void setSelectedTask(int index,String selectedTask) {
 	Log.v(TAG, "Selected task: " + selectedTask );
-	Task task = new Task(index,selectedTask);
-	int position = m_adapter.getPosition(task);
-	if (position!=-1) {
-	    ListView lv = getListView();
-	    lv.setItemChecked(position,true);
-	    lv.setSelection(position);
-	}
-
+	final Task task = new Task(index,selectedTask);
+	// The task is only found once the list is filled
+	m_adapter.runWhenShown(new Runnable() {
+		@Override
+		public void run() {
+		    int position = m_adapter.getPosition(task);
+		    if (position!=-1) {
+			ListView lv = getListView();
+			lv.setItemChecked(position,true);
+			lv.setSelection(position);
+		    }
+		}
+	    });
     }
 
     private void updateFilterBar() {
@@ -375,6 +405,8 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
     @Override
     protected void onDestroy() {
 	super.onDestroy();
+	m_renderCache.shutdown();
+	m_pipeline.shutdown();
 	localBroadcastManager.unregisterReceiver(m_broadcastReceiver);
     }
 
@@ -394,6 +426,7 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
     protected void onPause() {
         super.onPause();
         mFilter.saveInPrefs(TodoApplication.getPrefs());
+        getTaskBag().flushInBackground();
     }
 
     @Override
@@ -484,20 +517,20 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
 	Dialog tagChooser = Util.createMultiChoiceDialog(this,values,null, R.string.remove_list_or_tag,
 							 null, new OnMultiChoiceDialogListener() {
 								 @Override
-								 public void onClick(boolean[] selected) {
-
-								     for (int i = 0 ; i < selected.length ; i++) {
-									 if (selected[i]) {
-									     for (Task t : tasks) {
-										 t.removeTag(items.get(i));
+								 public void onClick(final boolean[] selected) {
+
+								     editTasks(tasks, new TaskBag.Edit() {
+									 @Override
+									 public void apply(Task t) {
+									     for (int i = 0 ; i < selected.length ; i++) {
+										 if (selected[i]) {
+										     t.removeTag(items.get(i));
+										 }
 									     }
 									 }
-								     }
-								     getTaskBag().store();
+								     });
 								     m_app.updateWidgets();
 								     m_app.setNeedToPush(true);
-								     // We have change the data, views should refresh
-								     m_adapter.setFilteredTasks(false);
 								     localBroadcastManager.sendBroadcast(new Intent(Constants.BROADCAST_START_SYNC_TO_REMOTE));
 								 }
 							     });
@@ -517,20 +550,20 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
 	Dialog tagChooser = Util.createMultiChoiceDialog(this,items,null, R.string.add_list_or_tag,
 							 null, new OnMultiChoiceDialogListener() {
 								 @Override
-								 public void onClick(boolean[] selected) {
-
-								     for (int i = 0 ; i < selected.length ; i++) {
-									 if (selected[i]) {
-									     for (Task t : tasks) {
-										 t.append(items[i]);
+								 public void onClick(final boolean[] selected) {
+
+								     editTasks(tasks, new TaskBag.Edit() {
+									 @Override
+									 public void apply(Task t) {
+									     for (int i = 0 ; i < selected.length ; i++) {
+										 if (selected[i]) {
+										     t.append(items[i]);
+										 }
 									     }
 									 }
-								     }
-								     getTaskBag().store();
+								     });
 								     m_app.updateWidgets();
 								     m_app.setNeedToPush(true);
-								     // We have change the data, views should refresh
-								     m_adapter.setFilteredTasks(false);
 								     localBroadcastManager.sendBroadcast(new Intent(Constants.BROADCAST_START_SYNC_TO_REMOTE));
 
 								 }
@@ -549,17 +582,15 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
 		public void onClick(DialogInterface dialog, final int which) {
 
 		    dialog.dismiss();
-		    for (Task task : tasks) {
-			if (task != null) {
+		    finishActionmode();
+		    editTasks(tasks, new TaskBag.Edit() {
+			@Override
+			public void apply(Task task) {
 			    task.setPriority(Priority.toPriority(prioArr[which]));
 			}
-		    }
-		    finishActionmode();
-		    getTaskBag().store();
+		    });
 		    m_app.updateWidgets();
 		    m_app.setNeedToPush(true);
-		    // We have change the data, views should refresh
-		    m_adapter.setFilteredTasks(false);
 		    localBroadcastManager.sendBroadcast(new Intent(Constants.BROADCAST_START_SYNC_TO_REMOTE));
 		}
 	    });
@@ -567,12 +598,24 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
 
     }
 
+    /**
+     * Lets the bag replace the tasks by copies changed by edit and shows
+     * the copies instead.
+     */
+    private void editTasks(List<Task> tasks, TaskBag.Edit edit) {
+	List<Task> changed = getTaskBag().edit(tasks, edit);
+	// We have change the data, views should refresh
+	m_adapter.replaceTasks(tasks, changed);
+    }
+
     private void completeTasks(List<Task> tasks) {
         TaskBag taskBag = getTaskBag();
+        ArrayList<Task> added = new ArrayList<Task>();
 	for (Task t : tasks) {
 	    if (t != null && !t.isCompleted()) {
                 if (t.getRecurrencePattern()!=null) {
-                    Task newTask = taskBag.addAsTask(t.withoutCreateAndCompletionDate());
+                    // Defer before adding, the bag doesn't change added tasks
+                    Task newTask = new Task(0, t.withoutCreateAndCompletionDate());
                     boolean fromOriginalDate = m_app.hasRecurOriginalDates();
                     if (newTask.getDueDate()==null && newTask.getThresholdDate()==null) {
                         newTask.deferDueDate(t.getRecurrencePattern(),fromOriginalDate);
@@ -584,32 +627,39 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
                             newTask.deferThresholdDate(t.getRecurrencePattern(),fromOriginalDate);
                         }
                     }
+                    added.add(taskBag.addAsTask(newTask.inFileFormat()));
                 }
-                t.markComplete(new DateTime());
 	    }
 	}
-        taskBag.store();
+        final DateTime now = new DateTime();
+        List<Task> completed = taskBag.edit(tasks, new TaskBag.Edit() {
+            @Override
+            public void apply(Task task) {
+                task.markComplete(now);
+            }
+        });
 	if (m_app.isAutoArchive()) {
 	    archiveTasks(null);
 	}
 	m_app.updateWidgets();
 	m_app.setNeedToPush(true);
 	// We have change the data, views should refresh
-	m_adapter.setFilteredTasks(true);
+	m_adapter.updateTasks(added, Collections.<Task>emptyList(), Collections.<Task>emptyList());
+	m_adapter.replaceTasks(tasks, completed);
     localBroadcastManager.sendBroadcast(new Intent(Constants.BROADCAST_START_SYNC_TO_REMOTE));
     }
 
     private void undoCompleteTasks(List<Task> tasks) {
-	for (Task t : tasks) {
-	    if (t != null && t.isCompleted()) {
-		t.markIncomplete();
+	editTasks(tasks, new TaskBag.Edit() {
+	    @Override
+	    public void apply(Task t) {
+		if (t.isCompleted()) {
+		    t.markIncomplete();
+		}
 	    }
-	}
-	getTaskBag().store();
+	});
 	m_app.updateWidgets();
 	m_app.setNeedToPush(true);
-	// We have change the data, views should refresh
-	m_adapter.setFilteredTasks(true);
     sendBroadcast(new Intent(Constants.BROADCAST_START_SYNC_TO_REMOTE));
     }
 
@@ -643,36 +693,34 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
 	d.show();
     }
 
-    private void deferTasks(DateTime selected, List<Task> tasksToDefer, int type) {
-	for (Task t : tasksToDefer) {
-	    if (t != null) {
+    private void deferTasks(final DateTime selected, List<Task> tasksToDefer, final int type) {
+	editTasks(tasksToDefer, new TaskBag.Edit() {
+	    @Override
+	    public void apply(Task t) {
                 if (type==Task.DUE_DATE) {
 		    t.setDueDate(selected);
                 } else {
                     t.setThresholdDate(selected);
                 }
 	    }
-	}
-	m_adapter.setFilteredTasks(false);
-	getTaskBag().store();
+	});
 	m_app.updateWidgets();
 	m_app.setNeedToPush(true);
 	// We have change the data, views should refresh
 	localBroadcastManager.sendBroadcast(new Intent(Constants.BROADCAST_START_SYNC_TO_REMOTE));
     }
 
-    private void deferTasks(String selected, List<Task> tasksToDefer, int type) {
-	for (Task t : tasksToDefer) {
-	    if (t != null) {
+    private void deferTasks(final String selected, List<Task> tasksToDefer, final int type) {
+	editTasks(tasksToDefer, new TaskBag.Edit() {
+	    @Override
+	    public void apply(Task t) {
                 if (type==Task.DUE_DATE) {
 		    t.deferDueDate(selected, false);
                 } else {
                     t.deferThresholdDate(selected,false );
                 }
 	    }
-	}
-	m_adapter.setFilteredTasks(false);
-	getTaskBag().store();
+	});
 	m_app.updateWidgets();
 	m_app.setNeedToPush(true);
 	// We have change the data, views should refresh
@@ -688,7 +736,7 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
 			    getTaskBag().delete(t);
 			}
 		    }
-		    m_adapter.setFilteredTasks(false);
+		    m_adapter.updateTasks(Collections.<Task>emptyList(), tasks, Collections.<Task>emptyList());
 		    getTaskBag().store();
 		    m_app.updateWidgets();
 		    m_app.setNeedToPush(true);
@@ -804,8 +852,6 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
      * force an upload or download.
      */
     private void handleSyncConflict() {
-	m_app.m_pushing = false;
-	m_app.m_pulling = false;
 	showDialog(SYNC_CONFLICT_DIALOG);
     }
 
@@ -1214,6 +1260,9 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
 	private TextView taskdue;
 	private TextView taskthreshold;
         private CheckBox cbCompleted;
+	private LinearLayout datesBar;
+	// The row shown now, binding the same row again can be skipped
+	private TaskRenderCache.Row row;
     }
 
     public class TaskAdapter extends BaseAdapter implements ListAdapter,
@@ -1222,6 +1271,7 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
 	    private Task task = null;
 	    private String title = null;
 	    private boolean header = false;
+	    private long id;
 
 	    public VisibleLine(String title) {
 		this.title = title;
@@ -1262,33 +1312,139 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
 	    }
 	}
 	ArrayList<VisibleLine> visibleLines = new ArrayList<VisibleLine>();
+	private SortedTaskList m_sortedTasks;
 	Set<DataSetObserver> obs = new HashSet<DataSetObserver>();
 	private LayoutInflater m_inflater;
+	// Ids stay with a task or header for as long as it is in the list
+	private IdentityHashMap<Task, Long> m_taskIds = new IdentityHashMap<Task, Long>();
+	private HashMap<String, Long> m_headerIds = new HashMap<String, Long>();
+	private long m_nextId;
+	private int m_headerInflations;
+	private int m_taskInflations;
+	private Runnable m_whenShown;
+	// A reload may be dropped in favour of a newer request
+	private boolean m_reloadPending;
+
+	private class FilteredLines {
+	    final SortedTaskList sortedTasks;
+	    final ArrayList<VisibleLine> lines;
+
+	    FilteredLines(SortedTaskList sortedTasks, ArrayList<VisibleLine> lines) {
+		this.sortedTasks = sortedTasks;
+		this.lines = lines;
+	    }
+	}
 
 	public TaskAdapter(Context context, int textViewResourceId,
 			   LayoutInflater inflater, ListView view) {
 	    this.m_inflater = inflater;
 	}
 
-	void setFilteredTasks(boolean reload) {
-	    ArrayList<Task> visibleTasks = new ArrayList<Task>();
+	/**
+	 * Filters, sorts and groups the tasks in the background. Only the
+	 * result of the last call is shown.
+	 */
+	void setFilteredTasks(final boolean reload) {
 	    Log.v(TAG, "setFilteredTasks called, reload: " + reload);
-	    if (reload) {
-		getTaskBag().reload();
-		// Update lists in side drawer
-		// Set the adapter for the list view
-		updateDrawers();
+	    // The filter can change while the tasks are filtered
+	    final ActiveFilter filter = mFilter.copy();
+	    final TaskBag taskBag = getTaskBag();
+	    final String noHeader = getString(R.string.no_header);
+	    final boolean showEmptyLists = m_app.showEmptyLists();
+	    final boolean showHidden = m_app.showHidden();
+	    m_reloadPending |= reload;
+	    m_pipeline.submit(new FilterPipeline.Job<FilteredLines>() {
+		    @Override
+		    public FilteredLines run(FilterPipeline.Request request) {
+			if (reload) {
+			    taskBag.reload();
+			}
+			if (request.isCancelled()) {
+			    return null;
+			}
+			// Shared with widgets showing the same filter
+			FilterCache.Result result = m_app.getFilterCache().get(filter, taskBag);
+			if (request.isCancelled()) {
+			    return null;
+			}
+			SortedTaskList sortedTasks = new SortedTaskList(filter, taskBag.addsAtEnd());
+			sortedTasks.resetSorted(result.getSnapshot().getTasks(), result.getTasks());
+			return new FilteredLines(sortedTasks, groupLines(sortedTasks.getTasks(),
+									 filter.getSort(), noHeader, showEmptyLists, showHidden));
+		    }
+		}, new FilterPipeline.Callback<FilteredLines>() {
+		    @Override
+		    public void onResult(FilteredLines result) {
+			Log.v(TAG, "Filtered tasks in " + m_pipeline.getLastComputeTime() + " ms, average "
+			      + m_pipeline.getAverageComputeTime() + " ms, dropped "
+			      + m_pipeline.getDroppedCount() + " of " + m_pipeline.getSubmittedCount() + " requests");
+			m_sortedTasks = result.sortedTasks;
+			showLines(result.lines);
+			if (m_reloadPending) {
+			    m_reloadPending = false;
+			    // Update lists in side drawer
+			    updateDrawers();
+			}
+			if (m_whenShown != null) {
+			    Runnable action = m_whenShown;
+			    m_whenShown = null;
+			    action.run();
+			}
+		    }
+		});
+	}
+
+	/**
+	 * Runs action once the list shows the tasks of the last
+	 * setFilteredTasks call.
+	 */
+	void runWhenShown(Runnable action) {
+	    if (m_pipeline.isBusy()) {
+		m_whenShown = action;
+	    } else {
+		action.run();
 	    }
+	}
 
-	    visibleTasks.clear();
-	    visibleLines.clear();
-	    visibleTasks.addAll(mFilter.apply(getTaskBag().getTasks()));
-	    ArrayList<String> sorts = mFilter.getSort();
-	    Collections.sort(visibleTasks, MultiComparator.create(sorts));
+	/*
+	** Update the list for changed tasks only, instead of filtering
+	** and sorting all tasks again
+	*/
+	void updateTasks(Collection<Task> added, Collection<Task> removed, Collection<Task> modified) {
+	    Log.v(TAG, "updateTasks called, added: " + added.size() + " removed: "
+		  + removed.size() + " modified: " + modified.size());
+	    // A list still being filtered may not contain the changes yet
+	    if (m_pipeline.isBusy() || m_sortedTasks == null
+		|| !m_sortedTasks.update(added, removed, modified)) {
+		setFilteredTasks(false);
+		return;
+	    }
+	    showLines(groupLines(m_sortedTasks.getTasks(), mFilter.getSort(),
+				 getString(R.string.no_header), m_app.showEmptyLists(), m_app.showHidden()));
+	}
+
+	/*
+	** Update the list for tasks the bag replaced by changed copies
+	*/
+	void replaceTasks(List<Task> tasks, List<Task> changed) {
+	    if (m_pipeline.isBusy() || m_sortedTasks == null
+		|| !m_sortedTasks.replace(tasks, changed)) {
+		setFilteredTasks(false);
+		return;
+	    }
+	    showLines(groupLines(m_sortedTasks.getTasks(), mFilter.getSort(),
+				 getString(R.string.no_header), m_app.showEmptyLists(), m_app.showHidden()));
+	}
+
+	/**
+	 * Groups the sorted tasks under headers. Doesn't touch the adapter
+	 * so it can run in the background.
+	 */
+	private ArrayList<VisibleLine> groupLines(List<Task> visibleTasks, ArrayList<String> sorts,
+						  String noHeader, boolean showEmptyLists, boolean showHidden) {
+	    ArrayList<VisibleLine> lines = new ArrayList<VisibleLine>();
 	    String header = "";
 	    String newHeader = "";
-	    int index = 0;
-	    int position = 0;
 	    int firstGroupSortIndex = 0;
 
 	    if (sorts.size() > 1 && sorts.get(0).contains("completed")
@@ -1301,24 +1457,55 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
 	    }
 	    String firstSort = sorts.get(firstGroupSortIndex);
 	    for (Task t : visibleTasks) {
-		newHeader = t.getHeader(firstSort, getString(R.string.no_header));
+		newHeader = t.getHeader(firstSort, noHeader);
 		if (!header.equals(newHeader)) {
 		    VisibleLine headerLine = new VisibleLine(newHeader);
-		    int last = visibleLines.size()-1;
-		    if (last!=-1 && visibleLines.get(last).header && !m_app.showEmptyLists()) {
-			visibleLines.set(last, headerLine);
+		    int last = lines.size()-1;
+		    if (last!=-1 && lines.get(last).header && !showEmptyLists) {
+			lines.set(last, headerLine);
 		    } else {
-			visibleLines.add(headerLine);
+			lines.add(headerLine);
 		    }
 		    header = newHeader;
 		}
                        
-		if (!t.isHidden() || m_app.showHidden()) {
+		if (!t.isHidden() || showHidden) {
 		    // enduring tasks should not be displayed
 		    VisibleLine taskLine = new VisibleLine(t);
-		    visibleLines.add(taskLine);
+		    lines.add(taskLine);
 		}
 	    }
+	    return lines;
+	}
+
+	private void showLines(ArrayList<VisibleLine> lines) {
+	    visibleLines = lines;
+	    // Render the rows before they are scrolled into view
+	    ArrayList<Task> shownTasks = new ArrayList<Task>();
+	    IdentityHashMap<Task, Long> taskIds = new IdentityHashMap<Task, Long>();
+	    HashMap<String, Long> headerIds = new HashMap<String, Long>();
+	    for (VisibleLine line : visibleLines) {
+		Long id;
+		if (line.header) {
+		    id = m_headerIds.get(line.title);
+		    if (id == null || headerIds.containsKey(line.title)) {
+			id = m_nextId++;
+		    }
+		    headerIds.put(line.title, id);
+		} else {
+		    shownTasks.add(line.task);
+		    id = m_taskIds.get(line.task);
+		    if (id == null) {
+			id = m_nextId++;
+		    }
+		    taskIds.put(line.task, id);
+		}
+		line.id = id;
+	    }
+	    m_taskIds = taskIds;
+	    m_headerIds = headerIds;
+	    // The filter may change while the rows are rendered
+	    m_renderCache.prefetch(shownTasks, mFilter.copy(), m_app.hasColorDueDates());
 	    for (DataSetObserver ob : obs) {
 		ob.onChanged();
 	    }
@@ -1361,28 +1548,42 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
 
 	@Override
 	public long getItemId(int position) {
-	    return position;
+	    return visibleLines.get(position).id;
 	}
 
 	@Override
 	public boolean hasStableIds() {
-	    return true; // To change body of implemented methods use File |
-	    // Settings | File Templates.
+	    return true;
+	}
+
+	/**
+	 * @return number of inflated header and task views
+	 */
+	String getInflationCounts() {
+	    return "inflated " + m_headerInflations + " headers and " + m_taskInflations + " tasks";
 	}
 
 	@Override
 	public View getView(int position, View convertView, ViewGroup parent) {
 	    VisibleLine line = visibleLines.get(position);
 	    if (line.header) {
-		convertView = m_inflater.inflate(R.layout.list_header, null);
-		TextView t = (TextView) convertView
-		    .findViewById(R.id.list_header_title);
+		TextView t;
+		if (convertView == null) {
+		    convertView = m_inflater.inflate(R.layout.list_header, parent, false);
+		    m_headerInflations++;
+		    t = (TextView) convertView
+			.findViewById(R.id.list_header_title);
+		    convertView.setTag(t);
+		} else {
+		    t = (TextView) convertView.getTag();
+		}
 		t.setText(line.title);
 
 	    } else {
 		final ViewHolder holder;
 		if (convertView == null) {
-		    convertView = m_inflater.inflate(R.layout.list_item, null);
+		    convertView = m_inflater.inflate(R.layout.list_item, parent, false);
+		    m_taskInflations++;
 		    holder = new ViewHolder();
 		    holder.tasktext = (TextView) convertView
 			.findViewById(R.id.tasktext);
@@ -1394,6 +1595,8 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
 			.findViewById(R.id.taskthreshold);
 		    holder.cbCompleted = (CheckBox) convertView
 			.findViewById(R.id.checkBox);
+		    holder.datesBar = (LinearLayout) convertView
+			.findViewById(R.id.datebar);
 		    convertView.setTag(holder);
 		} else {
 		    holder = (ViewHolder) convertView.getTag();
@@ -1406,50 +1609,11 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
             holder.cbCompleted.setVisibility(View.GONE);
         }
 		if (task != null) {
-		    SpannableString ss = new SpannableString(
-							     task.inScreenFormat(mFilter));
-
-		    ArrayList<String> colorizeStrings = new ArrayList<String>();
-		    for (String context : task.getLists()) {
-			colorizeStrings.add("@" + context);
-		    }
-		    Util.setColor(ss, Color.GRAY, colorizeStrings);
-		    colorizeStrings.clear();
-		    for (String project : task.getTags()) {
-			colorizeStrings.add("+" + project);
-		    }
-		    Util.setColor(ss, Color.GRAY, colorizeStrings);
-
-		    Resources res = getResources();
-		    int prioColor;
-		    switch (task.getPriority()) {
-		    case A:
-			prioColor = res.getColor(android.R.color.holo_red_dark);
-			break;
-		    case B:
-			prioColor = res.getColor(android.R.color.holo_orange_dark);
-			break;
-		    case C:
-			prioColor = res.getColor(android.R.color.holo_green_dark);
-			break;
-		    case D:
-			prioColor = res.getColor(android.R.color.holo_blue_dark);
-			break;
-		    default:
-			prioColor = res.getColor(android.R.color.darker_gray);
-		    }
-		    Util.setColor(ss, prioColor, task.getPriority()
-				  .inFileFormat());
-		    holder.tasktext.setText(ss);
+		    TaskRenderCache.Row row = m_renderCache.get(task, mFilter, m_app.hasColorDueDates());
 		    final ArrayList<Task> tasks = new ArrayList<Task>();
 		    tasks.add(task);
+		    holder.cbCompleted.setChecked(task.isCompleted());
 		    if (task.isCompleted()) {
-			// Log.v(TAG, "Striking through " + task.getText());
-			holder.tasktext.setPaintFlags(holder.tasktext
-						      .getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
-			holder.taskage.setPaintFlags(holder.taskage
-						     .getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
-			holder.cbCompleted.setChecked(true);
 			holder.cbCompleted.setOnClickListener(new View.OnClickListener() {
 				@Override
 				public void onClick(View v) {
@@ -1458,13 +1622,6 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
 				}
 			    });
 		    } else {
-			holder.tasktext
-			    .setPaintFlags(holder.tasktext.getPaintFlags()
-                                           & ~Paint.STRIKE_THRU_TEXT_FLAG);
-			holder.taskage
-			    .setPaintFlags(holder.taskage.getPaintFlags()
-                                           & ~Paint.STRIKE_THRU_TEXT_FLAG);
-			holder.cbCompleted.setChecked(false);
 			holder.cbCompleted.setOnClickListener(new View.OnClickListener() {
 				@Override
 				public void onClick(View v) {
@@ -1473,42 +1630,37 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
 				}
 			    });
 		    }
-
-
-
-
-		    String relAge = task.getRelativeAge();
-		    SpannableString relDue = task.getRelativeDueDate(res, m_app.hasColorDueDates());
-		    String relThres = task.getRelativeThresholdDate();
-		    boolean anyDateShown = false;
-		    if (!Strings.isEmptyOrNull(relAge)) {
-			holder.taskage.setText(relAge);
-			anyDateShown = true;
-		    } else {
-			holder.taskage.setText("");
-		    }
-		    if (relDue!=null) {
-			anyDateShown = true;
-			holder.taskdue.setText(relDue);
-		    } else {
-			holder.taskdue.setText("");
+		    if (holder.row == row) {
+			// Rows are per task text, so this one still shows the task
+			return convertView;
 		    }
-		    if (!Strings.isEmptyOrNull(relThres)) {
-			anyDateShown = true;
-			holder.taskthreshold.setText(relThres);
+		    holder.row = row;
+		    holder.tasktext.setText(row.text);
+		    if (task.isCompleted()) {
+			// Log.v(TAG, "Striking through " + task.getText());
+			holder.tasktext.setPaintFlags(holder.tasktext
+						      .getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
+			holder.taskage.setPaintFlags(holder.taskage
+						     .getPaintFlags() | Paint.STRIKE_THRU_TEXT_FLAG);
 		    } else {
-			holder.taskthreshold.setText("");
+			holder.tasktext
+			    .setPaintFlags(holder.tasktext.getPaintFlags()
+                                           & ~Paint.STRIKE_THRU_TEXT_FLAG);
+			holder.taskage
+			    .setPaintFlags(holder.taskage.getPaintFlags()
+                                           & ~Paint.STRIKE_THRU_TEXT_FLAG);
 		    }
-		    LinearLayout datesBar = (LinearLayout)convertView
-			.findViewById(R.id.datebar);
-		    if (!anyDateShown || task.isCompleted()) {
-			datesBar.setVisibility(View.GONE);
+		    holder.taskage.setText(row.age != null ? row.age : "");
+		    holder.taskdue.setText(row.due != null ? row.due : "");
+		    holder.taskthreshold.setText(row.threshold != null ? row.threshold : "");
+		    if (!row.hasDates() || task.isCompleted()) {
+			holder.datesBar.setVisibility(View.GONE);
 			holder.tasktext.setPadding(
 						   holder.tasktext.getPaddingLeft(),
 						   holder.tasktext.getPaddingTop(),
 						   holder.tasktext.getPaddingRight(), 4);
 		    } else {
-			datesBar.setVisibility(View.VISIBLE);
+			holder.datesBar.setVisibility(View.VISIBLE);
 			holder.tasktext.setPadding(
 						   holder.tasktext.getPaddingLeft(),
 						   holder.tasktext.getPaddingTop(),
@@ -1778,27 +1930,26 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
         builder.setPositiveButton(R.string.ok, new DialogInterface.OnClickListener() {
 		@Override
 		public void onClick(DialogInterface dialog, int which) {
-		    ArrayList<String> items = new ArrayList<String>();
-		    ArrayList<String> uncheckedItesm = new ArrayList<String>();
+		    final ArrayList<String> items = new ArrayList<String>();
+		    final ArrayList<String> uncheckedItesm = new ArrayList<String>();
 		    uncheckedItesm.addAll(Util.getCheckedItems(lv, false));
 		    items.addAll(Util.getCheckedItems(lv, true));
 		    String newText = ed.getText().toString();
 		    if (!newText.equals("")) {
 			items.add(ed.getText().toString());
 		    }
-		    for (String item : items) {
-			for (Task t : checkedTasks) {
-			    t.addList(item);
-			}
-		    }
-		    for (String item : uncheckedItesm) {
-			for (Task t : checkedTasks) {
-			    t.removeTag("@" + item);
-			}
-		    }
 		    finishActionmode();
-		    m_adapter.setFilteredTasks(false);
-		    getTaskBag().store();
+		    editTasks(checkedTasks, new TaskBag.Edit() {
+			@Override
+			public void apply(Task t) {
+			    for (String item : items) {
+				t.addList(item);
+			    }
+			    for (String item : uncheckedItesm) {
+				t.removeTag("@" + item);
+			    }
+			}
+		    });
 		    m_app.updateWidgets();
 		    m_app.setNeedToPush(true);
 		    updateDrawers();
@@ -1847,27 +1998,26 @@ public class Simpletask extends ThemedListActivity  implements AdapterView.OnIte
         builder.setPositiveButton(R.string.ok, new DialogInterface.OnClickListener() {
 		@Override
 		public void onClick(DialogInterface dialog, int which) {
-		    ArrayList<String> items = new ArrayList<String>();
-		    ArrayList<String> uncheckedItesm = new ArrayList<String>();
+		    final ArrayList<String> items = new ArrayList<String>();
+		    final ArrayList<String> uncheckedItesm = new ArrayList<String>();
 		    uncheckedItesm.addAll(Util.getCheckedItems(lv, false));
 		    items.addAll(Util.getCheckedItems(lv, true));
 		    String newText = ed.getText().toString();
 		    if (!newText.equals("")) {
 			items.add(ed.getText().toString());
 		    }
-		    for (String item : items) {
-			for (Task t : checkedTasks) {
-			    t.addTag(item);
-			}
-		    }
-		    for (String item : uncheckedItesm) {
-			for (Task t : checkedTasks) {
-			    t.removeTag("+"+item);
-			}
-		    }
 		    finishActionmode();
-		    m_adapter.setFilteredTasks(false);
-		    getTaskBag().store();
+		    editTasks(checkedTasks, new TaskBag.Edit() {
+			@Override
+			public void apply(Task t) {
+			    for (String item : items) {
+				t.addTag(item);
+			    }
+			    for (String item : uncheckedItesm) {
+				t.removeTag("+"+item);
+			    }
+			}
+		    });
 		    m_app.updateWidgets();
 		    m_app.setNeedToPush(true);
 		    updateDrawers();
@@ -0,0 +1,213 @@
+/**
+ * This file is part of Simpletask.
+ *
+ * @license http://www.gnu.org/licenses/gpl.html
+ */
+package nl.mpcjanssen.simpletask;
+
+import android.content.res.Resources;
+import android.graphics.Color;
+import android.text.SpannableString;
+
+import org.joda.time.LocalDate;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import nl.mpcjanssen.simpletask.task.Task;
+import nl.mpcjanssen.simpletask.util.Strings;
+import nl.mpcjanssen.simpletask.util.Util;
+
+/**
+ * Display models of task rows: the colored task text and the relative
+ * dates, ready to be set on the views of a row.
+ *
+ * Rows are kept by task text and the filter options which change the
+ * shown text, so a changed task gets a new row. Relative dates change at
+ * midnight, then all rows are dropped. {@link #prefetch} renders the rows
+ * of a list on a background thread so binding a row only sets the views.
+ */
+public class TaskRenderCache {
+    private static final int MAX_ENTRIES = 2000;
+
+    private final Resources m_resources;
+    private final int[] m_priorityColors;
+    private final ExecutorService m_executor = Executors.newSingleThreadExecutor();
+    private final LinkedHashMap<String, Row> m_rows =
+            new LinkedHashMap<String, Row>(256, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Row> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    private LocalDate m_day = new LocalDate();
+    private Future<?> m_prefetch;
+    private int m_hits;
+    private int m_misses;
+
+    /**
+     * Everything shown in the row of one task.
+     */
+    public static class Row {
+        public final SpannableString text;
+        public final String age;
+        public final SpannableString due;
+        public final String threshold;
+
+        Row(SpannableString text, String age, SpannableString due, String threshold) {
+            this.text = text;
+            this.age = age;
+            this.due = due;
+            this.threshold = threshold;
+        }
+
+        public boolean hasDates() {
+            return age != null || due != null || threshold != null;
+        }
+    }
+
+    public TaskRenderCache(Resources resources) {
+        m_resources = resources;
+        m_priorityColors = new int[] {
+                resources.getColor(android.R.color.holo_red_dark),
+                resources.getColor(android.R.color.holo_orange_dark),
+                resources.getColor(android.R.color.holo_green_dark),
+                resources.getColor(android.R.color.holo_blue_dark),
+                resources.getColor(android.R.color.darker_gray)
+        };
+    }
+
+    private static String key(Task task, ActiveFilter filter, boolean colorDueDates) {
+        StringBuilder key = new StringBuilder();
+        key.append(filter.getHideLists() ? 'L' : '-');
+        key.append(filter.getHideTags() ? 'T' : '-');
+        key.append(colorDueDates ? 'C' : '-');
+        key.append(task.inFileFormat());
+        return key.toString();
+    }
+
+    /**
+     * @return the row of task, rendered on the calling thread if it wasn't
+     * prefetched
+     */
+    public Row get(Task task, ActiveFilter filter, boolean colorDueDates) {
+        String key = key(task, filter, colorDueDates);
+        synchronized (this) {
+            checkDay();
+            Row row = m_rows.get(key);
+            if (row != null) {
+                m_hits++;
+                return row;
+            }
+            m_misses++;
+        }
+        Row row = render(task, filter, colorDueDates);
+        synchronized (this) {
+            m_rows.put(key, row);
+        }
+        return row;
+    }
+
+    /**
+     * Renders the rows of tasks which aren't cached yet in the background,
+     * in list order. A previous prefetch which is still running is
+     * abandoned.
+     */
+    public synchronized void prefetch(List<Task> tasks, final ActiveFilter filter, final boolean colorDueDates) {
+        if (m_prefetch != null) {
+            m_prefetch.cancel(true);
+        }
+        final ArrayList<Task> toRender = new ArrayList<Task>(tasks);
+        m_prefetch = m_executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                for (Task task : toRender) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    String key = key(task, filter, colorDueDates);
+                    synchronized (TaskRenderCache.this) {
+                        checkDay();
+                        if (m_rows.containsKey(key)) {
+                            continue;
+                        }
+                    }
+                    Row row = render(task, filter, colorDueDates);
+                    synchronized (TaskRenderCache.this) {
+                        m_rows.put(key, row);
+                    }
+                }
+            }
+        });
+    }
+
+    private void checkDay() {
+        LocalDate today = new LocalDate();
+        if (!today.equals(m_day)) {
+            // Relative dates are off by a day now
+            m_rows.clear();
+            m_day = today;
+        }
+    }
+
+    private Row render(Task task, ActiveFilter filter, boolean colorDueDates) {
+        SpannableString ss = new SpannableString(task.inScreenFormat(filter));
+        ArrayList<String> colorizeStrings = new ArrayList<String>();
+        for (String context : task.getLists()) {
+            colorizeStrings.add("@" + context);
+        }
+        Util.setColor(ss, Color.GRAY, colorizeStrings);
+        colorizeStrings.clear();
+        for (String project : task.getTags()) {
+            colorizeStrings.add("+" + project);
+        }
+        Util.setColor(ss, Color.GRAY, colorizeStrings);
+
+        int prioColor;
+        switch (task.getPriority()) {
+            case A:
+                prioColor = m_priorityColors[0];
+                break;
+            case B:
+                prioColor = m_priorityColors[1];
+                break;
+            case C:
+                prioColor = m_priorityColors[2];
+                break;
+            case D:
+                prioColor = m_priorityColors[3];
+                break;
+            default:
+                prioColor = m_priorityColors[4];
+        }
+        Util.setColor(ss, prioColor, task.getPriority().inFileFormat());
+
+        String age = task.getRelativeAge();
+        String threshold = task.getRelativeThresholdDate();
+        return new Row(ss,
+                Strings.isEmptyOrNull(age) ? null : age,
+                task.getRelativeDueDate(m_resources, colorDueDates),
+                Strings.isEmptyOrNull(threshold) ? null : threshold);
+    }
+
+    public synchronized void clear() {
+        m_rows.clear();
+    }
+
+    public synchronized int getHitCount() {
+        return m_hits;
+    }
+
+    public synchronized int getMissCount() {
+        return m_misses;
+    }
+
+    public void shutdown() {
+        m_executor.shutdownNow();
+    }
+}
@@ -30,7 +30,6 @@ import android.appwidget.AppWidgetManager;
 import android.content.*;
 import android.content.SharedPreferences.Editor;
 import android.content.pm.ActivityInfo;
-import android.os.AsyncTask;
 import android.os.Environment;
 import android.os.FileObserver;
 import android.os.Handler;
@@ -44,9 +43,10 @@ import java.io.File;
 import java.io.IOException;
 
 import nl.mpcjanssen.simpletask.remote.RemoteClientManager;
-import nl.mpcjanssen.simpletask.remote.RemoteConflictException;
+import nl.mpcjanssen.simpletask.remote.SyncScheduler;
 import nl.mpcjanssen.simpletask.task.LocalFileTaskRepository;
 import nl.mpcjanssen.simpletask.task.TaskBag;
+import nl.mpcjanssen.simpletask.util.Debouncer;
 import nl.mpcjanssen.simpletask.util.DropboxFileDialog;
 import nl.mpcjanssen.simpletask.util.FileDialog;
 import nl.mpcjanssen.simpletask.util.Util;
@@ -57,14 +57,17 @@ public class TodoApplication extends Application implements SharedPreferences.On
     private final static String TAG = TodoApplication.class.getSimpleName();
     private static Context m_appContext;
     private static SharedPreferences m_prefs;
-    public boolean m_pulling = false;
-    public boolean m_pushing = false;
     private RemoteClientManager remoteClientManager;
+    private SyncScheduler m_syncScheduler;
     private TaskBag taskBag;
+    private final FilterCache m_filterCache = new FilterCache();
     private LocalBroadcastManager localBroadcastManager;
     private BroadcastReceiver m_broadcastReceiver;
     private Handler handler = new Handler();
     private FileObserver m_observer;
+    // Time without changes to a watched file before it is reloaded
+    private final static long FILE_QUIET_PERIOD = 500;
+    private final Debouncer m_fileChanges = new Debouncer(FILE_QUIET_PERIOD);
     private File local_todo;
 
     public static Context getAppContext() {
@@ -88,6 +91,9 @@ public class TodoApplication extends Application implements SharedPreferences.On
             local_todo = new File(TodoApplication.getAppContext().getFilesDir(),"todo.txt");
         }
         initStorage(local_todo);
+        if (!isCloudLess()) {
+            m_syncScheduler = new SyncScheduler(new SyncOperations(), new SyncListener());
+        }
 
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(Constants.BROADCAST_SET_MANUAL);
@@ -129,22 +135,26 @@ public class TodoApplication extends Application implements SharedPreferences.On
         TaskBag.Preferences taskBagPreferences = new TaskBag.Preferences(
                 m_prefs);
         LocalFileTaskRepository localTaskRepository = new LocalFileTaskRepository(this, local_todo, taskBagPreferences);
+        m_filterCache.clear();
         if (isCloudLess()) {
             this.taskBag = new TaskBag(taskBagPreferences, localTaskRepository, null);
             Log.v(TAG, "Obs: " + localTaskRepository.getTodoTxtFile().getPath());
+            // A single save by another app can fire many events, the
+            // reload waits until the file stopped changing and runs in the
+            // background.
+            stopWatching();
             m_observer = new FileObserver(localTaskRepository.getTodoTxtFile().getParent(),
-                    FileObserver.ALL_EVENTS) {
+                    FileObserver.CLOSE_WRITE | FileObserver.MODIFY | FileObserver.MOVED_TO) {
                 @Override
                 public void onEvent(int event, String path) {
                     String todoFileName = new File(TodoApplication.this.getTodoFileName()).getName();
                     if (path!=null && path.equals(todoFileName) ) {
-                        if( event == FileObserver.CLOSE_WRITE ||
-                            event == FileObserver.MODIFY ||
-                            event == FileObserver.MOVED_TO) {
-                            Log.v(TAG, path + " modified reloading taskbag");
-                            taskBag.reload();
-                            updateUI();
-                        }
+                        m_fileChanges.trigger(path, new Runnable() {
+                            @Override
+                            public void run() {
+                                reloadTaskBag();
+                            }
+                        });
                     }
                 }
             };
@@ -157,6 +167,22 @@ public class TodoApplication extends Application implements SharedPreferences.On
         updateUI();
     }
 
+    /**
+     * Reloads the task bag on the calling thread and updates the user
+     * interface once if the tasks changed.
+     */
+    private void reloadTaskBag() {
+        Log.v(TAG, "Todo file changed, reloading taskbag");
+        if (taskBag.reload()) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    updateUI();
+                }
+            });
+        }
+    }
+
     public void openCloudlessFile(Activity act) {
 
         FileDialog fileDialog = new FileDialog(act,new File(getTodoFileName()).getAbsoluteFile().getParentFile(),showTxtOnly());
@@ -202,6 +228,12 @@ public class TodoApplication extends Application implements SharedPreferences.On
 
     @Override
     public void onTerminate() {
+        taskBag.flush();
+        stopWatching();
+        m_fileChanges.shutdown();
+        if (m_syncScheduler != null) {
+            m_syncScheduler.shutdown();
+        }
         localBroadcastManager.unregisterReceiver(m_broadcastReceiver);
         Log.v(TAG, "Deregistered receiver");
         m_prefs.unregisterOnSharedPreferenceChangeListener(this);
@@ -237,11 +269,9 @@ public class TodoApplication extends Application implements SharedPreferences.On
         setNeedToPush(true);
         if (!force && isManualMode()) {
             Log.i(TAG, "Working offline, don't push now");
-        } else if (!m_pulling) {
+        } else {
             Log.i(TAG, "Working online; should push if file revisions match");
             backgroundPushToRemote(overwrite);
-        } else {
-            Log.d(TAG, "app is pulling right now. don't start push."); // TODO
         }
     }
 
@@ -259,23 +289,22 @@ public class TodoApplication extends Application implements SharedPreferences.On
 
         setNeedToPush(false);
 
-        if (!m_pushing) {
-            Log.i(TAG, "Working online; should pull file");
-            backgroundPullFromRemote();
-        } else {
-            Log.d(TAG, "app is pushing right now. don't start pull."); // TODO
-            // remove
-            // after
-            // AsyncTask
-            // bug
-            // fixed
-        }
+        Log.i(TAG, "Working online; should pull file");
+        backgroundPullFromRemote();
     }
 
     public TaskBag getTaskBag() {
         return taskBag;
     }
 
+    /**
+     * @return the filtered and sorted tasks shared by the task list and
+     * the widgets
+     */
+    public FilterCache getFilterCache() {
+        return m_filterCache;
+    }
+
     public RemoteClientManager getRemoteClientManager() {
         return remoteClientManager;
     }
@@ -410,52 +439,7 @@ public class TodoApplication extends Application implements SharedPreferences.On
      */
     void backgroundPushToRemote(final boolean overwrite) {
         if (getRemoteClientManager().getRemoteClient().isAuthenticated()) {
-            Intent i = new Intent();
-            i.setAction(Constants.BROADCAST_SYNC_START);
-            localBroadcastManager.sendBroadcast(i);
-            m_pushing = true;
-
-            new AsyncTask<Void, Void, Integer>() {
-                static final int SUCCESS = 0;
-                static final int CONFLICT = 1;
-                static final int ERROR = 2;
-
-                @Override
-                protected Integer doInBackground(Void... params) {
-                    try {
-                        Log.d(TAG, "start taskBag.pushToRemote");
-                        taskBag.pushToRemote(true, overwrite);
-                    } catch (RemoteConflictException c) {
-                        Log.e(TAG, c.getMessage());
-                        return CONFLICT;
-                    } catch (Exception e) {
-                        Log.e(TAG, e.getMessage());
-                        return ERROR;
-                    }
-                    return SUCCESS;
-                }
-
-                @Override
-                protected void onPostExecute(Integer result) {
-                    Log.d(TAG, "post taskBag.pushToremote");
-                    Intent i = new Intent();
-                    i.setAction(Constants.BROADCAST_SYNC_DONE);
-                    localBroadcastManager.sendBroadcast(i);
-                    if (result == SUCCESS) {
-                        Log.d(TAG, "taskBag.pushToRemote done");
-                        m_pushing = false;
-                        setNeedToPush(false);
-                    } else if (result == CONFLICT) {
-                        // FIXME: need to know which file had conflict
-                        localBroadcastManager.sendBroadcast(new Intent(Constants.BROADCAST_SYNC_CONFLICT));
-                    } else {
-                        localBroadcastManager.sendBroadcast(new Intent(Constants.BROADCAST_ASYNC_FAILED));
-                    }
-                    super.onPostExecute(result);
-                }
-
-            }.execute();
-
+            m_syncScheduler.requestPush(overwrite);
         } else {
             Log.e(TAG, "NOT AUTHENTICATED!");
             showToast("NOT AUTHENTICATED!");
@@ -469,50 +453,79 @@ public class TodoApplication extends Application implements SharedPreferences.On
      */
     private void backgroundPullFromRemote() {
         if (getRemoteClientManager().getRemoteClient().isAuthenticated()) {
-            Intent i = new Intent();
-            i.setAction(Constants.BROADCAST_SYNC_START);
-            localBroadcastManager.sendBroadcast(i);
-            m_pulling = true;
-            // Comment out next line to avoid resetting list position at top;
-            // should maintain position of last action
-            // updateUI();
+            m_syncScheduler.requestPull();
+        } else {
+            Log.e(TAG, "NOT AUTHENTICATED!");
+        }
+    }
 
-            new AsyncTask<Void, Void, Boolean>() {
+    public SyncScheduler getSyncScheduler() {
+        return m_syncScheduler;
+    }
+
+    private final class SyncOperations implements SyncScheduler.Operations {
+        @Override
+        public void push(boolean overwrite) {
+            Log.d(TAG, "start taskBag.pushToRemote");
+            taskBag.pushToRemote(true, overwrite);
+        }
+
+        @Override
+        public void pull() {
+            Log.d(TAG, "start taskBag.pullFromRemote");
+            taskBag.pullFromRemote(true);
+        }
+    }
 
+    /**
+     * Reports the sync progress on the main thread.
+     */
+    private final class SyncListener implements SyncScheduler.Listener {
+        @Override
+        public void onSyncStart(int direction) {
+            handler.post(new Runnable() {
                 @Override
-                protected Boolean doInBackground(Void... params) {
-                    try {
-                        Log.d(TAG, "start taskBag.pullFromRemote");
-                        taskBag.pullFromRemote(true);
-                    } catch (Exception e) {
-                        Log.e(TAG, e.getMessage());
-                        return false;
-                    }
-                    return true;
+                public void run() {
+                    localBroadcastManager.sendBroadcast(new Intent(Constants.BROADCAST_SYNC_START));
                 }
+            });
+        }
 
+        @Override
+        public void onSyncDone(final int direction, final int result) {
+            if (direction == Constants.PULL && result == SyncScheduler.SUCCESS) {
+                // Still on the sync thread, keep the parsing off the main thread
+                taskBag.reload();
+            }
+            handler.post(new Runnable() {
                 @Override
-                protected void onPostExecute(Boolean result) {
-                    Log.d(TAG, "post taskBag.pullFromRemote");
-                    super.onPostExecute(result);
-                    if (result) {
-                        Log.d(TAG, "taskBag.pullFromRemote done");
-                        m_pulling = false;
-                        taskBag.reload();
-                        updateUI();
+                public void run() {
+                    Intent done = new Intent(Constants.BROADCAST_SYNC_DONE);
+                    done.putExtra(Constants.INTENT_SYNC_DIRECTION, direction);
+                    if (direction == Constants.PUSH) {
+                        Log.d(TAG, "post taskBag.pushToremote");
+                        localBroadcastManager.sendBroadcast(done);
+                        if (result == SyncScheduler.SUCCESS) {
+                            Log.d(TAG, "taskBag.pushToRemote done");
+                            setNeedToPush(false);
+                        } else if (result == SyncScheduler.CONFLICT) {
+                            // FIXME: need to know which file had conflict
+                            localBroadcastManager.sendBroadcast(new Intent(Constants.BROADCAST_SYNC_CONFLICT));
+                        } else {
+                            localBroadcastManager.sendBroadcast(new Intent(Constants.BROADCAST_ASYNC_FAILED));
+                        }
                     } else {
-                        localBroadcastManager.sendBroadcast(new Intent(Constants.BROADCAST_ASYNC_FAILED));
+                        Log.d(TAG, "post taskBag.pullFromRemote");
+                        if (result == SyncScheduler.SUCCESS) {
+                            Log.d(TAG, "taskBag.pullFromRemote done");
+                            updateUI();
+                        } else {
+                            localBroadcastManager.sendBroadcast(new Intent(Constants.BROADCAST_ASYNC_FAILED));
+                        }
+                        localBroadcastManager.sendBroadcast(done);
                     }
-                    super.onPostExecute(result);
-                    Intent i = new Intent();
-                    i.setAction(Constants.BROADCAST_SYNC_DONE);
-                    i.putExtra(Constants.INTENT_SYNC_DIRECTION,Constants.PULL);
-                    localBroadcastManager.sendBroadcast(i);
                 }
-
-            }.execute();
-        } else {
-            Log.e(TAG, "NOT AUTHENTICATED!");
+            });
         }
     }
 
@@ -617,8 +630,6 @@ public class TodoApplication extends Application implements SharedPreferences.On
             } else if (intent.getAction().endsWith(
                     Constants.BROADCAST_ASYNC_FAILED)) {
                 showToast("Synchronizing Failed");
-                m_pulling = false;
-                m_pushing = false;
                 updateUI();
             }
         }
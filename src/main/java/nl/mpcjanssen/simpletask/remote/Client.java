@@ -28,5 +28,6 @@ package nl.mpcjanssen.simpletask.remote;
  * @author Tim Barlotta
  */
 public enum Client {
-    DROPBOX
+    DROPBOX,
+    FILE_SYSTEM
 }
@@ -0,0 +1,73 @@
+/**
+ * This file is part of Simpletask.
+ *
+ * @license http://www.gnu.org/licenses/gpl.html
+ */
+package nl.mpcjanssen.simpletask.remote;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the transfers of several remote files at the same time.
+ *
+ * Every file is handled by its own task, which typically loads the metadata
+ * of the file and then transfers it, so the round trips for the files
+ * overlap instead of adding up.
+ */
+public class ConcurrentTransfers {
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "remote-transfer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Runs the tasks concurrently and waits until all are done. The last
+     * task runs on the calling thread.
+     *
+     * @throws RuntimeException the exception of the first failed task in
+     *                          list order
+     */
+    public static void run(List<? extends Runnable> tasks) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        int last = tasks.size() - 1;
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>(last);
+        for (int i = 0; i < last; i++) {
+            futures.add(EXECUTOR.submit(tasks.get(i)));
+        }
+        Throwable[] failures = new Throwable[tasks.size()];
+        try {
+            tasks.get(last).run();
+        } catch (RuntimeException e) {
+            failures[last] = e;
+        }
+        for (int i = 0; i < last; i++) {
+            try {
+                futures.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted while transferring", e);
+            } catch (ExecutionException e) {
+                failures[i] = e.getCause();
+            }
+        }
+        for (Throwable failure : failures) {
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            } else if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+        }
+    }
+}
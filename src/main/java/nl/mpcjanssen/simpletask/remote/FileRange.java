@@ -0,0 +1,169 @@
+/**
+ * This file is part of Simpletask.
+ *
+ * @license http://www.gnu.org/licenses/gpl.html
+ */
+package nl.mpcjanssen.simpletask.remote;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The first length bytes of a file, identified by their MD5 hash.
+ *
+ * Two files starting with the same range only differ after length, which is
+ * used to transfer only the bytes after a known range. The range of a
+ * complete file also tells whether its contents changed: unlike the
+ * modification time it only changes when the contents change, also on file
+ * systems which store the time with a resolution of seconds.
+ */
+public class FileRange {
+    public static final FileRange EMPTY = new FileRange(0, hash(new byte[0], 0));
+
+    private final long length;
+    private final String hash;
+    // Hash of the range before finishing it, to extend it, null if unknown
+    private final MessageDigest state;
+
+    public FileRange(long length, String hash) {
+        this(length, hash, null);
+    }
+
+    private FileRange(long length, String hash, MessageDigest state) {
+        this.length = length;
+        this.hash = hash;
+        this.state = state;
+    }
+
+    /**
+     * @return the range covering the complete file
+     */
+    public static FileRange of(File file) throws IOException {
+        return of(file, file.length());
+    }
+
+    /**
+     * @return the range covering the first length bytes of the file, null
+     * if the file is shorter
+     */
+    public static FileRange of(File file, long length) throws IOException {
+        if (!file.exists() || file.length() < length) {
+            return null;
+        }
+        return of(file, 0, length, digest());
+    }
+
+    /**
+     * @return the range covering the complete file, only hashing the bytes
+     * after this range. The file has to start with this range, as it does
+     * when bytes were only appended to it. Null if the file is shorter.
+     */
+    public FileRange extend(File file) throws IOException {
+        if (state == null) {
+            return of(file);
+        }
+        MessageDigest digest;
+        try {
+            digest = (MessageDigest) state.clone();
+        } catch (CloneNotSupportedException e) {
+            return of(file);
+        }
+        return of(file, length, file.length(), digest);
+    }
+
+    private static FileRange of(File file, long start, long length, MessageDigest digest) throws IOException {
+        if (!file.exists() || file.length() < length) {
+            return null;
+        }
+        FileInputStream is = new FileInputStream(file);
+        try {
+            if (is.skip(start) != start) {
+                return null;
+            }
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = length - start;
+            while (remaining > 0) {
+                int read = is.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    return null;
+                }
+                digest.update(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            is.close();
+        }
+        MessageDigest state;
+        try {
+            state = (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            state = null;
+        }
+        return new FileRange(length, toHex(digest.digest()), state);
+    }
+
+    /**
+     * @return true if the file consists of this range, the file is only
+     * read if it has the same size
+     */
+    public boolean matches(File file) throws IOException {
+        return file.exists() && file.length() == length && equals(of(file));
+    }
+
+    private static String hash(byte[] bytes, int length) {
+        MessageDigest digest = digest();
+        digest.update(bytes, 0, length);
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform supports MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        FileRange other = (FileRange) obj;
+        return length == other.length && hash.equals(other.hash);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (int) (length ^ (length >>> 32)) + hash.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return length + ":" + hash;
+    }
+}
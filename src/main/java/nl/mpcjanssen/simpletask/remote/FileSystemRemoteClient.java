@@ -0,0 +1,468 @@
+/**
+ * This file is part of Simpletask.
+ *
+ * @license http://www.gnu.org/licenses/gpl.html
+ */
+package nl.mpcjanssen.simpletask.remote;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Random;
+
+import nl.mpcjanssen.simpletask.util.Util;
+
+/**
+ * Remote client which uses a local directory as the remote side.
+ *
+ * It needs no network or account, which makes it possible to test and
+ * measure the sync code offline. The number of bytes moved between the
+ * local and the remote side is counted.
+ *
+ * Every remote file has a rev which changes with every upload, stored next
+ * to the file so several clients can share the directory like several
+ * devices share a Dropbox account. Revs are handled like the Dropbox
+ * client does: a pull skips files at the last synced rev and returns null
+ * for them, a push of a file
+ * changed remotely since the last sync merges the remote changes or fails
+ * with a {@link RemoteConflictException}, and an upload racing another
+ * upload leaves a conflicted copy next to the file.
+ *
+ * Latency and failures of the remote side can be injected with
+ * {@link #setLatency(long)}, {@link #setFailureRate(double, long)} and
+ * {@link #failNext(int)}.
+ */
+public class FileSystemRemoteClient implements RangedRemoteClient {
+	// Locks of the remote directories, shared by the clients of a directory
+	private static final HashMap<File, Object> LOCKS = new HashMap<File, Object>();
+
+	private final File m_remoteDir;
+	private final Object m_lock;
+	private final File m_pullDir;
+	// Revs at the last sync, the Dropbox client keeps these in the preferences
+	private final EnumMap<SyncFile, String> m_revs = new EnumMap<SyncFile, String>(SyncFile.class);
+	private long m_bytesUploaded;
+	private long m_bytesDownloaded;
+	private long m_latency;
+	private double m_failureRate;
+	private Random m_random = new Random();
+	private int m_failNext;
+
+	/**
+	 * @param remoteDir
+	 *            directory playing the remote side
+	 * @param pullDir
+	 *            directory the pulled files are stored in
+	 */
+	public FileSystemRemoteClient(File remoteDir, File pullDir) {
+		m_remoteDir = remoteDir;
+		m_pullDir = pullDir;
+		synchronized (LOCKS) {
+			Object lock = LOCKS.get(remoteDir.getAbsoluteFile());
+			if (lock == null) {
+				lock = new Object();
+				LOCKS.put(remoteDir.getAbsoluteFile(), lock);
+			}
+			m_lock = lock;
+		}
+	}
+
+	@Override
+	public Client getClient() {
+		return Client.FILE_SYSTEM;
+	}
+
+	@Override
+	public boolean authenticate() {
+		return true;
+	}
+
+	@Override
+	public boolean startLogin() {
+		return true;
+	}
+
+	@Override
+	public boolean finishLogin() {
+		return true;
+	}
+
+	@Override
+	public synchronized void deauthenticate() {
+		m_revs.clear();
+		for (SyncFile file : SyncFile.values()) {
+			getBaseFile(file).delete();
+		}
+	}
+
+	@Override
+	public boolean isAuthenticated() {
+		return true;
+	}
+
+	public File getRemoteFile(SyncFile file) {
+		return new File(m_remoteDir, file == SyncFile.TODO ? "todo.txt" : "done.txt");
+	}
+
+	private File getRevFile(SyncFile file) {
+		return new File(m_remoteDir, "." + getRemoteFile(file).getName() + ".rev");
+	}
+
+	/**
+	 * @return the copy of the file at the last synced rev
+	 */
+	private File getBaseFile(SyncFile file) {
+		return new File(m_pullDir, "base/" + getRemoteFile(file).getName());
+	}
+
+	/**
+	 * @return the current rev of the remote file, null if it doesn't exist
+	 */
+	public String getRemoteRev(SyncFile file) {
+		synchronized (m_lock) {
+			return readRev(file);
+		}
+	}
+
+	private String readRev(SyncFile file) {
+		if (!getRemoteFile(file).exists()) {
+			return null;
+		}
+		File revFile = getRevFile(file);
+		if (!revFile.exists()) {
+			// Files put in the directory by hand have no rev yet
+			return "0";
+		}
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(revFile));
+			try {
+				return reader.readLine();
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			throw new RemoteException("Failed to read rev of " + file, e);
+		}
+	}
+
+	/**
+	 * @return the rev of the last pull or push, null if never synced
+	 */
+	public synchronized String getSyncedRev(SyncFile file) {
+		return m_revs.get(file);
+	}
+
+	private String nextRev(SyncFile file) {
+		String rev = readRev(file);
+		String next = Long.toString(rev == null ? 1 : Long.parseLong(rev, 16) + 1, 16);
+		try {
+			FileWriter writer = new FileWriter(getRevFile(file));
+			try {
+				writer.write(next);
+			} finally {
+				writer.close();
+			}
+		} catch (IOException e) {
+			throw new RemoteException("Failed to store rev of " + file, e);
+		}
+		return next;
+	}
+
+	/**
+	 * Sets the delay of every call to the remote side.
+	 */
+	public synchronized void setLatency(long millis) {
+		m_latency = millis;
+	}
+
+	/**
+	 * Lets a fraction of the calls to the remote side fail with a
+	 * {@link RemoteException}.
+	 * 
+	 * @param seed
+	 *            seed of the random failures, to repeat a run
+	 */
+	public synchronized void setFailureRate(double rate, long seed) {
+		m_failureRate = rate;
+		m_random = new Random(seed);
+	}
+
+	/**
+	 * Lets the next count calls to the remote side fail with a
+	 * {@link RemoteException}.
+	 */
+	public synchronized void failNext(int count) {
+		m_failNext = count;
+	}
+
+	/**
+	 * Simulates one call to the remote side, calls of concurrent transfers
+	 * overlap.
+	 */
+	private void call(String operation) {
+		long latency;
+		boolean fail;
+		synchronized (this) {
+			latency = m_latency;
+			fail = m_failNext > 0 || (m_failureRate > 0 && m_random.nextDouble() < m_failureRate);
+			if (m_failNext > 0) {
+				m_failNext--;
+			}
+		}
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RemoteException("Interrupted during " + operation, e);
+			}
+		}
+		if (fail) {
+			throw new RemoteException("Injected failure during " + operation);
+		}
+	}
+
+	@Override
+	public PullTodoResult pullTodo() {
+		final File[] pulled = new File[2];
+		ArrayList<Runnable> transfers = new ArrayList<Runnable>();
+		for (final SyncFile file : SyncFile.values()) {
+			transfers.add(new Runnable() {
+				@Override
+				public void run() {
+					pulled[file.ordinal()] = pull(file);
+				}
+			});
+		}
+		ConcurrentTransfers.run(transfers);
+		return new PullTodoResult(pulled[SyncFile.TODO.ordinal()], pulled[SyncFile.DONE.ordinal()]);
+	}
+
+	@Override
+	public PullTodoResult pullTodoOnly() {
+		return new PullTodoResult(pull(SyncFile.TODO), null);
+	}
+
+	/**
+	 * @return the downloaded file, null if the remote file doesn't exist or
+	 *         is still at the last synced rev
+	 */
+	private File pull(SyncFile file) {
+		call("metadata " + file);
+		String rev = getRemoteRev(file);
+		if (rev == null) {
+			return null;
+		}
+		File remote = getRemoteFile(file);
+		File local = new File(m_pullDir, remote.getName());
+		// The pulled file may have been moved, the base copy shows it was
+		// pulled before
+		if (rev.equals(getSyncedRev(file)) && getBaseFile(file).exists()) {
+			// don't bother downloading if the rev is the same
+			return null;
+		}
+		call("download " + file);
+		synchronized (m_lock) {
+			downloaded(copy(remote, 0, local, false));
+			synced(file, local, readRev(file));
+		}
+		return local;
+	}
+
+	@Override
+	public void pushTodo(File todoFile, File doneFile, boolean overwrite) {
+		final File[] locals = { todoFile, doneFile };
+		final String[] parentRevs = new String[2];
+		final boolean force = overwrite;
+		// Check every file before uploading any, like the Dropbox uploader
+		ArrayList<Runnable> checks = new ArrayList<Runnable>();
+		ArrayList<Runnable> uploads = new ArrayList<Runnable>();
+		for (final SyncFile file : SyncFile.values()) {
+			final int i = file.ordinal();
+			if (locals[i] == null) {
+				continue;
+			}
+			checks.add(new Runnable() {
+				@Override
+				public void run() {
+					parentRevs[i] = checkRev(file, locals[i], force);
+				}
+			});
+			uploads.add(new Runnable() {
+				@Override
+				public void run() {
+					upload(file, locals[i], parentRevs[i]);
+				}
+			});
+		}
+		ConcurrentTransfers.run(checks);
+		ConcurrentTransfers.run(uploads);
+	}
+
+	/**
+	 * Merges the remote changes into local if the remote file changed since
+	 * the last sync.
+	 * 
+	 * @return the remote rev local is based on now, the parent rev of the
+	 *         upload
+	 */
+	private String checkRev(SyncFile file, File local, boolean overwrite) {
+		call("metadata " + file);
+		String rev = getRemoteRev(file);
+		if (overwrite || rev == null || rev.equals(getSyncedRev(file))) {
+			return rev;
+		}
+		File base = getBaseFile(file);
+		if (base.exists()) {
+			call("download " + file);
+			File remote = new File(local.getParentFile(), "." + local.getName() + ".remote");
+			try {
+				synchronized (m_lock) {
+					downloaded(copy(getRemoteFile(file), 0, remote, false));
+				}
+				TodoMerge merge = TodoMerge.merge(base, local, remote, local);
+				if (!merge.hasConflicts()) {
+					return rev;
+				}
+			} catch (IOException e) {
+				throw new RemoteException("Problem with IO", e);
+			} finally {
+				remote.delete();
+			}
+		}
+		throw new RemoteConflictException("Local file " + getRemoteFile(file)
+				+ " conflicts with remote version.");
+	}
+
+	private void upload(SyncFile file, File local, String parentRev) {
+		call("upload " + file);
+		File remote = getRemoteFile(file);
+		synchronized (m_lock) {
+			String rev = readRev(file);
+			if (rev != null && !rev.equals(parentRev)) {
+				// Another upload came first, Dropbox keeps both versions
+				String name = remote.getName().replace(".txt", " (conflicted copy).txt");
+				uploaded(copy(local, 0, new File(m_remoteDir, name), false));
+				throw new RemoteConflictException("Local file " + remote
+						+ " conflicts with remote version.");
+			}
+			uploaded(copy(local, 0, remote, false));
+			synced(file, local, nextRev(file));
+		}
+	}
+
+	/**
+	 * Remembers the rev and the contents of a synced file.
+	 */
+	private void synced(SyncFile file, File local, String rev) {
+		synchronized (this) {
+			m_revs.put(file, rev);
+		}
+		copy(local, 0, getBaseFile(file), false);
+	}
+
+	@Override
+	public FileRange getRange(SyncFile file) {
+		call("metadata " + file);
+		File remote = getRemoteFile(file);
+		synchronized (m_lock) {
+			if (!remote.exists()) {
+				return null;
+			}
+			return range(remote, remote.length());
+		}
+	}
+
+	@Override
+	public FileRange append(SyncFile file, File local, FileRange remoteRange) {
+		call("append " + file);
+		File remote = getRemoteFile(file);
+		long length = remoteRange.getLength();
+		synchronized (m_lock) {
+			if (remote.exists() ? !remoteRange.equals(range(remote, remote.length())) : length != 0) {
+				return null;
+			}
+			uploaded(copy(local, length, remote, true));
+			synced(file, local, nextRev(file));
+			return range(remote, remote.length());
+		}
+	}
+
+	@Override
+	public FileRange download(SyncFile file, File local, FileRange localRange) {
+		call("download " + file);
+		File remote = getRemoteFile(file);
+		long length = localRange.getLength();
+		synchronized (m_lock) {
+			if (!remote.exists() || !localRange.equals(range(remote, length))) {
+				return null;
+			}
+			downloaded(copy(remote, length, local, length > 0));
+			synced(file, local, readRev(file));
+		}
+		return range(local, local.length());
+	}
+
+	private static FileRange range(File file, long length) {
+		try {
+			return FileRange.of(file, length);
+		} catch (IOException e) {
+			throw new RemoteException("Failed to read " + file, e);
+		}
+	}
+
+	/**
+	 * Copies the bytes of from after offset to the end of to.
+	 * 
+	 * @return the number of bytes copied
+	 */
+	private static long copy(File from, long offset, File to, boolean append) {
+		try {
+			Util.createParentDirectory(to);
+			FileInputStream is = new FileInputStream(from);
+			try {
+				FileOutputStream os = new FileOutputStream(to, append);
+				try {
+					FileChannel in = is.getChannel();
+					FileChannel out = os.getChannel();
+					long size = in.size();
+					long position = offset;
+					while (position < size) {
+						position += in.transferTo(position, size - position, out);
+					}
+					return Math.max(0, size - offset);
+				} finally {
+					os.close();
+				}
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			throw new RemoteException("Failed to copy " + from + " to " + to, e);
+		}
+	}
+
+	private synchronized void uploaded(long bytes) {
+		m_bytesUploaded += bytes;
+	}
+
+	private synchronized void downloaded(long bytes) {
+		m_bytesDownloaded += bytes;
+	}
+
+	public synchronized long getBytesUploaded() {
+		return m_bytesUploaded;
+	}
+
+	public synchronized long getBytesDownloaded() {
+		return m_bytesDownloaded;
+	}
+}
@@ -0,0 +1,56 @@
+/**
+ * This file is part of Simpletask.
+ *
+ * @license http://www.gnu.org/licenses/gpl.html
+ */
+package nl.mpcjanssen.simpletask.remote;
+
+import java.io.File;
+
+/**
+ * A remote client which can transfer the end of a file only.
+ *
+ * Files like done.txt only grow, after the first sync only the appended
+ * bytes have to be transferred. Both sides identify the part they already
+ * share with a {@link FileRange}; when the other side doesn't start with
+ * that range the transfer is refused and the caller falls back to
+ * transferring the whole file.
+ */
+public interface RangedRemoteClient extends RemoteClient {
+
+	/**
+	 * @return the range covering the complete remote file, null if the
+	 *         remote file doesn't exist
+	 */
+	FileRange getRange(SyncFile file);
+
+	/**
+	 * Appends the bytes of local after remoteRange to the remote file.
+	 * 
+	 * @param remoteRange
+	 *            the expected range of the complete remote file, which
+	 *            local has to start with
+	 * @return the range of the complete remote file after the append, null
+	 *         if the remote file doesn't match remoteRange
+	 */
+	FileRange append(SyncFile file, File local, FileRange remoteRange);
+
+	/**
+	 * Appends the bytes of the remote file after localRange to local.
+	 * 
+	 * @param localRange
+	 *            the range of the complete local file, which the remote
+	 *            file has to start with
+	 * @return the range of the complete local file after the download,
+	 *         null if the remote file doesn't start with localRange
+	 */
+	FileRange download(SyncFile file, File local, FileRange localRange);
+
+	/**
+	 * Pull the remote todo.txt only, done.txt is transferred with
+	 * {@link #download(SyncFile, File, FileRange)}.
+	 * 
+	 * @return the result, the done file of the result is always null
+	 */
+	PullTodoResult pullTodoOnly();
+}
@@ -46,6 +46,14 @@ public class RemoteClientManager implements
         currentClient.authenticate();
     }
 
+    /**
+     * Manager for a given client, for instance a
+     * {@link FileSystemRemoteClient} to sync without an account.
+     */
+    public RemoteClientManager(RemoteClient client) {
+        this.currentClient = client;
+    }
+
     public RemoteClient getRemoteClient() {
         return currentClient;
     }
@@ -58,6 +66,8 @@ public class RemoteClientManager implements
      * @return
      */
     private RemoteClient getRemoteClient(Client clientToken) {
+        // A file system client needs its directories, it is passed in
+        // instead
         return new DropboxRemoteClient(todoApplication, sharedPreferences);
     }
 
@@ -0,0 +1,14 @@
+/**
+ * This file is part of Simpletask.
+ *
+ * @license http://www.gnu.org/licenses/gpl.html
+ */
+package nl.mpcjanssen.simpletask.remote;
+
+/**
+ * The files kept in sync with a remote client
+ */
+public enum SyncFile {
+    TODO,
+    DONE
+}
@@ -0,0 +1,243 @@
+/**
+ * This file is part of Simpletask.
+ *
+ * @license http://www.gnu.org/licenses/gpl.html
+ */
+package nl.mpcjanssen.simpletask.remote;
+
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import nl.mpcjanssen.simpletask.Constants;
+
+/**
+ * Runs pushes and pulls on a single background thread.
+ *
+ * Push requests are delayed by a short window and all push requests
+ * arriving in that window are handled by a single push. A pull request
+ * runs right away, after the pending push if there is one, so local
+ * changes are never replaced by the pull. Because there is only one sync
+ * thread, a push or pull never overlaps with another one.
+ *
+ * An operation failing with a {@link RemoteException} is retried with an
+ * exponentially growing delay, requests arriving in the mean time join the
+ * retry. Conflicts and other errors are reported to the listener right
+ * away.
+ */
+public class SyncScheduler {
+    final static String TAG = SyncScheduler.class.getSimpleName();
+
+    public static final int SUCCESS = 0;
+    public static final int CONFLICT = 1;
+    public static final int ERROR = 2;
+
+    private static final long PUSH_WINDOW = 2000;
+    private static final long INITIAL_BACKOFF = 5000;
+    private static final long MAX_BACKOFF = 5 * 60 * 1000;
+    private static final int MAX_ATTEMPTS = 6;
+
+    public interface Operations {
+        void push(boolean overwrite);
+
+        void pull();
+    }
+
+    /**
+     * Called on the sync thread.
+     */
+    public interface Listener {
+        void onSyncStart(int direction);
+
+        /**
+         * @param result one of {@link #SUCCESS}, {@link #CONFLICT} or {@link #ERROR}
+         */
+        void onSyncDone(int direction, int result);
+    }
+
+    private final Operations m_operations;
+    private final Listener m_listener;
+    private final long m_pushWindow;
+    private final long m_initialBackoff;
+    private final long m_maxBackoff;
+    private final int m_maxAttempts;
+    private final ScheduledExecutorService m_executor = Executors.newSingleThreadScheduledExecutor();
+
+    // Requests waiting to run, by direction
+    private final Request[] m_pending = new Request[2];
+    private int m_coalesced;
+    private long m_lastSyncLatency = -1;
+    private long m_lastSyncDuration = -1;
+
+    private class Request implements Runnable {
+        final int direction;
+        final long requested;
+        boolean overwrite;
+        int attempt;
+        ScheduledFuture<?> future;
+
+        Request(int direction, boolean overwrite, long requested) {
+            this.direction = direction;
+            this.overwrite = overwrite;
+            this.requested = requested;
+        }
+
+        @Override
+        public void run() {
+            synchronized (SyncScheduler.this) {
+                if (m_pending[direction] == this) {
+                    // Requests arriving from now on need another run
+                    m_pending[direction] = null;
+                }
+            }
+            if (attempt == 0) {
+                m_listener.onSyncStart(direction);
+            }
+            long start = System.currentTimeMillis();
+            int result;
+            try {
+                if (direction == Constants.PUSH) {
+                    m_operations.push(overwrite);
+                } else {
+                    m_operations.pull();
+                }
+                result = SUCCESS;
+            } catch (RemoteConflictException e) {
+                Log.e(TAG, "Conflict: " + e.getMessage());
+                result = CONFLICT;
+            } catch (RemoteException e) {
+                if (retry(this)) {
+                    Log.w(TAG, "Sync failed, retrying: " + e.getMessage());
+                    return;
+                }
+                Log.e(TAG, "Sync failed: " + e.getMessage());
+                result = ERROR;
+            } catch (Exception e) {
+                Log.e(TAG, "Sync failed: " + e.getMessage());
+                result = ERROR;
+            }
+            if (result == SUCCESS) {
+                synchronized (SyncScheduler.this) {
+                    long end = System.currentTimeMillis();
+                    m_lastSyncDuration = end - start;
+                    m_lastSyncLatency = end - requested;
+                }
+            }
+            m_listener.onSyncDone(direction, result);
+        }
+    }
+
+    public SyncScheduler(Operations operations, Listener listener) {
+        this(operations, listener, PUSH_WINDOW, INITIAL_BACKOFF, MAX_BACKOFF, MAX_ATTEMPTS);
+    }
+
+    SyncScheduler(Operations operations, Listener listener, long pushWindow,
+                  long initialBackoff, long maxBackoff, int maxAttempts) {
+        m_operations = operations;
+        m_listener = listener;
+        m_pushWindow = pushWindow;
+        m_initialBackoff = initialBackoff;
+        m_maxBackoff = maxBackoff;
+        m_maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Push after the push window, together with other push requests in
+     * that window.
+     *
+     * @param overwrite overwrite the remote files, applies to the combined
+     *                  push if any of the requests asks for it
+     */
+    public synchronized void requestPush(boolean overwrite) {
+        Request pending = m_pending[Constants.PUSH];
+        if (pending != null) {
+            pending.overwrite |= overwrite;
+            m_coalesced++;
+            return;
+        }
+        schedule(new Request(Constants.PUSH, overwrite, System.currentTimeMillis()), m_pushWindow);
+    }
+
+    /**
+     * Pull as soon as possible, a pending push is done first.
+     */
+    public synchronized void requestPull() {
+        Request push = m_pending[Constants.PUSH];
+        if (push != null && push.future.getDelay(TimeUnit.MILLISECONDS) > 0
+                && push.future.cancel(false)) {
+            schedule(push, 0);
+        }
+        if (m_pending[Constants.PULL] != null) {
+            m_coalesced++;
+            return;
+        }
+        schedule(new Request(Constants.PULL, false, System.currentTimeMillis()), 0);
+    }
+
+    private void schedule(Request request, long delay) {
+        m_pending[request.direction] = request;
+        request.future = m_executor.schedule(request, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return false if the request failed too often
+     */
+    private synchronized boolean retry(Request request) {
+        if (request.attempt + 1 >= m_maxAttempts) {
+            return false;
+        }
+        Request pending = m_pending[request.direction];
+        if (pending != null) {
+            // A newer request covers this one
+            pending.overwrite |= request.overwrite;
+            return true;
+        }
+        request.attempt++;
+        long backoff = Math.min(m_maxBackoff, m_initialBackoff << (request.attempt - 1));
+        schedule(request, backoff);
+        return true;
+    }
+
+    /**
+     * @return the number of requested operations which haven't started yet
+     */
+    public synchronized int getQueueDepth() {
+        int depth = 0;
+        for (Request request : m_pending) {
+            if (request != null) {
+                depth++;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * @return the number of requests which were combined with a pending one
+     */
+    public synchronized int getCoalescedRequests() {
+        return m_coalesced;
+    }
+
+    /**
+     * @return the time in ms from the request of the last successful sync
+     * until it was done, -1 if there was none
+     */
+    public synchronized long getLastSyncLatency() {
+        return m_lastSyncLatency;
+    }
+
+    /**
+     * @return the time in ms the last successful sync operation took, -1 if
+     * there was none
+     */
+    public synchronized long getLastSyncDuration() {
+        return m_lastSyncDuration;
+    }
+
+    public void shutdown() {
+        m_executor.shutdownNow();
+    }
+}
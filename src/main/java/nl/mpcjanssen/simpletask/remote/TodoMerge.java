@@ -0,0 +1,215 @@
+/**
+ * This file is part of Simpletask.
+ *
+ * @license http://www.gnu.org/licenses/gpl.html
+ */
+package nl.mpcjanssen.simpletask.remote;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+import nl.mpcjanssen.simpletask.task.Task;
+import nl.mpcjanssen.simpletask.util.TaskIo;
+
+/**
+ * Three way merge of todo.txt files on line level.
+ *
+ * Lines are identified by their text: a line of the base version which is
+ * missing on one side was removed on that side, a line which is not in the
+ * base version was added. An edited task shows up as a removed line with
+ * lines added in the same place.
+ *
+ * The merged result follows the local order. Lines removed on the remote
+ * side are dropped and lines added on the remote side are inserted after
+ * the nearest preceding line they share with the local version and the
+ * lines added locally in the same place. Lines added on both sides are only
+ * kept once.
+ *
+ * A base line that was removed on both sides while both sides added
+ * different lines in its place was edited on both sides. These lines are
+ * reported as conflicts; the merged result then contains both edits.
+ */
+public class TodoMerge {
+    private final ArrayList<String> m_lines = new ArrayList<String>();
+    private final ArrayList<String> m_conflicts = new ArrayList<String>();
+
+    /**
+     * Matching of one side against the base version.
+     */
+    private static class Side {
+        // Index in the base of every line or -1 for added lines
+        final int[] baseIndex;
+        // Base lines still present on this side
+        final boolean[] kept;
+        // Added lines by the base index of the preceding kept line
+        final HashMap<Integer, ArrayList<String>> added = new HashMap<Integer, ArrayList<String>>();
+
+        Side(List<String> base, List<String> lines) {
+            HashMap<String, LinkedList<Integer>> positions = new HashMap<String, LinkedList<Integer>>();
+            for (int i = 0; i < base.size(); i++) {
+                LinkedList<Integer> list = positions.get(base.get(i));
+                if (list == null) {
+                    list = new LinkedList<Integer>();
+                    positions.put(base.get(i), list);
+                }
+                list.add(i);
+            }
+            baseIndex = new int[lines.size()];
+            kept = new boolean[base.size()];
+            int anchor = -1;
+            for (int j = 0; j < lines.size(); j++) {
+                LinkedList<Integer> list = positions.get(lines.get(j));
+                if (list != null && list.size() > 0) {
+                    baseIndex[j] = list.removeFirst();
+                    kept[baseIndex[j]] = true;
+                    anchor = baseIndex[j];
+                } else {
+                    baseIndex[j] = -1;
+                    ArrayList<String> gap = added.get(anchor);
+                    if (gap == null) {
+                        gap = new ArrayList<String>();
+                        added.put(anchor, gap);
+                    }
+                    gap.add(lines.get(j));
+                }
+            }
+        }
+
+        /**
+         * @return the base index of the last line at or before index which
+         * is still present on this side, -1 if there is none
+         */
+        int keptBefore(int index) {
+            while (index >= 0 && !kept[index]) {
+                index--;
+            }
+            return index;
+        }
+
+        ArrayList<String> addedAfter(int index) {
+            ArrayList<String> gap = added.get(index);
+            return gap == null ? new ArrayList<String>() : gap;
+        }
+    }
+
+    private TodoMerge(List<String> base, List<String> local, List<String> remote) {
+        Side localSide = new Side(base, local);
+        Side remoteSide = new Side(base, remote);
+
+        for (int i = 0; i < base.size(); i++) {
+            if (localSide.kept[i] || remoteSide.kept[i]) {
+                continue;
+            }
+            ArrayList<String> localEdit = localSide.addedAfter(localSide.keptBefore(i));
+            ArrayList<String> remoteEdit = remoteSide.addedAfter(remoteSide.keptBefore(i));
+            if (localEdit.size() > 0 && remoteEdit.size() > 0 && !localEdit.containsAll(remoteEdit)) {
+                m_conflicts.add(base.get(i));
+            }
+        }
+
+        // Remote additions by the local line they follow
+        HashMap<Integer, ArrayList<String>> remoteAdded = new HashMap<Integer, ArrayList<String>>();
+        ArrayList<Integer> anchors = new ArrayList<Integer>(remoteSide.added.keySet());
+        Collections.sort(anchors);
+        for (Integer anchor : anchors) {
+            int localAnchor = localSide.keptBefore(anchor);
+            ArrayList<String> gap = remoteAdded.get(localAnchor);
+            if (gap == null) {
+                gap = new ArrayList<String>();
+                remoteAdded.put(localAnchor, gap);
+            }
+            gap.addAll(remoteSide.added.get(anchor));
+        }
+        // Lines added on both sides are only kept once
+        HashMap<String, Integer> localAdded = new HashMap<String, Integer>();
+        for (int j = 0; j < local.size(); j++) {
+            if (localSide.baseIndex[j] == -1) {
+                Integer count = localAdded.get(local.get(j));
+                localAdded.put(local.get(j), count == null ? 1 : count + 1);
+            }
+        }
+
+        // Remote additions go after the local additions in the same place
+        int anchor = -1;
+        for (int j = 0; j < local.size(); j++) {
+            int index = localSide.baseIndex[j];
+            if (index != -1) {
+                addRemote(remoteAdded.get(anchor), localAdded);
+                anchor = index;
+            }
+            if (index == -1 || remoteSide.kept[index]) {
+                m_lines.add(local.get(j));
+            }
+        }
+        addRemote(remoteAdded.get(anchor), localAdded);
+    }
+
+    private void addRemote(ArrayList<String> lines, HashMap<String, Integer> localAdded) {
+        if (lines == null) {
+            return;
+        }
+        for (String line : lines) {
+            Integer count = localAdded.get(line);
+            if (count != null && count > 0) {
+                localAdded.put(line, count - 1);
+            } else {
+                m_lines.add(line);
+            }
+        }
+    }
+
+    public static TodoMerge merge(List<String> base, List<String> local, List<String> remote) {
+        return new TodoMerge(base, local, remote);
+    }
+
+    /**
+     * Merges the task files, the line breaks of the local file are kept.
+     *
+     * @return the merge, the merged tasks are only written to target if
+     * there were no conflicts
+     */
+    public static TodoMerge merge(File base, File local, File remote, File target) throws IOException {
+        List<String> baseLines = lines(TaskIo.loadTasksFromFile(base).getTasks());
+        List<String> remoteLines = lines(TaskIo.loadTasksFromFile(remote).getTasks());
+        TaskIo.LoadedTasks localTasks = TaskIo.loadTasksFromFile(local);
+        List<String> localLines = lines(localTasks.getTasks());
+        boolean windowsLineBreaks = localTasks.hasWindowsLineBreaks();
+        TodoMerge merge = merge(baseLines, localLines, remoteLines);
+        if (!merge.hasConflicts()) {
+            ArrayList<Task> tasks = new ArrayList<Task>();
+            for (String line : merge.getLines()) {
+                tasks.add(new Task(tasks.size(), line));
+            }
+            TaskIo.writeToFile(tasks, target, windowsLineBreaks);
+        }
+        return merge;
+    }
+
+    private static List<String> lines(List<Task> tasks) {
+        ArrayList<String> lines = new ArrayList<String>(tasks.size());
+        for (Task t : tasks) {
+            lines.add(t.inFileFormat());
+        }
+        return lines;
+    }
+
+    public ArrayList<String> getLines() {
+        return m_lines;
+    }
+
+    /**
+     * @return the base lines which were edited on both sides
+     */
+    public ArrayList<String> getConflicts() {
+        return m_conflicts;
+    }
+
+    public boolean hasConflicts() {
+        return m_conflicts.size() > 0;
+    }
+}
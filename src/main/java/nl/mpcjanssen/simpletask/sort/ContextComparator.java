@@ -2,7 +2,6 @@ package nl.mpcjanssen.simpletask.sort;
 
 import nl.mpcjanssen.simpletask.task.Task;
 
-import java.util.Collections;
 import java.util.List;
 
 public class ContextComparator extends ReversableComparator {
@@ -23,8 +22,6 @@ public class ContextComparator extends ReversableComparator {
         } else if (!contextsA.isEmpty() && contextsB.isEmpty()) {
             return 1;
         } else {
-            Collections.sort(contextsA);
-            Collections.sort(contextsB);
             return contextsA.get(0).compareToIgnoreCase(contextsB.get(0));
         }
     }
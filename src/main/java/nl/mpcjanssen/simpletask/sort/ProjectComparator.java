@@ -2,7 +2,6 @@ package nl.mpcjanssen.simpletask.sort;
 
 import nl.mpcjanssen.simpletask.task.Task;
 
-import java.util.Collections;
 import java.util.List;
 
 public class ProjectComparator extends ReversableComparator {
@@ -22,8 +21,6 @@ public class ProjectComparator extends ReversableComparator {
         } else if (!projectsA.isEmpty() && projectsB.isEmpty()) {
             return -1;
         } else {
-            Collections.sort(projectsA);
-            Collections.sort(projectsB);
             return projectsA.get(0).compareToIgnoreCase(projectsB.get(0));
         }
     }
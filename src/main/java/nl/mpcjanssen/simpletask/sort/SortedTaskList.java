@@ -0,0 +1,173 @@
+package nl.mpcjanssen.simpletask.sort;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import nl.mpcjanssen.simpletask.ActiveFilter;
+import nl.mpcjanssen.simpletask.task.Task;
+
+/**
+ * The filtered and sorted tasks shown in the task list.
+ *
+ * After a full reset the list can follow changes to single tasks: changed and
+ * new tasks are matched against the filter and inserted with a binary search,
+ * removed tasks are dropped. Tasks which sort equal keep the order they have
+ * in the task bag, so the result is the same as filtering and sorting the
+ * whole bag again.
+ */
+public class SortedTaskList {
+    private final ActiveFilter m_filter;
+    private final boolean m_addAtEnd;
+    private final ArrayList<Task> m_tasks = new ArrayList<Task>();
+    // Relative position of every task in the task bag
+    private final IdentityHashMap<Task, Integer> m_order = new IdentityHashMap<Task, Integer>();
+    private int m_firstOrder;
+    private int m_lastOrder;
+    private Comparator<Task> m_comparator;
+
+    /**
+     * @param addAtEnd true if the bag adds new tasks at the end, false if at the start
+     */
+    public SortedTaskList(ActiveFilter filter, boolean addAtEnd) {
+        m_filter = filter;
+        m_addAtEnd = addAtEnd;
+    }
+
+    /**
+     * Replaces the list.
+     *
+     * @param all     all tasks in the bag, in bag order
+     * @param matched the tasks matching the filter, in bag order
+     */
+    public void reset(List<Task> all, List<Task> matched) {
+        ArrayList<Task> sorted = new ArrayList<Task>(matched);
+        TaskSorter.sort(sorted, m_filter.getSort());
+        resetSorted(all, sorted);
+    }
+
+    /**
+     * Replaces the list by tasks which are already filtered and sorted,
+     * for instance by the {@link nl.mpcjanssen.simpletask.FilterCache}.
+     *
+     * @param all    all tasks in the bag, in bag order
+     * @param sorted the tasks matching the filter, in sort order
+     */
+    public void resetSorted(List<Task> all, List<Task> sorted) {
+        ArrayList<String> sorts = m_filter.getSort();
+        m_order.clear();
+        for (int i = 0; i < all.size(); i++) {
+            m_order.put(all.get(i), i);
+        }
+        m_firstOrder = 0;
+        m_lastOrder = all.size() - 1;
+        m_tasks.clear();
+        m_tasks.addAll(sorted);
+        @SuppressWarnings("unchecked")
+        final Comparator<Task> sortComparator = MultiComparator.create(sorts);
+        m_comparator = new Comparator<Task>() {
+            @Override
+            public int compare(Task a, Task b) {
+                int result = sortComparator.compare(a, b);
+                if (result != 0) {
+                    return result;
+                }
+                return m_order.get(a).compareTo(m_order.get(b));
+            }
+        };
+    }
+
+    /**
+     * Applies a change set to the list. Tasks can be changed in place
+     * before calling this, their old position is found by identity.
+     *
+     * @return false if the list was never reset and can't be updated
+     */
+    public boolean update(Collection<Task> added, Collection<Task> removed, Collection<Task> modified) {
+        if (m_comparator == null) {
+            return false;
+        }
+        for (Task t : removed) {
+            if (t != null) {
+                remove(t);
+                m_order.remove(t);
+            }
+        }
+        for (Task t : added) {
+            if (t != null && !m_order.containsKey(t)) {
+                m_order.put(t, m_addAtEnd ? ++m_lastOrder : --m_firstOrder);
+                insert(t);
+            }
+        }
+        for (Task t : modified) {
+            if (t != null && m_order.containsKey(t)) {
+                remove(t);
+                insert(t);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replaces tasks by their changed copies, a copy takes the place of
+     * the task it replaces among the tasks which sort equal.
+     *
+     * @param changed the copies in the order of tasks, null for tasks
+     *                which weren't replaced
+     * @return false if the list was never reset and can't be updated
+     */
+    public boolean replace(List<Task> tasks, List<Task> changed) {
+        if (m_comparator == null) {
+            return false;
+        }
+        for (int i = 0; i < tasks.size(); i++) {
+            Task t = tasks.get(i);
+            Task copy = changed.get(i);
+            if (t == null || copy == null) {
+                continue;
+            }
+            Integer order = m_order.remove(t);
+            if (order != null) {
+                remove(t);
+                m_order.put(copy, order);
+                insert(copy);
+            }
+        }
+        return true;
+    }
+
+    private void remove(Task t) {
+        for (int i = 0; i < m_tasks.size(); i++) {
+            if (m_tasks.get(i) == t) {
+                m_tasks.remove(i);
+                return;
+            }
+        }
+    }
+
+    private void insert(Task t) {
+        if (!m_filter.matches(t)) {
+            return;
+        }
+        int low = 0;
+        int high = m_tasks.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (m_comparator.compare(m_tasks.get(mid), t) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        m_tasks.add(low, t);
+    }
+
+    /**
+     * @return the filtered and sorted tasks, the list should not be modified
+     */
+    public ArrayList<Task> getTasks() {
+        return m_tasks;
+    }
+}
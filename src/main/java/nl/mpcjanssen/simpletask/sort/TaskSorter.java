@@ -0,0 +1,278 @@
+package nl.mpcjanssen.simpletask.sort;
+
+import android.util.Log;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Locale;
+
+import nl.mpcjanssen.simpletask.ActiveFilter;
+import nl.mpcjanssen.simpletask.Constants;
+import nl.mpcjanssen.simpletask.task.Priority;
+import nl.mpcjanssen.simpletask.task.Task;
+import nl.mpcjanssen.simpletask.util.Strings;
+
+/**
+ * Sorts tasks in the same order as {@link MultiComparator}, but derives the
+ * sort keys of every task only once.
+ *
+ * Every sort criterion is turned into a long per task before sorting, strings
+ * (contexts, projects and the text) are replaced by their rank among the
+ * distinct values. The sort itself only compares these longs.
+ */
+public class TaskSorter {
+    private static final int FILE_ORDER = 0;
+    private static final int BY_CONTEXT = 1;
+    private static final int BY_PROJECT = 2;
+    private static final int ALPHABETICAL = 3;
+    private static final int BY_PRIO = 4;
+    private static final int COMPLETED = 5;
+    private static final int BY_CREATION_DATE = 6;
+    private static final int IN_FUTURE = 7;
+    private static final int BY_DUE_DATE = 8;
+    private static final int BY_THRESHOLD_DATE = 9;
+
+    // Sorts after every other value, used for missing dates etc.
+    private static final long LAST = Long.MAX_VALUE;
+
+    private final int[] m_types;
+    private final boolean[] m_reversed;
+
+    private static class Key {
+        final Task task;
+        final long[] values;
+
+        Key(Task task, int size) {
+            this.task = task;
+            this.values = new long[size];
+        }
+    }
+
+    public TaskSorter(ArrayList<String> sorts) {
+        ArrayList<Integer> types = new ArrayList<Integer>();
+        ArrayList<Boolean> reversed = new ArrayList<Boolean>();
+        for (String sort : sorts) {
+            String parts[] = sort.split(ActiveFilter.SORT_SEPARATOR);
+            boolean reverse = false;
+            String sortType;
+            if (parts.length == 1) {
+                // support older shortcuts and widgets
+                sortType = parts[0];
+            } else {
+                sortType = parts[1];
+                if (parts[0].equals(ActiveFilter.REVERSED_SORT)) {
+                    reverse = true;
+                }
+            }
+            int type = type(sortType);
+            if (type == -1) {
+                Log.w("Simpletask", "Unknown sort: " + sort);
+                continue;
+            }
+            types.add(type);
+            reversed.add(reverse);
+        }
+        m_types = new int[types.size()];
+        m_reversed = new boolean[types.size()];
+        for (int i = 0; i < m_types.length; i++) {
+            m_types[i] = types.get(i);
+            m_reversed[i] = reversed.get(i);
+        }
+    }
+
+    public static void sort(List<Task> tasks, ArrayList<String> sorts) {
+        new TaskSorter(sorts).sort(tasks);
+    }
+
+    private static int type(String sortType) {
+        if (sortType.equals("file_order")) {
+            return FILE_ORDER;
+        } else if (sortType.equals("by_context")) {
+            return BY_CONTEXT;
+        } else if (sortType.equals("by_project")) {
+            return BY_PROJECT;
+        } else if (sortType.equals("alphabetical")) {
+            return ALPHABETICAL;
+        } else if (sortType.equals("by_prio")) {
+            return BY_PRIO;
+        } else if (sortType.equals("completed")) {
+            return COMPLETED;
+        } else if (sortType.equals("by_creation_date")) {
+            return BY_CREATION_DATE;
+        } else if (sortType.equals("in_future")) {
+            return IN_FUTURE;
+        } else if (sortType.equals("by_due_date")) {
+            return BY_DUE_DATE;
+        } else if (sortType.equals("by_threshold_date")) {
+            return BY_THRESHOLD_DATE;
+        }
+        return -1;
+    }
+
+    public void sort(List<Task> tasks) {
+        ArrayList<Key> keys = new ArrayList<Key>(tasks.size());
+        for (Task t : tasks) {
+            keys.add(new Key(t, m_types.length));
+        }
+        for (int i = 0; i < m_types.length; i++) {
+            fill(keys, i, m_types[i]);
+        }
+        Collections.sort(keys, new Comparator<Key>() {
+            @Override
+            public int compare(Key a, Key b) {
+                for (int i = 0; i < m_types.length; i++) {
+                    long valueA = a.values[i];
+                    long valueB = b.values[i];
+                    if (m_types[i] == FILE_ORDER) {
+                        // Same as FileOrderComparator, which never considers two tasks equal
+                        if (m_reversed[i]) {
+                            return valueB < valueA ? -1 : 1;
+                        } else {
+                            return valueA < valueB ? -1 : 1;
+                        }
+                    }
+                    if (valueA != valueB) {
+                        int result = valueA < valueB ? -1 : 1;
+                        return m_reversed[i] ? -result : result;
+                    }
+                }
+                return 0;
+            }
+        });
+        ListIterator<Task> it = tasks.listIterator();
+        for (Key key : keys) {
+            it.next();
+            it.set(key.task);
+        }
+    }
+
+    private static void fill(ArrayList<Key> keys, int column, int type) {
+        switch (type) {
+            case BY_CONTEXT:
+            case BY_PROJECT:
+            case ALPHABETICAL:
+                fillRanks(keys, column, type);
+                return;
+            case BY_CREATION_DATE:
+                fillCreationDates(keys, column);
+                return;
+        }
+        for (Key key : keys) {
+            Task t = key.task;
+            long value;
+            switch (type) {
+                case FILE_ORDER:
+                    value = t.getId();
+                    break;
+                case BY_PRIO:
+                    Priority prio = t.getPriority();
+                    value = prio.inFileFormat().equals("") ? LAST : prio.ordinal();
+                    break;
+                case COMPLETED:
+                    value = t.isCompleted() ? 1 : 0;
+                    break;
+                case IN_FUTURE:
+                    value = t.inFuture() ? 1 : 0;
+                    break;
+                case BY_DUE_DATE:
+                    value = t.getDueDate() == null ? LAST : t.getDueDate().getMillis();
+                    break;
+                case BY_THRESHOLD_DATE:
+                    value = t.getThresholdDate() == null ? LAST : t.getThresholdDate().getMillis();
+                    break;
+                default:
+                    value = 0;
+            }
+            key.values[column] = value;
+        }
+    }
+
+    /**
+     * Replaces the compared string by its rank among all distinct strings,
+     * ordered like String.compareToIgnoreCase.
+     */
+    private static void fillRanks(ArrayList<Key> keys, int column, int type) {
+        String[] folded = new String[keys.size()];
+        HashMap<String, Long> ranks = new HashMap<String, Long>();
+        for (int i = 0; i < folded.length; i++) {
+            String value = rankedString(keys.get(i).task, type);
+            if (value != null) {
+                folded[i] = foldCase(value);
+                ranks.put(folded[i], null);
+            }
+        }
+        ArrayList<String> distinct = new ArrayList<String>(ranks.keySet());
+        Collections.sort(distinct);
+        for (int i = 0; i < distinct.size(); i++) {
+            ranks.put(distinct.get(i), (long) i);
+        }
+        // Tasks without context sort first, tasks without project last
+        long missing = (type == BY_CONTEXT) ? -1 : LAST;
+        for (int i = 0; i < folded.length; i++) {
+            keys.get(i).values[column] = (folded[i] == null) ? missing : ranks.get(folded[i]);
+        }
+    }
+
+    private static String rankedString(Task t, int type) {
+        List<String> values;
+        if (type == ALPHABETICAL) {
+            return t.getText();
+        } else if (type == BY_CONTEXT) {
+            values = t.getLists();
+        } else {
+            values = t.getTags();
+        }
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * @return the string with every character folded the same way
+     * String.compareToIgnoreCase does, so comparing the folded strings
+     * gives the same order.
+     */
+    static String foldCase(String s) {
+        char[] chars = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            char folded = Character.toLowerCase(Character.toUpperCase(c));
+            if (folded != c) {
+                if (chars == null) {
+                    chars = s.toCharArray();
+                }
+                chars[i] = folded;
+            }
+        }
+        return chars == null ? s : new String(chars);
+    }
+
+    private static void fillCreationDates(ArrayList<Key> keys, int column) {
+        DateFormat formatter = new SimpleDateFormat(Constants.DATE_FORMAT, Locale.US);
+        HashMap<String, Long> parsed = new HashMap<String, Long>();
+        for (Key key : keys) {
+            String date = key.task.getPrependedDate();
+            long value = LAST;
+            if (!Strings.isEmptyOrNull(date)) {
+                Long millis = parsed.get(date);
+                if (millis == null) {
+                    try {
+                        millis = formatter.parse(date).getTime();
+                    } catch (ParseException e) {
+                        // The lexer only accepts dddd-dd-dd, which always parses
+                        Log.w("Simpletask", "Couldn't parse creation date " + date, e);
+                        millis = LAST;
+                    }
+                    parsed.put(date, millis);
+                }
+                value = millis;
+            }
+            key.values[column] = value;
+        }
+    }
+}
@@ -46,8 +46,7 @@ public class ByTextFilter implements TaskFilter {
 
     @Override
     public boolean apply(Task input) {
-        String taskText = caseSensitive ? input.getText() : input.getText()
-                .toUpperCase(Locale.getDefault());
+        String taskText = caseSensitive ? input.getText() : input.getFoldedText();
 
         for (String part : parts) {
             if ((part.length() > 0) && !taskText.contains(part))
@@ -57,6 +56,34 @@ public class ByTextFilter implements TaskFilter {
         return true;
     }
 
+    /**
+     * Checks if every task matching this filter matches previous as well,
+     * which is the case when each part of previous is contained in one of
+     * the parts of this filter. Typing more of a search query gives such a
+     * filter, it only has to be applied to the tasks matching previous.
+     */
+    public boolean narrows(ByTextFilter previous) {
+        if (caseSensitive != previous.caseSensitive) {
+            return false;
+        }
+        for (String previousPart : previous.parts) {
+            if (previousPart.length() == 0) {
+                continue;
+            }
+            boolean contained = false;
+            for (String part : parts) {
+                if (part.contains(previousPart)) {
+                    contained = true;
+                    break;
+                }
+            }
+            if (!contained) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /* FOR TESTING ONLY, DO NOT USE IN APPLICATION */
     String getText() {
         return text;
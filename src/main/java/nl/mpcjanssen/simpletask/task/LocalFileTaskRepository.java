@@ -23,13 +23,19 @@
 package nl.mpcjanssen.simpletask.task;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Date;
 
 import nl.mpcjanssen.simpletask.TodoApplication;
 import nl.mpcjanssen.simpletask.TodoException;
+import nl.mpcjanssen.simpletask.remote.FileRange;
+import nl.mpcjanssen.simpletask.remote.TodoMerge;
 import nl.mpcjanssen.simpletask.util.TaskIo;
 import nl.mpcjanssen.simpletask.util.Util;
 import android.util.Log;
@@ -37,6 +43,11 @@ import android.util.Log;
 
 /**
  * A task repository for interacting with the local file system
+ *
+ * The repository remembers the lines it last loaded or stored. When a
+ * store only adds tasks at the end of the file these are appended, when
+ * nothing changed the file is not touched at all. Other changes replace
+ * the file completely.
  * 
  * @author Tim Barlotta
  */
@@ -48,17 +59,44 @@ public class LocalFileTaskRepository {
 	private final TaskBag.Preferences preferences;
     private final TodoApplication m_app;
 
+    // Lines of todo.txt as last loaded or stored, null if unknown
+    private ArrayList<String> m_lines;
+    private boolean m_linesWindowsLineBreaks;
+    // Contents of todo.txt as last loaded or stored, null if unknown
+    private FileRange m_todoRange;
+    // Contents of done.txt when it had m_doneModified as modification
+    // time, null if unknown
+    private FileRange m_doneRange;
+    private long m_doneModified;
+    private final TrigramIndex m_trigramIndex;
+
+    // Write amplification statistics
+    private long m_bytesWritten;
+    private long m_bytesChanged;
+    private int m_appends;
+    private int m_rewrites;
+    private int m_skippedWrites;
+
     public LocalFileTaskRepository(TodoApplication app, File todo,  TaskBag.Preferences preferences) {
         this.m_app = app;
 		this.preferences = preferences;
         this.TODO_TXT_FILE = todo;
         this.DONE_TXT_FILE = new File(todo.getParentFile(), "done.txt");
+        this.m_trigramIndex = new TrigramIndex(DONE_TXT_FILE,
+                new File(todo.getParentFile(), ".done.txt.idx"));
 	}
 
     public File getTodoTxtFile() {
         return TODO_TXT_FILE;
     }
 
+    /**
+     * @return the index for searching the tasks and done.txt
+     */
+    public TrigramIndex getTrigramIndex() {
+        return m_trigramIndex;
+    }
+
 	public void init() {
 		try {
 			if (!TODO_TXT_FILE.exists()) {
@@ -78,18 +116,306 @@ public class LocalFileTaskRepository {
 					+ " does not exist!");
 		} else {
 			try {
-				return TaskIo.loadTasksFromFile(TODO_TXT_FILE, preferences);
+				ArrayList<Task> tasks = TaskIo.loadTasksFromFile(TODO_TXT_FILE, preferences);
+				remember(lines(tasks));
+				return tasks;
 			} catch (IOException e) {
 				throw new TodoException("Error loading from local file", e);
 			}
 		}
 	}
-    
+
+    /**
+     * Replaces todo.txt by a pulled file. The file is parsed once and then
+     * renamed to todo.txt, so the tasks don't have to be written again.
+     * The pulled file is gone afterwards.
+     *
+     * @return the tasks of the pulled file
+     */
+    public ArrayList<Task> replace(File pulled) {
+        ArrayList<Task> tasks;
+        try {
+            tasks = TaskIo.loadTasksFromFile(pulled, preferences);
+        } catch (IOException e) {
+            throw new TodoException("Error loading from pulled file", e);
+        }
+        m_app.stopWatching();
+        try {
+            Util.createParentDirectory(TODO_TXT_FILE);
+            if (!pulled.renameTo(TODO_TXT_FILE)) {
+                // Different file systems, write the parsed tasks instead
+                Log.w(TAG, "Couldn't rename " + pulled + " to " + TODO_TXT_FILE + ", writing it");
+                TaskIo.writeToFile(tasks, TODO_TXT_FILE, false,
+                        preferences.isUseWindowsLineBreaksEnabled());
+                pulled.delete();
+                m_rewrites++;
+                m_bytesWritten += TODO_TXT_FILE.length();
+            }
+            remember(lines(tasks));
+        } catch (TaskPersistException e) {
+            m_lines = null;
+            m_todoRange = null;
+            throw e;
+        } finally {
+            m_app.startWatching();
+        }
+        return tasks;
+    }
+
     public void store(ArrayList<Task> tasks) {
-	m_app.stopWatching();
-	TaskIo.writeToFile(tasks, TODO_TXT_FILE,
-			   preferences.isUseWindowsLineBreaksEnabled());
-		m_app.startWatching();
+        ArrayList<String> lines = lines(tasks);
+        boolean windowsLineBreaks = preferences.isUseWindowsLineBreaksEnabled();
+        // Only trust the remembered lines if the file wasn't changed behind our back
+        boolean known = m_lines != null && m_linesWindowsLineBreaks == windowsLineBreaks && !todoFileChanged();
+        int unchanged = 0;
+        if (known) {
+            int max = Math.min(m_lines.size(), lines.size());
+            while (unchanged < max && m_lines.get(unchanged).equals(lines.get(unchanged))) {
+                unchanged++;
+            }
+        }
+        if (known && unchanged == m_lines.size() && unchanged == lines.size()) {
+            m_skippedWrites++;
+            Log.v(TAG, "No changes to store");
+            return;
+        }
+        m_app.stopWatching();
+        try {
+            long lengthBefore = TODO_TXT_FILE.length();
+            if (known && unchanged == m_lines.size() && endsWithLineBreak()) {
+                // Only new tasks at the end
+                List<Task> added = new ArrayList<Task>();
+                for (Task task : tasks) {
+                    if (task != null) {
+                        added.add(task);
+                    }
+                }
+                added = added.subList(unchanged, added.size());
+                TaskIo.writeToFile(added, TODO_TXT_FILE, true, windowsLineBreaks);
+                m_appends++;
+                m_bytesWritten += TODO_TXT_FILE.length() - lengthBefore;
+                m_bytesChanged += byteCount(lines.subList(unchanged, lines.size()), windowsLineBreaks);
+            } else {
+                TaskIo.writeToFile(tasks, TODO_TXT_FILE, false, windowsLineBreaks);
+                m_rewrites++;
+                m_bytesWritten += TODO_TXT_FILE.length();
+                m_bytesChanged += changedBytes(m_lines, lines, windowsLineBreaks);
+            }
+            remember(lines);
+        } catch (TaskPersistException e) {
+            // The file is in an unknown state, rewrite it completely next time
+            m_lines = null;
+            m_todoRange = null;
+            throw e;
+        } finally {
+            m_app.startWatching();
+        }
+        Log.v(TAG, "Write amplification: " + getWriteAmplification());
+    }
+
+    /**
+     * Merges the changes another app made to todo.txt since it was last
+     * loaded or stored with lines, so storing them doesn't undo those
+     * changes. Tasks edited on both sides are kept in both versions.
+     *
+     * @return the merged lines, null if todo.txt didn't change or its
+     * previous contents are unknown
+     */
+    public ArrayList<String> mergeExternalChanges(List<String> lines) {
+        if (m_lines == null || !todoFileChanged()) {
+            return null;
+        }
+        ArrayList<String> external = loadLines(TODO_TXT_FILE);
+        TodoMerge merge = TodoMerge.merge(m_lines, lines, external);
+        if (merge.hasConflicts()) {
+            Log.w(TAG, "Tasks changed here and in todo.txt, keeping both: " + merge.getConflicts());
+        }
+        Log.v(TAG, "Merged changes made to " + TODO_TXT_FILE.getName() + " by another app");
+        return merge.getLines();
+    }
+
+    /**
+     * @return the lines of the tasks in file, empty if it doesn't exist
+     */
+    static ArrayList<String> loadLines(File file) {
+        if (!file.exists()) {
+            return new ArrayList<String>();
+        }
+        try {
+            return lines(TaskIo.loadTasksFromFile(file).getTasks());
+        } catch (IOException e) {
+            throw new TodoException("Error loading from local file", e);
+        }
+    }
+
+    static ArrayList<String> lines(List<Task> tasks) {
+        ArrayList<String> lines = new ArrayList<String>(tasks.size());
+        for (Task task : tasks) {
+            if (task != null) {
+                lines.add(task.inFileFormat());
+            }
+        }
+        return lines;
+    }
+
+    private void remember(ArrayList<String> lines) {
+        m_lines = lines;
+        m_linesWindowsLineBreaks = preferences.isUseWindowsLineBreaksEnabled();
+        m_todoRange = rangeOf(TODO_TXT_FILE);
+    }
+
+    /**
+     * @return true if the contents of todo.txt differ from what was last
+     * loaded or stored
+     */
+    public boolean todoFileChanged() {
+        try {
+            return m_todoRange == null || !m_todoRange.matches(TODO_TXT_FILE);
+        } catch (IOException e) {
+            throw new TodoException("Error reading " + TODO_TXT_FILE.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * @return the contents of done.txt, null if there is none. Only hashed
+     * again when done.txt changed outside of this repository.
+     */
+    public FileRange getDoneRange() {
+        if (!DONE_TXT_FILE.exists()) {
+            m_doneRange = null;
+            return null;
+        }
+        if (!doneRangeKnown()) {
+            m_doneRange = rangeOf(DONE_TXT_FILE);
+            m_doneModified = DONE_TXT_FILE.lastModified();
+        }
+        return m_doneRange;
+    }
+
+    private boolean doneRangeKnown() {
+        return m_doneRange != null && m_doneRange.getLength() == DONE_TXT_FILE.length()
+                && m_doneModified == DONE_TXT_FILE.lastModified();
+    }
+
+    /**
+     * Extends the known contents of done.txt with the appended bytes, so
+     * they are hashed once instead of done.txt being hashed again.
+     *
+     * @param before the contents before appending, null if unknown
+     */
+    private void doneAppended(FileRange before) {
+        m_doneRange = null;
+        if (before != null) {
+            try {
+                m_doneRange = before.extend(DONE_TXT_FILE);
+                m_doneModified = DONE_TXT_FILE.lastModified();
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't read " + DONE_TXT_FILE.getAbsolutePath(), e);
+            }
+        }
+    }
+
+    /**
+     * @return the range covering the complete file, null if it doesn't exist
+     */
+    static FileRange rangeOf(File file) {
+        try {
+            return FileRange.of(file);
+        } catch (IOException e) {
+            throw new TaskPersistException("Error reading " + file.getAbsolutePath(), e);
+        }
+    }
+
+    private boolean endsWithLineBreak() {
+        long length = TODO_TXT_FILE.length();
+        if (length == 0) {
+            return true;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(TODO_TXT_FILE, "r");
+            file.seek(length - 1);
+            return file.read() == '\n';
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't read end of " + TODO_TXT_FILE.getAbsolutePath(), e);
+            return false;
+        } finally {
+            Util.closeStream(file);
+        }
+    }
+
+    /**
+     * @return the size of the lines that were added or removed
+     */
+    private static long changedBytes(List<String> oldLines, List<String> newLines, boolean windowsLineBreaks) {
+        if (oldLines == null) {
+            return byteCount(newLines, windowsLineBreaks);
+        }
+        HashMap<String, Integer> remaining = new HashMap<String, Integer>();
+        for (String line : oldLines) {
+            Integer count = remaining.get(line);
+            remaining.put(line, count == null ? 1 : count + 1);
+        }
+        List<String> changed = new ArrayList<String>();
+        for (String line : newLines) {
+            Integer count = remaining.get(line);
+            if (count == null) {
+                changed.add(line);
+            } else if (count == 1) {
+                remaining.remove(line);
+            } else {
+                remaining.put(line, count - 1);
+            }
+        }
+        for (String line : remaining.keySet()) {
+            for (int i = remaining.get(line); i > 0; i--) {
+                changed.add(line);
+            }
+        }
+        return byteCount(changed, windowsLineBreaks);
+    }
+
+    private static long byteCount(List<String> lines, boolean windowsLineBreaks) {
+        long count = 0;
+        try {
+            for (String line : lines) {
+                count += line.getBytes("UTF-8").length + (windowsLineBreaks ? 2 : 1);
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new TodoException("UTF-8 not supported", e);
+        }
+        return count;
+    }
+
+    /**
+     * @return bytes written to todo.txt divided by the size of the lines
+     * that actually changed
+     */
+    public double getWriteAmplification() {
+        if (m_bytesChanged == 0) {
+            return 0;
+        }
+        return (double) m_bytesWritten / m_bytesChanged;
+    }
+
+    public long getBytesWritten() {
+        return m_bytesWritten;
+    }
+
+    public long getBytesChanged() {
+        return m_bytesChanged;
+    }
+
+    public int getAppendCount() {
+        return m_appends;
+    }
+
+    public int getRewriteCount() {
+        return m_rewrites;
+    }
+
+    public int getSkippedWriteCount() {
+        return m_skippedWrites;
     }
     
     public ArrayList<Task> archive(ArrayList<Task> tasks,  List<Task> tasksToArchive) {
@@ -117,39 +443,101 @@ public class LocalFileTaskRepository {
             }
         }
 
-	// append completed tasks to done.txt
-	TaskIo.writeToFile(archivedTasks, DONE_TXT_FILE, true,
-			   windowsLineBreaks);
+        try {
+            FileRange done = !DONE_TXT_FILE.exists() ? FileRange.EMPTY
+                    : doneRangeKnown() ? m_doneRange : null;
+            // append completed tasks to done.txt
+            TaskIo.writeToFile(archivedTasks, DONE_TXT_FILE, true,
+                    windowsLineBreaks);
+            doneAppended(done);
+            m_trigramIndex.doneAppended();
 
-	// write incomplete tasks back to todo.txt
-	// TODO: remove blank lines (if we ever add support for
-	// PRESERVE_BLANK_LINES)
-	TaskIo.writeToFile(remainingTasks, TODO_TXT_FILE, false,
-			   windowsLineBreaks);
-        m_app.startWatching();
+            // write incomplete tasks back to todo.txt
+            // TODO: remove blank lines (if we ever add support for
+            // PRESERVE_BLANK_LINES)
+            ArrayList<String> lines = lines(remainingTasks);
+            TaskIo.writeToFile(remainingTasks, TODO_TXT_FILE, false,
+                    windowsLineBreaks);
+            m_rewrites++;
+            m_bytesWritten += TODO_TXT_FILE.length();
+            m_bytesChanged += changedBytes(m_lines, lines, windowsLineBreaks);
+            remember(lines);
+        } finally {
+            m_app.startWatching();
+        }
 	return remainingTasks;
     }
     
+    /**
+     * Copies file for an upload or a download. Remote changes are merged
+     * or pulled into the copy, so the file itself only changes when the
+     * bag takes them over.
+     *
+     * @return the copy, which doesn't exist if file doesn't
+     */
+    public File copyForPush(File file) {
+        File copy = new File(file.getParentFile(), "." + file.getName() + ".push");
+        copy.delete();
+        if (file.exists()) {
+            try {
+                Util.writeFile(new FileInputStream(file), copy);
+            } catch (IOException e) {
+                throw new TaskPersistException("Error copying " + file + " for upload", e);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Makes merged, a copy of done.txt with remote changes merged or
+     * pulled into it, the local done.txt. Tasks archived after the copy
+     * was taken are appended to it again.
+     *
+     * @param copied the range of done.txt the copy was taken of
+     */
+    public void replaceDone(File merged, FileRange copied) {
+        try {
+            long length = copied.getLength();
+            if (!DONE_TXT_FILE.exists() && length == 0) {
+                // There was no done.txt and nothing was archived since
+                m_doneRange = null;
+                Util.renameFile(merged, DONE_TXT_FILE, true);
+                return;
+            }
+            FileRange current = doneRangeKnown() && m_doneRange.getLength() == length
+                    ? m_doneRange : FileRange.of(DONE_TXT_FILE, length);
+            if (!copied.equals(current)) {
+                Log.w(TAG, DONE_TXT_FILE.getName() + " was replaced during the sync, keeping it");
+                return;
+            }
+            FileInputStream is = new FileInputStream(DONE_TXT_FILE);
+            try {
+                FileOutputStream os = new FileOutputStream(merged, true);
+                try {
+                    long size = is.getChannel().size();
+                    for (long position = length; position < size; ) {
+                        position += is.getChannel().transferTo(position, size - position, os.getChannel());
+                    }
+                } finally {
+                    os.close();
+                }
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            throw new TaskPersistException("Error merging into " + DONE_TXT_FILE, e);
+        }
+        m_doneRange = null;
+        Util.renameFile(merged, DONE_TXT_FILE, true);
+    }
+
     public void loadDoneTasks(File file) {
+        m_doneRange = null;
 	Util.renameFile(file, DONE_TXT_FILE, true);
     }
 
     public void removeDoneFile() {
+        m_doneRange = null;
         DONE_TXT_FILE.delete();
     }
-	public boolean todoFileModifiedSince(Date date) {
-		long date_ms = 0l;
-		if (date != null) {
-			date_ms = date.getTime();
-		}
-		return date_ms < TODO_TXT_FILE.lastModified();
-	}
-
-	public boolean doneFileModifiedSince(Date date) {
-		long date_ms = 0l;
-		if (date != null) {
-			date_ms = date.getTime();
-		}
-		return date_ms < DONE_TXT_FILE.lastModified();
-	}
 }
@@ -34,18 +34,22 @@ import org.joda.time.format.ISODateTimeFormat;
 import nl.mpcjanssen.simpletask.ActiveFilter;
 import nl.mpcjanssen.simpletask.Constants;
 import nl.mpcjanssen.simpletask.R;
+import nl.mpcjanssen.simpletask.TodoException;
 import nl.mpcjanssen.simpletask.util.RelativeDate;
 import nl.mpcjanssen.simpletask.util.Util;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 
@@ -55,29 +59,36 @@ public class Task implements Serializable, Comparable<Task> {
     public final static int DUE_DATE = 0;
     public final static int THRESHOLD_DATE = 1;
     private static final long serialVersionUID = 0L;
-    private static final Pattern HIDDEN_PATTERN = Pattern
-            .compile("(^|\\s)[Hh]:1");
     private static final Pattern TAG_PATTERN = Pattern
             .compile("^\\S*[\\p{javaLetterOrDigit}_]$");
-    private static final Pattern DUE_PATTERN = Pattern
-            .compile("(^||\\s)[Dd][Uu][Ee]:(\\d{4}-\\d{2}-\\d{2})");
-    private static final Pattern THRESHOLD_PATTERN = Pattern
-            .compile("(^||\\s)[Tt]:(\\d{4}-\\d{2}-\\d{2})");
-    private static final Pattern RECURRENCE_PATTERN = Pattern
-            .compile("(^||\\s)[Rr][Ee][Cc]:(\\d{1,}[dDwWmMyY])");
-    private final static Pattern PRIORITY_PATTERN = Pattern
-            .compile("^\\(([A-Z])\\) (.*)");
-    private final static Pattern SINGLE_DATE_PATTERN = Pattern
-            .compile("(^||\\s)(\\d{4}-\\d{2}-\\d{2})");
-    private final static Pattern SINGLE_DATE_PREFIX = Pattern
-            .compile("^(\\d{4}-\\d{2}-\\d{2}) (.*)");
-    private final static Pattern COMPLETED_PATTERN = Pattern
-            .compile("^([Xx] )(.*)");
     private static final String COMPLETED = "x ";
     private static DateTimeFormatter formatter = ISODateTimeFormat.date();
     private String text;
     private long id = 0;
 
+    // Parsed representation of text, rebuilt by parse() whenever
+    // the text changes so getters don't have to rescan the line.
+    private transient List<TaskToken> tokens;
+    private transient int bodyStart;
+    private transient String completionPrefix;
+    private transient String completionDate;
+    private transient String textWithoutCompletionInfo;
+    private transient String textWithoutCompletionAndPriority;
+    private transient Priority priority;
+    private transient String prependedDate;
+    private transient List<String> lists;
+    private transient List<String> tags;
+    private transient String dueDateString;
+    private transient DateTime dueDate;
+    private transient String thresholdDateString;
+    private transient DateTime thresholdDate;
+    private transient String recurrencePattern;
+    private transient boolean hidden;
+    private transient List<String> links;
+    private transient List<String> mailAddresses;
+    private transient List<String> phoneNumbers;
+    private transient String foldedText;
+
 
     public Task(long id, String rawText, DateTime defaultPrependedDate) {
         this.id = id;
@@ -97,32 +108,186 @@ public class Task implements Serializable, Comparable<Task> {
     }
 
     public void init(String rawText, DateTime defaultPrependedDate) {
-        this.text = rawText;
+        setText(rawText);
         if (defaultPrependedDate != null
                 && getPrependedDate() == null) {
             Priority p = getPriority();
             setPriority(Priority.NONE);
 
-            this.text = formatter.print(defaultPrependedDate) + " " + text;
+            setText(formatter.print(defaultPrependedDate) + " " + text);
             setPriority(p);
         }
     }
 
-    private DateTime getDate(Pattern datePattern) {
-        DateTime date = null;
-        Matcher matcher = datePattern.matcher(this.text);
-        try {
-            if (matcher.find()) {
-                date = formatter.parseDateTime(matcher.group(2));
+    private void setText(String newText) {
+        this.text = newText;
+        this.foldedText = null;
+        parse();
+    }
+
+    /**
+     * Splits text into its todo.txt parts once so all getters can
+     * return the cached values.
+     */
+    private void parse() {
+        tokens = TaskLexer.tokenize(text);
+        completionDate = null;
+        priority = Priority.NONE;
+        prependedDate = null;
+        dueDateString = null;
+        thresholdDateString = null;
+        recurrencePattern = null;
+        hidden = false;
+        int completionEnd = 0;
+        int priorityEnd = 0;
+        bodyStart = 0;
+        List<String> parsedLists = new ArrayList<String>();
+        List<String> parsedTags = new ArrayList<String>();
+        links = new ArrayList<String>();
+        mailAddresses = new ArrayList<String>();
+        phoneNumbers = new ArrayList<String>();
+        for (TaskToken token : tokens) {
+            switch (token.getType()) {
+                case COMPLETED:
+                    completionDate = "";
+                    completionEnd = priorityEnd = bodyStart = token.getEnd() + 1;
+                    break;
+                case COMPLETION_DATE:
+                    completionDate = token.getValue();
+                    completionEnd = priorityEnd = bodyStart = token.getEnd() + 1;
+                    break;
+                case PRIORITY:
+                    priority = Priority.toPriority(token.getValue());
+                    priorityEnd = bodyStart = token.getEnd() + 1;
+                    break;
+                case CREATION_DATE:
+                    prependedDate = token.getValue();
+                    bodyStart = token.getEnd() + 1;
+                    break;
+                case LIST:
+                    parsedLists.add(token.getValue());
+                    break;
+                case TAG:
+                    parsedTags.add(token.getValue());
+                    // "+31612345678" is both a tag and a phone number
+                    if (TaskLexer.isPhoneNumber(text, token.getStart(), token.getEnd())) {
+                        phoneNumbers.add(token.getText());
+                    }
+                    break;
+                case DUE_DATE:
+                    if (dueDateString == null) {
+                        dueDateString = token.getValue();
+                    }
+                    break;
+                case THRESHOLD_DATE:
+                    if (thresholdDateString == null) {
+                        thresholdDateString = token.getValue();
+                    }
+                    break;
+                case RECURRENCE:
+                    if (recurrencePattern == null) {
+                        recurrencePattern = token.getValue();
+                    }
+                    break;
+                case HIDDEN:
+                    hidden = true;
+                    break;
+                case LINK:
+                    links.add(token.getValue());
+                    break;
+                case MAIL:
+                    mailAddresses.add(token.getValue());
+                    break;
+                case PHONE:
+                    phoneNumbers.add(token.getText());
+                    break;
+                default:
+                    break;
             }
+        }
+        completionPrefix = text.substring(0, completionEnd);
+        textWithoutCompletionInfo = text.substring(completionEnd);
+        textWithoutCompletionAndPriority = text.substring(priorityEnd);
+
+        Collections.sort(parsedLists);
+        lists = Collections.unmodifiableList(parsedLists);
+        Collections.sort(parsedTags);
+        tags = Collections.unmodifiableList(parsedTags);
+
+        dueDate = parseDate(dueDateString);
+        thresholdDate = parseDate(thresholdDateString);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        parse();
+    }
+
+    /**
+     * @return the tokens of this task, concatenating their text gives
+     * {@link #inFileFormat()}
+     */
+    public List<TaskToken> getTokens() {
+        return Collections.unmodifiableList(tokens);
+    }
+
+    /**
+     * Sets the value of the first token of the given type or appends a new
+     * key:value token. An empty value removes all tokens of the type.
+     */
+    private void setKeyValue(TaskToken.Type type, String key, String value) {
+        if (value.equals("")) {
+            setText(textWithout(0, type));
+            return;
+        }
+        for (TaskToken token : tokens) {
+            if (token.getType() == type) {
+                setText(text.substring(0, token.getStart()) + key + ":" + value + text.substring(token.getEnd()));
+                return;
+            }
+        }
+        setText(text + " " + key + ":" + value);
+    }
+
+    /**
+     * @return the text starting at from without the tokens of the given
+     * types and the white space in front of them
+     */
+    private String textWithout(int from, TaskToken.Type... types) {
+        StringBuilder result = new StringBuilder(text.length());
+        for (TaskToken token : tokens) {
+            if (token.getEnd() <= from) {
+                continue;
+            }
+            boolean remove = false;
+            for (TaskToken.Type type : types) {
+                if (token.getType() == type) {
+                    remove = true;
+                    break;
+                }
+            }
+            if (!remove) {
+                result.append(text, Math.max(from, token.getStart()), token.getEnd());
+            } else if (result.length() > 0 && Character.isWhitespace(result.charAt(result.length() - 1))) {
+                result.setLength(result.length() - 1);
+            }
+        }
+        return result.toString();
+    }
+
+    private static DateTime parseDate(String dateString) {
+        if (dateString == null) {
+            return null;
+        }
+        try {
+            return formatter.parseDateTime(dateString);
         } catch (IllegalFieldValueException e) {
             return null;
         }
-        return date;
     }
 
     public DateTime getDueDate() {
-        return getDate(DUE_PATTERN);
+        return dueDate;
     }
 
     public void setDueDate(DateTime dueDate) {
@@ -130,17 +295,11 @@ public class Task implements Serializable, Comparable<Task> {
     }
 
     public void setDueDate(String dueDateString) {
-        if (dueDateString.equals("")) {
-            text = text.replaceAll(DUE_PATTERN.pattern(),"");
-        } else if (this.getDueDate()!=null) {
-            text = text.replaceFirst(DUE_PATTERN.pattern(), " due:" + dueDateString);
-        } else {
-            text = text + " due:" + dueDateString;
-        }
+        setKeyValue(TaskToken.Type.DUE_DATE, "due", dueDateString);
     }
 
     public DateTime getThresholdDate() {
-        return getDate(THRESHOLD_PATTERN);
+        return thresholdDate;
     }
 
     public void setThresholdDate(DateTime thresholdDate) {
@@ -148,60 +307,58 @@ public class Task implements Serializable, Comparable<Task> {
     }
 
     public void setThresholdDate(String thresholdDateString) {
-        if (thresholdDateString.equals("")) {
-            text = text.replaceAll(THRESHOLD_PATTERN.pattern(),"");
-        } else if (this.getThresholdDate()!=null) {
-            text = text.replaceFirst(THRESHOLD_PATTERN.pattern(), " t:" + thresholdDateString);
-        } else {
-            text = text + " t:" + thresholdDateString;
-        }
+        setKeyValue(TaskToken.Type.THRESHOLD_DATE, "t", thresholdDateString);
     }
 
     public String getText() {
         return text;
     }
 
+    /**
+     * @return the text in upper case for case insensitive searching,
+     * folded once per change of the text instead of once per search
+     */
+    public String getFoldedText() {
+        String folded = foldedText;
+        if (folded == null) {
+            folded = text.toUpperCase(Locale.getDefault());
+            foldedText = folded;
+        }
+        return folded;
+    }
+
     public long getId() {
         return id;
     }
 
     public Priority getPriority() {
-        Matcher m = PRIORITY_PATTERN.matcher(getTextWithoutCompletionInfo());
-        if (m.matches()) {
-            return Priority.toPriority(m.group(1));
-        } else {
-            return Priority.NONE;
-        }
+        return priority;
     }
 
     public void setPriority(Priority priority) {
         if (priority == Priority.NONE) {
-            text = getCompletionPrefix() + getTextWithoutCompletionAndPriority();
+            setText(getCompletionPrefix() + getTextWithoutCompletionAndPriority());
         } else {
-            text = getCompletionPrefix() + priority.inFileFormat() + " " +getTextWithoutCompletionAndPriority();
+            setText(getCompletionPrefix() + priority.inFileFormat() + " " +getTextWithoutCompletionAndPriority());
         }
     }
 
+    /**
+     * @return the sorted lists of this task, the returned list can not be modified
+     */
     public List<String> getLists() {
-        List<String> lists =  ListParser.getInstance().parse(text);
-        Collections.sort(lists);
         return lists;
     }
 
+    /**
+     * @return the sorted tags of this task, the returned list can not be modified
+     */
     public List<String> getTags() {
-        List<String> tags =  TagParser.getInstance().parse(text);
-        Collections.sort(tags);
         return tags;
     }
 
     public String getPrependedDate() {
-        String tail = getTextWithoutCompletionAndPriority();
-        Matcher matcher = SINGLE_DATE_PREFIX.matcher(tail);
-        if (matcher.matches()) {
-            return matcher.group(1);
-        } else {
-            return null;
-        }
+        return prependedDate;
     }
 
     public String getRelativeAge() {
@@ -244,100 +401,62 @@ public class Task implements Serializable, Comparable<Task> {
     }
 
     public List<String> getPhoneNumbers() {
-        return PhoneNumberParser.getInstance().parse(text);
+        return Collections.unmodifiableList(phoneNumbers);
     }
 
     public List<String> getMailAddresses() {
-        return MailAddressParser.getInstance().parse(text);
+        return Collections.unmodifiableList(mailAddresses);
     }
 
     public String getRecurrencePattern() {
-        Matcher matcher = RECURRENCE_PATTERN.matcher(this.text);
-        if (matcher.find()) {
-            return matcher.group(2);
-        } else {
-            return null;
-        }
+        return recurrencePattern;
     }
 
     public List<URL> getLinks() {
-        return LinkParser.getInstance().parse(text);
+        List<URL> result = new ArrayList<URL>();
+        for (String link : links) {
+            try {
+                result.add(new URL(link));
+            } catch (MalformedURLException e) {
+                throw new TodoException("Malformed URL matched the lexer", e);
+            }
+        }
+        return result;
     }
 
     public String getTextWithoutCompletionInfo() {
-        Matcher xMatch = COMPLETED_PATTERN.matcher(text);
-        if (!xMatch.matches()) {
-            return text;
-        }
-        String restText = xMatch.group(2);
-        Matcher dateMatch = SINGLE_DATE_PREFIX.matcher(restText);
-        if (!dateMatch.matches()) {
-            return restText;
-        } else {
-            return dateMatch.group(2);
-        }
+        return textWithoutCompletionInfo;
     }
 
     public String getTextWithoutCompletionAndPriority() {
-        String rest = getTextWithoutCompletionInfo() ;
-        Matcher prioMatch = PRIORITY_PATTERN.matcher(rest);
-        if (!prioMatch.matches()) {
-            return rest;
-        } else {
-            return prioMatch.group(2);
-        }
+        return textWithoutCompletionAndPriority;
     }
 
     public String getCompletionPrefix() {
-        Matcher xMatch = COMPLETED_PATTERN.matcher(text);
-        String result = "";
-        if (!xMatch.matches()) {
-            return result;
-        } else {
-            result = xMatch.group(1);
-        }
-        String restText = xMatch.group(2);
-        Matcher dateMatch = SINGLE_DATE_PREFIX.matcher(restText);
-        if (!dateMatch.matches()) {
-            return result;
-        } else {
-            return result + dateMatch.group(1) + " ";
-        }
-
+        return completionPrefix;
     }
 
     public String getCompletionDate() {
-        Matcher xMatch = COMPLETED_PATTERN.matcher(text);
-        if (!xMatch.matches()) {
-            return null;
-        }
-        String restText = xMatch.group(2);
-        Matcher dateMatch = SINGLE_DATE_PREFIX.matcher(restText);
-        if (!dateMatch.matches()) {
-            return "";
-        } else {
-            return dateMatch.group(1);
-        }
+        return completionDate;
     }
 
     public boolean isCompleted() {
-        return getCompletionDate() != null;
+        return completionDate != null;
     }
 
     public boolean isHidden() {
-        Matcher hiddenMatch = HIDDEN_PATTERN.matcher(text);
-        return hiddenMatch.find();
+        return hidden;
     }
 
     public void markComplete(DateTime date) {
         if (!this.isCompleted()) {
             String completionDate = formatter.print(date);
-            this.text = "x " + completionDate + " " + inFileFormat();
+            setText("x " + completionDate + " " + inFileFormat());
         }
     }
 
     public void markIncomplete() {
-        this.text = getTextWithoutCompletionInfo();
+        setText(getTextWithoutCompletionInfo());
     }
 
     public void delete() {
@@ -490,9 +609,8 @@ public class Task implements Serializable, Comparable<Task> {
 
 
     public String getThresholdDateString(String empty) {
-        Matcher matcher = THRESHOLD_PATTERN.matcher(this.text);
-        if (matcher.find()) {
-            return matcher.group(2);
+        if (thresholdDateString != null) {
+            return thresholdDateString;
         } else {
             return empty;
         }
@@ -520,14 +638,9 @@ public class Task implements Serializable, Comparable<Task> {
     }
 
     public String withoutCreateAndCompletionDate() {
-        // remove completion and creation dates
-        String stext = getTextWithoutCompletionAndPriority();
+        // remove completion, priority and creation dates
+        String stext = text.substring(bodyStart);
 
-        // remove possible create date
-        Matcher m = SINGLE_DATE_PREFIX.matcher(stext);
-        if (m.matches()) {
-            stext = m.group(2);
-        }
         // Re add priority
         if (getPriority()!=Priority.NONE) {
             stext = getPriority().inFileFormat() + " " + stext.trim();
@@ -536,18 +649,8 @@ public class Task implements Serializable, Comparable<Task> {
     }
 
     public String datelessScreenFormat() {
-        // remove completion and creation dates
-        String stext = getTextWithoutCompletionAndPriority();
-
-        // remove possible create date
-        Matcher m = SINGLE_DATE_PREFIX.matcher(stext);
-        if (m.matches()) {
-            stext = m.group(2);
-        }
-        // remove due dates
-        stext = stext.replaceAll(DUE_PATTERN.pattern(), "");
-        // remove threshold dates
-        stext = stext.replaceAll(THRESHOLD_PATTERN.pattern(), "");
+        // remove completion, priority, creation, due and threshold dates
+        String stext = textWithout(bodyStart, TaskToken.Type.DUE_DATE, TaskToken.Type.THRESHOLD_DATE);
 
         // Re add priority
         if (getPriority()!=Priority.NONE) {
@@ -23,18 +23,27 @@
 package nl.mpcjanssen.simpletask.task;
 
 import android.content.SharedPreferences;
+import android.util.Log;
 
 import org.joda.time.DateTime;
 
 import nl.mpcjanssen.simpletask.Simpletask;
+import nl.mpcjanssen.simpletask.remote.FileRange;
 import nl.mpcjanssen.simpletask.remote.PullTodoResult;
+import nl.mpcjanssen.simpletask.remote.RangedRemoteClient;
+import nl.mpcjanssen.simpletask.remote.RemoteClient;
 import nl.mpcjanssen.simpletask.remote.RemoteClientManager;
-import nl.mpcjanssen.simpletask.util.TaskIo;
+import nl.mpcjanssen.simpletask.remote.SyncFile;
+import nl.mpcjanssen.simpletask.remote.TodoMerge;
 import nl.mpcjanssen.simpletask.util.Util;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -45,6 +54,18 @@ import java.util.*;
  *         The taskbag is the backing store for the task list used by the application
  *         It is loaded from and stored to the local copy of the todo.txt file and
  *         it is global to the application so all activities operate on the same copy
+ *         <p/>
+ *         Changes are written behind: store() only marks the bag dirty and a
+ *         single background thread writes the file once no store() happened
+ *         for WRITE_DELAY_MS. Multiple changes in a row result in one write.
+ *         If another app changed todo.txt in the mean time its changes are
+ *         merged into the tasks before writing.
+ *         <p/>
+ *         The list of tasks is only changed while holding the bag. After
+ *         every change an immutable {@link TaskSnapshot} is published, which
+ *         is what readers get, so they never see a list being changed.
+ *         Tasks are changed with {@link #edit(List, Edit)}, which replaces
+ *         them by changed copies so the tasks of a snapshot never change.
  */
 public class TaskBag {
     final static String TAG = Simpletask.class.getSimpleName();
@@ -52,8 +73,27 @@ public class TaskBag {
     private final LocalFileTaskRepository localRepository;
     private final RemoteClientManager remoteClientManager;
     private ArrayList<Task> tasks = new ArrayList<Task>();
-    private Date lastReload = null;
-    private Date lastSync = null;
+    private volatile TaskSnapshot snapshot = TaskSnapshot.EMPTY;
+    private final TaskIndex taskIndex = new TaskIndex();
+    // Contents of the files at the last sync, null if unknown
+    private FileRange todoSynced;
+    private FileRange doneSynced;
+    private int performedReloads;
+    private int skippedReloads;
+    private int skippedUploads;
+
+    private final static long WRITE_DELAY_MS = 500;
+    private final static long MAX_WRITE_DELAY_MS = 2000;
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+    // Held while writing todo.txt so writes and archives don't interleave
+    private final Object writeLock = new Object();
+    private Future<?> pendingWrite;
+    private boolean dirty = false;
+    private long dirtySince;
+    private int requestedWrites;
+    private int performedWrites;
+    private long lastFlushLatency;
+    private long totalFlushLatency;
 
     public TaskBag(Preferences taskBagPreferences,
                    LocalFileTaskRepository localTaskRepository,
@@ -64,55 +104,339 @@ public class TaskBag {
     }
 
 
-    private void store(ArrayList<Task> tasks) {
-        localRepository.store(tasks);
+    /**
+     * Marks the tasks as changed, they will be written to todo.txt in
+     * the background shortly.
+     */
+    public synchronized void store() {
+        long now = System.currentTimeMillis();
+        publish();
+        requestedWrites++;
+        if (!dirty) {
+            dirty = true;
+            dirtySince = now;
+        }
+        if (pendingWrite != null) {
+            pendingWrite.cancel(false);
+        }
+        // Keep postponing while changes come in, but not forever
+        long delay = Math.max(0, Math.min(WRITE_DELAY_MS, dirtySince + MAX_WRITE_DELAY_MS - now));
+        pendingWrite = writer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (TaskPersistException e) {
+                    Log.e(TAG, "Background write of tasks failed", e);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes pending changes to todo.txt and waits until they are written.
+     */
+    public void flush() {
+        synchronized (writeLock) {
+            ArrayList<Task> toWrite;
+            long since;
+            synchronized (this) {
+                if (!dirty) {
+                    return;
+                }
+                cancelPendingWrite();
+                toWrite = new ArrayList<Task>(tasks);
+                since = dirtySince;
+                dirty = false;
+            }
+            try {
+                ArrayList<String> merged = localRepository.mergeExternalChanges(
+                        LocalFileTaskRepository.lines(toWrite));
+                if (merged != null) {
+                    synchronized (this) {
+                        // Changes made since toWrite was taken stay pending
+                        TodoMerge merge = TodoMerge.merge(LocalFileTaskRepository.lines(toWrite),
+                                LocalFileTaskRepository.lines(tasks), merged);
+                        tasks = tasksFor(merge.getLines(), tasks);
+                        taskIndex.rebuild(tasks);
+                        publish();
+                    }
+                    toWrite = tasksFor(merged, toWrite);
+                }
+                localRepository.store(toWrite);
+            } catch (TaskPersistException e) {
+                synchronized (this) {
+                    if (!dirty) {
+                        dirty = true;
+                        dirtySince = since;
+                    }
+                }
+                throw e;
+            }
+            synchronized (this) {
+                performedWrites++;
+                lastFlushLatency = System.currentTimeMillis() - since;
+                totalFlushLatency += lastFlushLatency;
+            }
+        }
+    }
+
+    /**
+     * Writes pending changes to todo.txt on the background thread
+     * without waiting for the write delay.
+     */
+    public synchronized void flushInBackground() {
+        if (!dirty) {
+            return;
+        }
+        cancelPendingWrite();
+        pendingWrite = writer.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (TaskPersistException e) {
+                    Log.e(TAG, "Background write of tasks failed", e);
+                }
+            }
+        });
+    }
+
+    private void cancelPendingWrite() {
+        if (pendingWrite != null) {
+            pendingWrite.cancel(false);
+            pendingWrite = null;
+        }
+    }
+
+    public synchronized boolean isDirty() {
+        return dirty;
+    }
 
-        lastReload = null;
+    /**
+     * @return number of store() calls that were combined with another write
+     */
+    public synchronized int getCoalescedWriteCount() {
+        return requestedWrites - performedWrites - (dirty ? 1 : 0);
     }
 
-    public void store() {
-        store(this.tasks);
+    public synchronized int getPerformedWriteCount() {
+        return performedWrites;
     }
 
+    /**
+     * @return time in ms between the first change and the end of the last write
+     */
+    public synchronized long getLastFlushLatency() {
+        return lastFlushLatency;
+    }
+
+    public synchronized long getAverageFlushLatency() {
+        if (performedWrites == 0) {
+            return 0;
+        }
+        return totalFlushLatency / performedWrites;
+    }
+
+    /**
+     * Moves tasks to done.txt. Like {@link #flush()} the files are written
+     * without holding the bag, changes made in the mean time are merged
+     * into the remaining tasks afterwards.
+     */
     public void archive(List<Task> tasksToArchive) {
-        try {
-            tasks=localRepository.archive(tasks, tasksToArchive);
-        } catch (Exception e) {
-            throw new TaskPersistException(
-                    "An error occurred while archiving", e);
+        synchronized (writeLock) {
+            ArrayList<Task> toWrite;
+            boolean wasDirty;
+            long since;
+            synchronized (this) {
+                // The archive writes todo.txt with all pending changes
+                cancelPendingWrite();
+                toWrite = new ArrayList<Task>(tasks);
+                wasDirty = dirty;
+                since = dirtySince;
+                dirty = false;
+            }
+            ArrayList<String> copied = LocalFileTaskRepository.lines(toWrite);
+            ArrayList<Task> remaining;
+            try {
+                ArrayList<String> merged = localRepository.mergeExternalChanges(copied);
+                if (merged != null) {
+                    toWrite = tasksFor(merged, toWrite);
+                }
+                remaining = localRepository.archive(toWrite, tasksToArchive);
+            } catch (Exception e) {
+                synchronized (this) {
+                    if (wasDirty) {
+                        // Keep the pending changes, the next write retries
+                        if (!dirty) {
+                            dirty = true;
+                            dirtySince = since;
+                        }
+                        flushInBackground();
+                    }
+                }
+                throw new TaskPersistException(
+                        "An error occurred while archiving", e);
+            }
+            synchronized (this) {
+                ArrayList<String> local = LocalFileTaskRepository.lines(tasks);
+                if (local.equals(copied)) {
+                    tasks = remaining;
+                    taskIndex.sync(tasks);
+                } else {
+                    // Changes made while archiving stay pending
+                    TodoMerge merge = TodoMerge.merge(copied, local,
+                            LocalFileTaskRepository.lines(remaining));
+                    tasks = tasksFor(merge.getLines(), tasks);
+                    taskIndex.rebuild(tasks);
+                    store();
+                }
+                publish();
+            }
         }
     }
 
-    public void reload() {
-        if (lastReload == null || localRepository.todoFileModifiedSince(lastReload)) {
-            localRepository.init();
-            this.tasks = localRepository.load();
-            lastReload = new Date();
+    /**
+     * @return tasks for lines, reusing the tasks of existing with the same
+     * text so references to them stay valid. New tasks get ids above those
+     * of existing, in the order of lines.
+     */
+    private static ArrayList<Task> tasksFor(List<String> lines, List<Task> existing) {
+        long id = nextId(existing);
+        HashMap<String, LinkedList<Task>> byText = new HashMap<String, LinkedList<Task>>();
+        for (Task task : existing) {
+            LinkedList<Task> same = byText.get(task.inFileFormat());
+            if (same == null) {
+                same = new LinkedList<Task>();
+                byText.put(task.inFileFormat(), same);
+            }
+            same.add(task);
+        }
+        ArrayList<Task> result = new ArrayList<Task>(lines.size());
+        for (String line : lines) {
+            LinkedList<Task> same = byText.get(line);
+            if (same != null && !same.isEmpty()) {
+                result.add(same.removeFirst());
+            } else {
+                result.add(new Task(id++, line));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return an id above the ids of tasks, so it doesn't collide with them
+     */
+    private static long nextId(List<Task> tasks) {
+        long max = -1;
+        for (Task task : tasks) {
+            if (task != null && task.getId() > max) {
+                max = task.getId();
+            }
+        }
+        return max + 1;
+    }
 
+    /**
+     * Loads todo.txt if it changed since it was last read or written. The
+     * file is parsed without holding the bag, so callers on other threads
+     * only wait for the new tasks to be swapped in.
+     *
+     * @return true if the tasks were replaced
+     */
+    public boolean reload() {
+        synchronized (writeLock) {
+            synchronized (this) {
+                if (dirty) {
+                    // Pending changes in memory are newer than the file
+                    return false;
+                }
+            }
+            if (!localRepository.todoFileChanged()) {
+                synchronized (this) {
+                    skippedReloads++;
+                }
+                return false;
+            }
+            ArrayList<Task> loaded = localRepository.load();
+            synchronized (this) {
+                if (dirty) {
+                    // Changed while loading, the pending write wins
+                    return false;
+                }
+                tasks = loaded;
+                taskIndex.rebuild(tasks);
+                publish();
+                performedReloads++;
+                return true;
+            }
         }
     }
 
+    public synchronized int getPerformedReloadCount() {
+        return performedReloads;
+    }
+
+    /**
+     * @return number of reloads skipped because todo.txt didn't change
+     */
+    public synchronized int getSkippedReloadCount() {
+        return skippedReloads;
+    }
+
+    /**
+     * @return number of files not pushed because they didn't change since
+     * the last sync
+     */
+    public synchronized int getSkippedUploadCount() {
+        return skippedUploads;
+    }
+
+    /**
+     * Publishes the current tasks to readers, call while holding the bag
+     * after every change.
+     */
+    private void publish() {
+        snapshot = new TaskSnapshot(new ArrayList<Task>(tasks), snapshot.getVersion() + 1);
+    }
+
+    /**
+     * @return the tasks as of the last change, safe to use from any thread
+     */
+    public TaskSnapshot getSnapshot() {
+        return snapshot;
+    }
+
     public int size() {
-        return tasks.size();
+        return snapshot.size();
+    }
+
+    public List<Task> getTasks() {
+        return snapshot.getTasks();
     }
 
-    public ArrayList<Task> getTasks() {
-        return tasks;
+    /**
+     * @return true if new tasks are added at the end of the list, false if
+     * they are added at the start
+     */
+    public boolean addsAtEnd() {
+        return preferences.addAtEnd();
     }
 
     public Task getTaskAt(int position) {
-        return tasks.get(position);
+        return snapshot.get(position);
     }
 
-    public Task addAsTask(String input) {
+    public synchronized Task addAsTask(String input) {
         try {
-            Task task = new Task(tasks.size(), input,
+            Task task = new Task(nextId(tasks), input,
                     (preferences.isPrependDateEnabled() ? new DateTime() : null));
 	    if (preferences.addAtEnd()) {
 		tasks.add(task);
 	    } else {
 		tasks.add(0,task);
 	    }
+            taskIndex.add(task);
             store();
             return task;
         } catch (Exception e) {
@@ -121,16 +445,98 @@ public class TaskBag {
         }
     }
 
-    public void updateTask(Task task, String input) {
-        int index = tasks.indexOf(task);
-        if (index!=-1) {
-            tasks.get(index).init(input, null);
-            store();
+    public void updateTask(Task task, final String input) {
+        edit(Collections.singletonList(task), new Edit() {
+            @Override
+            public void apply(Task task) {
+                task.init(input, null);
+            }
+        });
+    }
+
+    /**
+     * Change of a task, made to a copy of it.
+     */
+    public interface Edit {
+        void apply(Task task);
+    }
+
+    /**
+     * Replaces the tasks by copies changed by edit. Tasks the edit doesn't
+     * change are kept.
+     *
+     * @return the copies in the order of toEdit, null for tasks which are
+     * not in the bag
+     */
+    public synchronized ArrayList<Task> edit(List<Task> toEdit, Edit edit) {
+        ArrayList<Task> edited = new ArrayList<Task>(toEdit.size());
+        for (Task task : toEdit) {
+            int index = task == null ? -1 : tasks.indexOf(task);
+            if (index == -1) {
+                edited.add(null);
+                continue;
+            }
+            Task old = tasks.get(index);
+            Task copy = new Task(old.getId(), old.inFileFormat());
+            edit.apply(copy);
+            if (copy.inFileFormat().equals(old.inFileFormat())) {
+                edited.add(old);
+                continue;
+            }
+            tasks.set(index, copy);
+            taskIndex.remove(old);
+            taskIndex.add(copy);
+            edited.add(copy);
         }
+        store();
+        return edited;
     }
 
-    public void delete(Task task) {
+    public synchronized void delete(Task task) {
         tasks.remove(task);
+        taskIndex.remove(task);
+        publish();
+    }
+
+    /**
+     * @return the index of the tasks, kept up to date with every change
+     */
+    public TaskIndex getIndex() {
+        return taskIndex;
+    }
+
+    /**
+     * Finds the tasks of the bag and the archived tasks in done.txt
+     * containing every word of query, ignoring case. Reads done.txt, so
+     * call it on a background thread.
+     *
+     * @return the matching tasks of the bag followed by the matching
+     * archived tasks, oldest first. Archived tasks get negative ids so
+     * they never collide with the ids of the tasks in the bag.
+     */
+    public ArrayList<Task> search(String query) {
+        List<Task> tasks = getTasks();
+        ArrayList<String> lines = new ArrayList<String>(tasks.size());
+        for (Task task : tasks) {
+            lines.add(task.inFileFormat());
+        }
+        TrigramIndex index = localRepository.getTrigramIndex();
+        // Only lines changed since the last search are indexed
+        index.updateTodo(lines);
+        HashSet<String> todoLines = new HashSet<String>(index.searchTodo(query));
+        ArrayList<Task> found = new ArrayList<Task>();
+        if (!todoLines.isEmpty()) {
+            for (Task task : tasks) {
+                if (todoLines.contains(task.inFileFormat())) {
+                    found.add(task);
+                }
+            }
+        }
+        long id = -1;
+        for (String line : index.searchDone(query)) {
+            found.add(new Task(id--, line));
+        }
+        return found;
     }
 
     /* REMOTE APIS */
@@ -138,41 +544,137 @@ public class TaskBag {
         pushToRemote(false, overwrite);
     }
 
+    /**
+     * Uploads copies of the files changed since the last sync, taken
+     * between writes. The client merges remote changes into the copies,
+     * which are then merged into the tasks and done.txt under the write
+     * lock like a pull.
+     */
     public void pushToRemote(boolean overridePreference, boolean overwrite) {
-        if (this.preferences.isOnline() || overridePreference) {
-            File doneFile = null;
-            if (localRepository.doneFileModifiedSince(lastSync)) {
-                doneFile = localRepository.DONE_TXT_FILE;
-            }
-            remoteClientManager.getRemoteClient().pushTodo(
-                    localRepository.TODO_TXT_FILE,
-                    doneFile,
-                    overwrite);
-            lastSync = new Date();
+        if (!this.preferences.isOnline() && !overridePreference) {
+            return;
+        }
+        RemoteClient client = remoteClientManager.getRemoteClient();
+        File todoCopy = null;
+        File doneCopy = null;
+        ArrayList<String> copiedTodo = null;
+        FileRange todoCopied = null;
+        FileRange doneCopied = null;
+        try {
+            synchronized (writeLock) {
+                flush();
+                FileRange done = localRepository.getDoneRange();
+                if (done != null && !done.equals(doneSynced)) {
+                    doneCopy = localRepository.copyForPush(localRepository.DONE_TXT_FILE);
+                    doneCopied = done;
+                } else {
+                    skippedUpload();
+                }
+                FileRange todo = FileRange.of(localRepository.TODO_TXT_FILE);
+                if (overwrite || todoSynced == null || !todoSynced.equals(todo)) {
+                    todoCopy = localRepository.copyForPush(localRepository.TODO_TXT_FILE);
+                    copiedTodo = LocalFileTaskRepository.loadLines(todoCopy);
+                    todoCopied = FileRange.of(todoCopy);
+                } else {
+                    skippedUpload();
+                }
+            }
+            if (doneCopy != null && client instanceof RangedRemoteClient
+                    && pushAppended((RangedRemoteClient) client, SyncFile.DONE, doneCopy)) {
+                synchronized (writeLock) {
+                    doneSynced = doneCopied;
+                }
+                doneCopy.delete();
+                doneCopy = null;
+            }
+            if (todoCopy == null && doneCopy == null) {
+                return;
+            }
+            client.pushTodo(todoCopy, doneCopy, overwrite);
+            synchronized (writeLock) {
+                // Remote changes may have been merged into the uploaded copies
+                if (todoCopy != null) {
+                    todoSynced = FileRange.of(todoCopy);
+                    if (todoSynced != null && !todoSynced.equals(todoCopied)) {
+                        mergePushed(copiedTodo, LocalFileTaskRepository.loadLines(todoCopy));
+                    }
+                }
+                if (doneCopy != null) {
+                    doneSynced = FileRange.of(doneCopy);
+                    if (!doneCopied.equals(doneSynced)) {
+                        localRepository.replaceDone(doneCopy, doneCopied);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new TaskPersistException("Error copying tasks for upload", e);
+        } finally {
+            if (todoCopy != null) {
+                todoCopy.delete();
+            }
+            if (doneCopy != null) {
+                doneCopy.delete();
+            }
+        }
+    }
+
+    /**
+     * Takes over the remote changes merged into the uploaded copy of
+     * todo.txt. Changes made to the tasks during the push are kept.
+     *
+     * @param copied the lines of todo.txt when the copy was taken
+     */
+    private void mergePushed(List<String> copied, List<String> uploaded) {
+        synchronized (writeLock) {
+            synchronized (this) {
+                TodoMerge merge = TodoMerge.merge(copied, LocalFileTaskRepository.lines(tasks), uploaded);
+                if (merge.hasConflicts()) {
+                    Log.w(TAG, "Tasks changed during push, keeping both: " + merge.getConflicts());
+                }
+                tasks = tasksFor(merge.getLines(), tasks);
+                taskIndex.rebuild(tasks);
+                store();
+            }
+            flush();
         }
     }
 
     public void pullFromRemote(boolean overridePreference) {
         try {
             if (this.preferences.isOnline() || overridePreference) {
-                PullTodoResult result = remoteClientManager.getRemoteClient()
-                        .pullTodo();
+                ArrayList<String> base;
+                synchronized (writeLock) {
+                    flush();
+                    synchronized (this) {
+                        base = LocalFileTaskRepository.lines(tasks);
+                    }
+                }
+                RemoteClient client = remoteClientManager.getRemoteClient();
+                PullTodoResult result;
+                if (client instanceof RangedRemoteClient) {
+                    result = ((RangedRemoteClient) client).pullTodoOnly();
+                } else {
+                    result = client.pullTodo();
+                }
                 File todoFile = result.getTodoFile();
                 if (todoFile != null && todoFile.exists()) {
-                    ArrayList<Task> remoteTasks = TaskIo
-                            .loadTasksFromFile(todoFile, preferences);
-                    store(remoteTasks);
-                    reload();
+                    replace(todoFile, base);
                 }
 
                 File doneFile = result.getDoneFile();
-                if (doneFile != null && doneFile.exists()) {
-                    localRepository.loadDoneTasks(doneFile);
-                } else if (doneFile == null) {
-                    // Dropbox has no done file so remove this one
-                    localRepository.removeDoneFile();
+                if (client instanceof RangedRemoteClient) {
+                    pullAppended((RangedRemoteClient) client, SyncFile.DONE);
+                } else {
+                    synchronized (writeLock) {
+                        if (doneFile != null && doneFile.exists()) {
+                            localRepository.loadDoneTasks(doneFile);
+                        } else if (doneFile == null) {
+                            // Dropbox has no done file so remove this one
+                            localRepository.removeDoneFile();
+                        }
+                        doneSynced = localRepository.getDoneRange();
+                    }
                 }
-                lastSync = new Date();
             }
         } catch (IOException e) {
             throw new TaskPersistException(
@@ -180,25 +682,120 @@ public class TaskBag {
         }
     }
 
-    public ArrayList<Priority> getPriorities() {
-        // TODO cache this after reloads?
-        Set<Priority> res = new HashSet<Priority>();
-        for (Task item : tasks) {
-            res.add(item.getPriority());
+    private synchronized void skippedUpload() {
+        skippedUploads++;
+    }
+
+    /**
+     * Makes a pulled todo.txt the local one and swaps in its tasks. Local
+     * changes made while pulling are merged with the pulled tasks and
+     * written, the next push uploads them.
+     *
+     * @param base the lines of the tasks when the pull started
+     */
+    private void replace(File pulled, List<String> base) {
+        synchronized (writeLock) {
+            ArrayList<Task> remoteTasks = localRepository.replace(pulled);
+            synchronized (this) {
+                todoSynced = LocalFileTaskRepository.rangeOf(localRepository.TODO_TXT_FILE);
+                ArrayList<String> local = LocalFileTaskRepository.lines(tasks);
+                if (local.equals(base)) {
+                    tasks = remoteTasks;
+                    taskIndex.rebuild(tasks);
+                    publish();
+                    return;
+                }
+                TodoMerge merge = TodoMerge.merge(base, local, LocalFileTaskRepository.lines(remoteTasks));
+                if (merge.hasConflicts()) {
+                    Log.w(TAG, "Tasks changed during pull, keeping both: " + merge.getConflicts());
+                }
+                tasks = tasksFor(merge.getLines(), tasks);
+                taskIndex.rebuild(tasks);
+                store();
+            }
+            flush();
         }
-        ArrayList<Priority> ret = new ArrayList<Priority>(res);
-        Collections.sort(ret);
-        return ret;
     }
 
-    public ArrayList<String> getContexts(boolean includeNone) {
-        // TODO cache this after reloads?
-        Set<String> res = new HashSet<String>();
-        for (Task item : tasks) {
-            res.addAll(item.getLists());
+    /**
+     * Uploads only the end of local if the remote file is the start of it.
+     *
+     * @return false if the whole file has to be uploaded
+     */
+    private static boolean pushAppended(RangedRemoteClient client, SyncFile file, File local) {
+        try {
+            FileRange remote = client.getRange(file);
+            if (remote == null) {
+                remote = FileRange.EMPTY;
+            }
+            if (!remote.equals(FileRange.of(local, remote.getLength()))) {
+                return false;
+            }
+            FileRange result = client.append(file, local, remote);
+            Log.v(TAG, "Appended " + (local.length() - remote.getLength()) + " bytes to remote " + file
+                    + ": " + (result != null));
+            return result != null;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read " + local, e);
+            return false;
         }
-        ArrayList<String> ret = new ArrayList<String>(res);
-        Collections.sort(ret);
+    }
+
+    /**
+     * Downloads only the end of the remote file if done.txt is the start
+     * of it, keeps done.txt if the remote file is the start of it and
+     * downloads the whole remote file otherwise. The download goes into a
+     * copy of done.txt which then replaces it, tasks archived in the mean
+     * time are appended to it again.
+     */
+    private void pullAppended(RangedRemoteClient client, SyncFile file) throws IOException {
+        FileRange remote = client.getRange(file);
+        File copy;
+        FileRange copied;
+        synchronized (writeLock) {
+            if (remote == null) {
+                // Remote has no done file so remove this one
+                localRepository.removeDoneFile();
+                doneSynced = null;
+                return;
+            }
+            File local = localRepository.DONE_TXT_FILE;
+            if (remote.equals(FileRange.of(local, remote.getLength()))) {
+                // Nothing new remotely, local changes will be pushed
+                if (remote.getLength() == local.length()) {
+                    doneSynced = remote;
+                }
+                return;
+            }
+            FileRange done = localRepository.getDoneRange();
+            copy = localRepository.copyForPush(local);
+            copied = done != null ? done : FileRange.EMPTY;
+        }
+        try {
+            FileRange pulled = client.download(file, copy, copied);
+            if (pulled == null) {
+                Log.v(TAG, "Remote " + file + " doesn't start with local file, downloading all");
+                pulled = client.download(file, copy, FileRange.EMPTY);
+                if (pulled == null) {
+                    // Removed in the mean time, the next pull handles it
+                    return;
+                }
+            }
+            synchronized (writeLock) {
+                doneSynced = pulled;
+                localRepository.replaceDone(copy, copied);
+            }
+        } finally {
+            copy.delete();
+        }
+    }
+
+    public ArrayList<Priority> getPriorities() {
+        return getIndex().getPriorities();
+    }
+
+    public ArrayList<String> getContexts(boolean includeNone) {
+        ArrayList<String> ret = getIndex().getContexts();
         if (includeNone) {
             ret.add(0, "-");
         }
@@ -206,13 +803,7 @@ public class TaskBag {
     }
 
     public ArrayList<String> getProjects(boolean includeNone) {
-        // TODO cache this after reloads?
-        Set<String> res = new HashSet<String>();
-        for (Task item : tasks) {
-            res.addAll(item.getTags());
-        }
-        ArrayList<String> ret = new ArrayList<String>(res);
-        Collections.sort(ret);
+        ArrayList<String> ret = getIndex().getProjects();
         if (includeNone) {
             ret.add(0, "-");
         }
@@ -0,0 +1,444 @@
+/**
+ * This file is part of Simpletask.
+ *
+ * @license http://www.gnu.org/licenses/gpl.html
+ */
+package nl.mpcjanssen.simpletask.task;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+
+/**
+ * Inverted index from contexts, projects, priorities and completion state
+ * to the tasks that have them.
+ *
+ * Every indexed task gets a small integer id, the tasks belonging to a
+ * context, project or priority are stored as a BitSet of these ids. Ids of
+ * removed tasks are reused so the sets stay dense.
+ *
+ * The bag never changes indexed tasks, it replaces them by changed copies
+ * and updates the index with them. sync() brings the index in line with a
+ * new list of tasks, keeping the entries of the tasks still in it.
+ */
+public class TaskIndex {
+    private final IdentityHashMap<Task, Entry> m_entries = new IdentityHashMap<Task, Entry>();
+    private final ArrayList<Task> m_tasks = new ArrayList<Task>();
+    private final ArrayList<Integer> m_freeIds = new ArrayList<Integer>();
+    private final HashMap<String, BitSet> m_contexts = new HashMap<String, BitSet>();
+    private final HashMap<String, BitSet> m_projects = new HashMap<String, BitSet>();
+    private final EnumMap<Priority, BitSet> m_priorities = new EnumMap<Priority, BitSet>(Priority.class);
+    private final BitSet m_noContext = new BitSet();
+    private final BitSet m_noProject = new BitSet();
+    private final BitSet m_all = new BitSet();
+    private final BitSet m_completed = new BitSet();
+    // Tasks with a threshold date, whether that is in the future depends on
+    // the moment of the query
+    private final BitSet m_threshold = new BitSet();
+    private int m_generation;
+    // Sorted keys, null when a key was added or removed
+    private ArrayList<String> m_sortedContexts;
+    private ArrayList<String> m_sortedProjects;
+
+    private static class Entry {
+        final int id;
+        String text;
+        List<String> lists;
+        List<String> tags;
+        Priority priority;
+        DateTime thresholdDate;
+        int generation;
+
+        Entry(int id) {
+            this.id = id;
+        }
+    }
+
+    public synchronized void rebuild(List<Task> tasks) {
+        m_entries.clear();
+        m_tasks.clear();
+        m_freeIds.clear();
+        m_contexts.clear();
+        m_projects.clear();
+        m_priorities.clear();
+        m_noContext.clear();
+        m_noProject.clear();
+        m_all.clear();
+        m_completed.clear();
+        m_threshold.clear();
+        m_sortedContexts = null;
+        m_sortedProjects = null;
+        for (Task task : tasks) {
+            if (task != null) {
+                add(task);
+            }
+        }
+    }
+
+    public synchronized void add(Task task) {
+        if (m_entries.containsKey(task)) {
+            update(task);
+            return;
+        }
+        int id;
+        if (m_freeIds.size() > 0) {
+            id = m_freeIds.remove(m_freeIds.size() - 1);
+            m_tasks.set(id, task);
+        } else {
+            id = m_tasks.size();
+            m_tasks.add(task);
+        }
+        Entry entry = new Entry(id);
+        m_entries.put(task, entry);
+        index(task, entry);
+    }
+
+    public synchronized void remove(Task task) {
+        Entry entry = m_entries.remove(task);
+        if (entry == null) {
+            return;
+        }
+        unindex(entry);
+        m_tasks.set(entry.id, null);
+        m_freeIds.add(entry.id);
+    }
+
+    /**
+     * Reindexes the task if its text changed since it was indexed.
+     */
+    public synchronized void update(Task task) {
+        Entry entry = m_entries.get(task);
+        if (entry == null) {
+            add(task);
+        } else if (entry.text != task.inFileFormat()) {
+            unindex(entry);
+            index(task, entry);
+        }
+    }
+
+    /**
+     * Brings the index in line with tasks: adds new tasks, reindexes
+     * changed tasks and drops tasks that are no longer in the list.
+     */
+    public synchronized void sync(List<Task> tasks) {
+        int generation = ++m_generation;
+        int seen = 0;
+        for (Task task : tasks) {
+            if (task == null) {
+                continue;
+            }
+            update(task);
+            Entry entry = m_entries.get(task);
+            if (entry.generation != generation) {
+                entry.generation = generation;
+                seen++;
+            }
+        }
+        if (seen != m_entries.size()) {
+            ArrayList<Task> removed = new ArrayList<Task>();
+            for (Map.Entry<Task, Entry> e : m_entries.entrySet()) {
+                if (e.getValue().generation != generation) {
+                    removed.add(e.getKey());
+                }
+            }
+            for (Task task : removed) {
+                remove(task);
+            }
+        }
+    }
+
+    private void index(Task task, Entry entry) {
+        entry.text = task.inFileFormat();
+        entry.lists = task.getLists();
+        entry.tags = task.getTags();
+        entry.priority = task.getPriority();
+        entry.thresholdDate = task.getThresholdDate();
+        m_all.set(entry.id);
+        m_completed.set(entry.id, task.isCompleted());
+        m_threshold.set(entry.id, entry.thresholdDate != null);
+        if (addAll(m_contexts, m_noContext, entry.lists, entry.id)) {
+            m_sortedContexts = null;
+        }
+        if (addAll(m_projects, m_noProject, entry.tags, entry.id)) {
+            m_sortedProjects = null;
+        }
+        BitSet prios = m_priorities.get(entry.priority);
+        if (prios == null) {
+            prios = new BitSet();
+            m_priorities.put(entry.priority, prios);
+        }
+        prios.set(entry.id);
+    }
+
+    private void unindex(Entry entry) {
+        m_all.clear(entry.id);
+        m_completed.clear(entry.id);
+        m_threshold.clear(entry.id);
+        if (removeAll(m_contexts, m_noContext, entry.lists, entry.id)) {
+            m_sortedContexts = null;
+        }
+        if (removeAll(m_projects, m_noProject, entry.tags, entry.id)) {
+            m_sortedProjects = null;
+        }
+        BitSet prios = m_priorities.get(entry.priority);
+        prios.clear(entry.id);
+        if (prios.isEmpty()) {
+            m_priorities.remove(entry.priority);
+        }
+    }
+
+    /**
+     * @return true if a new key was added to the index
+     */
+    private static boolean addAll(HashMap<String, BitSet> index, BitSet none, List<String> keys, int id) {
+        boolean keysChanged = false;
+        if (keys.size() == 0) {
+            none.set(id);
+        }
+        for (String key : keys) {
+            BitSet ids = index.get(key);
+            if (ids == null) {
+                ids = new BitSet();
+                index.put(key, ids);
+                keysChanged = true;
+            }
+            ids.set(id);
+        }
+        return keysChanged;
+    }
+
+    /**
+     * @return true if a key was removed from the index
+     */
+    private static boolean removeAll(HashMap<String, BitSet> index, BitSet none, List<String> keys, int id) {
+        boolean keysChanged = false;
+        none.clear(id);
+        for (String key : keys) {
+            BitSet ids = index.get(key);
+            if (ids != null) {
+                ids.clear(id);
+                if (ids.isEmpty()) {
+                    index.remove(key);
+                    keysChanged = true;
+                }
+            }
+        }
+        return keysChanged;
+    }
+
+    /**
+     * @return the sorted contexts used by the indexed tasks
+     */
+    public synchronized ArrayList<String> getContexts() {
+        if (m_sortedContexts == null) {
+            m_sortedContexts = new ArrayList<String>(m_contexts.keySet());
+            Collections.sort(m_sortedContexts);
+        }
+        return new ArrayList<String>(m_sortedContexts);
+    }
+
+    /**
+     * @return the sorted projects used by the indexed tasks
+     */
+    public synchronized ArrayList<String> getProjects() {
+        if (m_sortedProjects == null) {
+            m_sortedProjects = new ArrayList<String>(m_projects.keySet());
+            Collections.sort(m_sortedProjects);
+        }
+        return new ArrayList<String>(m_sortedProjects);
+    }
+
+    /**
+     * @return the sorted priorities used by the indexed tasks
+     */
+    public synchronized ArrayList<Priority> getPriorities() {
+        return new ArrayList<Priority>(m_priorities.keySet());
+    }
+
+    public synchronized int getContextCount(String context) {
+        return count(m_contexts, m_noContext, context);
+    }
+
+    public synchronized int getProjectCount(String project) {
+        return count(m_projects, m_noProject, project);
+    }
+
+    public synchronized int getPriorityCount(Priority priority) {
+        BitSet ids = m_priorities.get(priority);
+        return ids == null ? 0 : ids.cardinality();
+    }
+
+    private static int count(HashMap<String, BitSet> index, BitSet none, String key) {
+        BitSet ids = "-".equals(key) ? none : index.get(key);
+        return ids == null ? 0 : ids.cardinality();
+    }
+
+    /**
+     * @param contexts the contexts to look up, "-" stands for tasks without context
+     * @return the ids of the tasks having at least one of the contexts
+     */
+    public synchronized BitSet getContextIds(Collection<String> contexts) {
+        return union(m_contexts, m_noContext, contexts);
+    }
+
+    /**
+     * @param projects the projects to look up, "-" stands for tasks without project
+     * @return the ids of the tasks having at least one of the projects
+     */
+    public synchronized BitSet getProjectIds(Collection<String> projects) {
+        return union(m_projects, m_noProject, projects);
+    }
+
+    public synchronized BitSet getPriorityIds(Collection<Priority> priorities) {
+        BitSet result = new BitSet();
+        for (Priority priority : priorities) {
+            BitSet ids = m_priorities.get(priority);
+            if (ids != null) {
+                result.or(ids);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the ids of all indexed tasks
+     */
+    public synchronized BitSet getAllIds() {
+        return (BitSet) m_all.clone();
+    }
+
+    public synchronized BitSet getCompletedIds() {
+        return (BitSet) m_completed.clone();
+    }
+
+    /**
+     * @return the ids of the tasks with a threshold date after now
+     */
+    public synchronized BitSet getFutureIds() {
+        DateTime now = new DateTime();
+        BitSet result = new BitSet();
+        for (int id = m_threshold.nextSetBit(0); id >= 0; id = m_threshold.nextSetBit(id + 1)) {
+            if (m_entries.get(m_tasks.get(id)).thresholdDate.isAfter(now)) {
+                result.set(id);
+            }
+        }
+        return result;
+    }
+
+    private static BitSet union(HashMap<String, BitSet> index, BitSet none, Collection<String> keys) {
+        BitSet result = new BitSet();
+        for (String key : keys) {
+            BitSet ids = "-".equals(key) ? none : index.get(key);
+            if (ids != null) {
+                result.or(ids);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Positions in a list of tasks answered by {@link #query}.
+     */
+    public static class Matches {
+        private final BitSet m_matched = new BitSet();
+        private final BitSet m_unindexed = new BitSet();
+
+        /**
+         * @return true if the task at position has the queried properties
+         */
+        public boolean isMatched(int position) {
+            return m_matched.get(position);
+        }
+
+        /**
+         * @return true if the task at position is not indexed (or changed
+         * since it was indexed) and has to be checked by itself
+         */
+        public boolean isUnindexed(int position) {
+            return m_unindexed.get(position);
+        }
+    }
+
+    /**
+     * Looks up which tasks have the given properties. The ids are
+     * combined and mapped to the tasks while holding the index, so a
+     * rebuild in between can't give the ids to other tasks. Empty
+     * collections don't restrict the result.
+     *
+     * @param prioritiesNot true to exclude the priorities instead, the
+     *                      same goes for contextsNot and projectsNot
+     */
+    public synchronized Matches query(List<Task> tasks,
+                                      Collection<Priority> priorities, boolean prioritiesNot,
+                                      Collection<String> contexts, boolean contextsNot,
+                                      Collection<String> projects, boolean projectsNot,
+                                      boolean hideCompleted, boolean hideFuture) {
+        BitSet ids = getAllIds();
+        if (priorities.size() > 0) {
+            restrict(ids, getPriorityIds(priorities), prioritiesNot);
+        }
+        if (contexts.size() > 0) {
+            restrict(ids, getContextIds(contexts), contextsNot);
+        }
+        if (projects.size() > 0) {
+            restrict(ids, getProjectIds(projects), projectsNot);
+        }
+        if (hideCompleted) {
+            ids.andNot(m_completed);
+        }
+        if (hideFuture) {
+            ids.andNot(getFutureIds());
+        }
+        Matches matches = new Matches();
+        int position = 0;
+        for (Task task : tasks) {
+            int id = getId(task);
+            if (id == -1) {
+                matches.m_unindexed.set(position);
+            } else if (ids.get(id)) {
+                matches.m_matched.set(position);
+            }
+            position++;
+        }
+        return matches;
+    }
+
+    private static void restrict(BitSet ids, BitSet selected, boolean not) {
+        if (not) {
+            ids.andNot(selected);
+        } else {
+            ids.and(selected);
+        }
+    }
+
+    /**
+     * @return the id of the task in this index or -1 if the task is not
+     * indexed or changed since it was indexed
+     */
+    public synchronized int getId(Task task) {
+        Entry entry = m_entries.get(task);
+        if (entry == null || entry.text != task.inFileFormat()) {
+            return -1;
+        }
+        return entry.id;
+    }
+
+    public synchronized Task getTask(int id) {
+        if (id < 0 || id >= m_tasks.size()) {
+            return null;
+        }
+        return m_tasks.get(id);
+    }
+
+    public synchronized int size() {
+        return m_entries.size();
+    }
+}
@@ -0,0 +1,337 @@
+/**
+ * This file is part of Simpletask.
+ *
+ * @license http://www.gnu.org/licenses/gpl.html
+ */
+package nl.mpcjanssen.simpletask.task;
+
+import java.util.ArrayList;
+
+import nl.mpcjanssen.simpletask.task.TaskToken.Type;
+
+/**
+ * Splits a single todo.txt line into {@link TaskToken}s in one pass.
+ *
+ * The tokens cover the complete line, including the white space between
+ * the words, so concatenating their text always gives back the original
+ * line.
+ *
+ * The header of the line is recognized positionally as described by the
+ * todo.txt format: an optional "x " completion marker followed by an
+ * optional completion date, an optional "(A) " priority and an optional
+ * creation date. Every other white space delimited word is classified on
+ * its own.
+ */
+public class TaskLexer {
+
+    private TaskLexer() {
+    }
+
+    public static ArrayList<TaskToken> tokenize(String line) {
+        ArrayList<TaskToken> tokens = new ArrayList<TaskToken>();
+        int len = line.length();
+        int pos = 0;
+
+        // Header, every part has to be followed by a single space
+        if (len >= 2 && (line.charAt(0) == 'x' || line.charAt(0) == 'X') && line.charAt(1) == ' ') {
+            tokens.add(new TaskToken(Type.COMPLETED, line, 0, 1));
+            pos = 1;
+            if (isDateAt(line, 2) && isSpaceAt(line, 12)) {
+                pos = whiteSpace(tokens, line, pos);
+                tokens.add(new TaskToken(Type.COMPLETION_DATE, line, pos, pos + 10));
+                pos = pos + 10;
+            }
+        }
+        int headerPos = (pos == 0) ? 0 : pos + 1;
+        if (isPriorityAt(line, headerPos)) {
+            pos = whiteSpace(tokens, line, pos);
+            tokens.add(new TaskToken(Type.PRIORITY, line, pos, pos + 3, pos + 1, pos + 2));
+            pos = pos + 3;
+            headerPos = pos + 1;
+        }
+        if (isDateAt(line, headerPos) && isSpaceAt(line, headerPos + 10)) {
+            pos = whiteSpace(tokens, line, pos);
+            tokens.add(new TaskToken(Type.CREATION_DATE, line, pos, pos + 10));
+            pos = pos + 10;
+        }
+
+        // Body
+        while (pos < len) {
+            if (isWhiteSpace(line.charAt(pos))) {
+                pos = whiteSpace(tokens, line, pos);
+            } else {
+                int end = pos;
+                while (end < len && !isWhiteSpace(line.charAt(end))) {
+                    end++;
+                }
+                tokens.add(word(line, pos, end));
+                pos = end;
+            }
+        }
+        return tokens;
+    }
+
+    private static int whiteSpace(ArrayList<TaskToken> tokens, String line, int start) {
+        int end = start;
+        while (end < line.length() && isWhiteSpace(line.charAt(end))) {
+            end++;
+        }
+        if (end > start) {
+            tokens.add(new TaskToken(Type.WHITE_SPACE, line, start, end));
+        }
+        return end;
+    }
+
+    private static TaskToken word(String line, int start, int end) {
+        char first = line.charAt(start);
+        if (first == '@' || first == '+') {
+            int last = end - 1;
+            while (last > start && !isWordChar(line.charAt(last))) {
+                last--;
+            }
+            if (last > start) {
+                return new TaskToken(first == '@' ? Type.LIST : Type.TAG, line, start, end, start + 1, last + 1);
+            }
+        }
+
+        TaskToken link = link(line, start, end);
+        if (link != null) {
+            return link;
+        }
+
+        int colon = indexOf(line, ':', start, end);
+        if (colon > start && colon < end - 1) {
+            int valueStart = colon + 1;
+            int valueLength = end - valueStart;
+            if (isKey(line, start, colon, "due") && valueLength == 10 && isDateAt(line, valueStart)) {
+                return new TaskToken(Type.DUE_DATE, line, start, end, valueStart, end);
+            }
+            if (isKey(line, start, colon, "t") && valueLength == 10 && isDateAt(line, valueStart)) {
+                return new TaskToken(Type.THRESHOLD_DATE, line, start, end, valueStart, end);
+            }
+            if (isKey(line, start, colon, "rec") && isRecurrence(line, valueStart, end)) {
+                return new TaskToken(Type.RECURRENCE, line, start, end, valueStart, end);
+            }
+            if (isKey(line, start, colon, "h") && valueLength == 1 && line.charAt(valueStart) == '1') {
+                return new TaskToken(Type.HIDDEN, line, start, end, valueStart, end);
+            }
+        }
+
+        TaskToken mail = mail(line, start, end);
+        if (mail != null) {
+            return mail;
+        }
+        if (isPhoneNumber(line, start, end)) {
+            return new TaskToken(Type.PHONE, line, start, end);
+        }
+        if (colon > start && colon < end - 1) {
+            return new TaskToken(Type.KEY_VALUE, line, start, end, colon + 1, end);
+        }
+        return new TaskToken(Type.WORD, line, start, end);
+    }
+
+    /**
+     * Finds a http(s) link inside the word. The value of the token is the
+     * link itself, without surrounding punctuation such as a trailing period.
+     */
+    private static TaskToken link(String line, int start, int end) {
+        int sep = indexOf(line, ':', start, end);
+        while (sep != -1 && sep + 3 < end) {
+            if (line.startsWith("//", sep + 1)) {
+                int linkStart = -1;
+                if (sep - 5 >= start && line.startsWith("https", sep - 5)) {
+                    linkStart = sep - 5;
+                } else if (sep - 4 >= start && line.startsWith("http", sep - 4)) {
+                    linkStart = sep - 4;
+                }
+                int linkEnd = (linkStart == -1) ? -1 : linkEnd(line, sep + 3, end);
+                if (linkEnd != -1) {
+                    return new TaskToken(Type.LINK, line, start, end, linkStart, linkEnd);
+                }
+            }
+            sep = indexOf(line, ':', sep + 1, end);
+        }
+        return null;
+    }
+
+    private static int linkEnd(String line, int start, int end) {
+        int pos = skipHostChars(line, start, end);
+        if (pos == start) {
+            return -1;
+        }
+        int hostEnd = -1;
+        while (pos < end && line.charAt(pos) == '.') {
+            int labelEnd = skipHostChars(line, pos + 1, end);
+            if (labelEnd == pos + 1) {
+                break;
+            }
+            hostEnd = labelEnd;
+            pos = labelEnd;
+        }
+        if (hostEnd == -1) {
+            return -1;
+        }
+        int linkEnd = hostEnd;
+        for (pos = hostEnd; pos < end && isLinkChar(line.charAt(pos)); pos++) {
+            if (isLinkEndChar(line.charAt(pos))) {
+                linkEnd = pos + 1;
+            }
+        }
+        return linkEnd;
+    }
+
+    private static int skipHostChars(String line, int pos, int end) {
+        while (pos < end && (isWordChar(line.charAt(pos)) || line.charAt(pos) == '-')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isLinkChar(char c) {
+        return isLinkEndChar(c) || c == '.' || c == ',' || c == ':';
+    }
+
+    private static boolean isLinkEndChar(char c) {
+        return isWordChar(c) || "-@?^=%&;/~+#".indexOf(c) != -1;
+    }
+
+    /**
+     * Finds a mail address inside the word, e.g. "mailto:me@example.com".
+     */
+    private static TaskToken mail(String line, int start, int end) {
+        int at = indexOf(line, '@', start + 1, end);
+        while (at != -1) {
+            int localStart = at;
+            while (localStart > start && isMailLocalChar(line.charAt(localStart - 1))) {
+                localStart--;
+            }
+            if (localStart < at) {
+                int pos = skipDomainLabel(line, at + 1, end);
+                int domainEnd = -1;
+                if (pos > at + 1) {
+                    while (pos < end && line.charAt(pos) == '.') {
+                        int labelEnd = skipDomainLabel(line, pos + 1, end);
+                        if (labelEnd == pos + 1) {
+                            break;
+                        }
+                        domainEnd = labelEnd;
+                        pos = labelEnd;
+                    }
+                }
+                if (domainEnd != -1) {
+                    return new TaskToken(Type.MAIL, line, start, end, localStart, domainEnd);
+                }
+            }
+            at = indexOf(line, '@', at + 1, end);
+        }
+        return null;
+    }
+
+    private static int skipDomainLabel(String line, int pos, int end) {
+        if (pos >= end || !isAlphaNumeric(line.charAt(pos))) {
+            return pos;
+        }
+        pos++;
+        while (pos < end && (isAlphaNumeric(line.charAt(pos)) || line.charAt(pos) == '-')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isMailLocalChar(char c) {
+        return isAlphaNumeric(c) || "+._%-".indexOf(c) != -1;
+    }
+
+    /**
+     * @return true if the word is a phone number: an optional leading
+     * '+' followed by at least four digits, ',' or '#'
+     */
+    static boolean isPhoneNumber(String line, int start, int end) {
+        if (start < end && (line.charAt(start) == '+' || line.charAt(start) == '\\')) {
+            start++;
+        }
+        if (end - start < 4) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (!isDigit(c) && c != ',' && c != '#') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isRecurrence(String line, int start, int end) {
+        if (end - start < 2) {
+            return false;
+        }
+        for (int i = start; i < end - 1; i++) {
+            if (!isDigit(line.charAt(i))) {
+                return false;
+            }
+        }
+        return "dDwWmMyY".indexOf(line.charAt(end - 1)) != -1;
+    }
+
+    private static boolean isKey(String line, int start, int colon, String key) {
+        return colon - start == key.length() && line.regionMatches(true, start, key, 0, key.length());
+    }
+
+    private static boolean isPriorityAt(String line, int pos) {
+        return pos + 3 < line.length()
+                && line.charAt(pos) == '('
+                && line.charAt(pos + 1) >= 'A' && line.charAt(pos + 1) <= 'Z'
+                && line.charAt(pos + 2) == ')'
+                && line.charAt(pos + 3) == ' ';
+    }
+
+    /**
+     * @return true if a yyyy-mm-dd date starts at pos
+     */
+    private static boolean isDateAt(String line, int pos) {
+        if (pos + 10 > line.length()) {
+            return false;
+        }
+        for (int i = 0; i < 10; i++) {
+            char c = line.charAt(pos + i);
+            if (i == 4 || i == 7) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (!isDigit(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSpaceAt(String line, int pos) {
+        return pos < line.length() && line.charAt(pos) == ' ';
+    }
+
+    private static int indexOf(String line, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (line.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isWhiteSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isAlphaNumeric(char c) {
+        return isDigit(c) || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isWordChar(char c) {
+        return isAlphaNumeric(c) || c == '_';
+    }
+}
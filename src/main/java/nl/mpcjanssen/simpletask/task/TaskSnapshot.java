@@ -0,0 +1,54 @@
+/**
+ * This file is part of Simpletask.
+ *
+ * @license http://www.gnu.org/licenses/gpl.html
+ */
+package nl.mpcjanssen.simpletask.task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The list of tasks of a {@link TaskBag} at one point in time.
+ *
+ * A snapshot never changes, the bag publishes a new one with a higher
+ * version for every change. Readers on any thread can iterate it without
+ * locking. The tasks themselves are shared with the bag, which replaces a
+ * task by a changed copy instead of changing it, so they don't change either.
+ */
+public final class TaskSnapshot {
+    public static final TaskSnapshot EMPTY = new TaskSnapshot(new ArrayList<Task>(), 0);
+
+    private final List<Task> m_tasks;
+    private final long m_version;
+
+    TaskSnapshot(ArrayList<Task> tasks, long version) {
+        m_tasks = Collections.unmodifiableList(tasks);
+        m_version = version;
+    }
+
+    public List<Task> getTasks() {
+        return m_tasks;
+    }
+
+    public Task get(int position) {
+        return m_tasks.get(position);
+    }
+
+    public int size() {
+        return m_tasks.size();
+    }
+
+    /**
+     * @return a number which is higher for every newer snapshot of the bag
+     */
+    public long getVersion() {
+        return m_version;
+    }
+
+    @Override
+    public String toString() {
+        return "TaskSnapshot{version=" + m_version + ", size=" + m_tasks.size() + "}";
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * This file is part of Simpletask.
+ *
+ * @license http://www.gnu.org/licenses/gpl.html
+ */
+package nl.mpcjanssen.simpletask.task;
+
+/**
+ * A typed part of a todo.txt line as produced by {@link TaskLexer}.
+ *
+ * Tokens only store offsets into the line, the text is not copied
+ * until it is requested.
+ */
+public class TaskToken {
+
+    public enum Type {
+        WHITE_SPACE,
+        COMPLETED,
+        COMPLETION_DATE,
+        PRIORITY,
+        CREATION_DATE,
+        LIST,
+        TAG,
+        DUE_DATE,
+        THRESHOLD_DATE,
+        RECURRENCE,
+        HIDDEN,
+        KEY_VALUE,
+        LINK,
+        MAIL,
+        PHONE,
+        WORD
+    }
+
+    private final Type type;
+    private final String line;
+    private final int start;
+    private final int end;
+    private final int valueStart;
+    private final int valueEnd;
+
+    TaskToken(Type type, String line, int start, int end, int valueStart, int valueEnd) {
+        this.type = type;
+        this.line = line;
+        this.start = start;
+        this.end = end;
+        this.valueStart = valueStart;
+        this.valueEnd = valueEnd;
+    }
+
+    TaskToken(Type type, String line, int start, int end) {
+        this(type, line, start, end, start, end);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return offset of the first character of this token in the line
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * @return offset after the last character of this token in the line
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * @return the token exactly as it appears in the line
+     */
+    public String getText() {
+        return line.substring(start, end);
+    }
+
+    /**
+     * @return the payload of the token, e.g. the list name without the
+     * leading '@' or the date of a due date
+     */
+    public String getValue() {
+        return line.substring(valueStart, valueEnd);
+    }
+
+    @Override
+    public String toString() {
+        return type + "(" + getText() + ")";
+    }
+}
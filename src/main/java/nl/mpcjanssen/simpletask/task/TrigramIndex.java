@@ -0,0 +1,569 @@
+/**
+ * This file is part of Simpletask.
+ *
+ * @license http://www.gnu.org/licenses/gpl.html
+ */
+package nl.mpcjanssen.simpletask.task;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import nl.mpcjanssen.simpletask.TodoException;
+import nl.mpcjanssen.simpletask.util.Util;
+
+/**
+ * Trigram index over the tasks and the lines of done.txt for searching
+ * text anywhere in a line, ignoring case.
+ *
+ * Lines are folded to upper case like {@link ByTextFilter} does and every
+ * run of three characters without whitespace points to the lines
+ * containing it. A query only reads the lines which contain all trigrams
+ * of its words.
+ *
+ * The tasks are indexed in memory by their text, only tasks changed since
+ * the last search are indexed again. done.txt only grows, its lines are
+ * indexed by their offset in the file and read when they are candidates
+ * for a query. This part of the index is saved next to done.txt, so after
+ * a restart only the lines archived since are indexed. A done.txt that
+ * doesn't end with the bytes that were indexed was replaced and is
+ * indexed again completely.
+ */
+public class TrigramIndex {
+    final static String TAG = TrigramIndex.class.getSimpleName();
+    private static final int VERSION = 1;
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    // Bytes before the indexed end of done.txt compared to detect a
+    // replaced file without reading all of it
+    private static final int CHECK_BYTES = 4096;
+    // Removed task lines kept in the postings before they are rebuilt
+    private static final int MAX_REMOVED = 256;
+
+    private final File m_doneFile;
+    private final File m_indexFile;
+
+    // Tasks, line ids of removed lines are null
+    private final HashMap<String, Integer> m_todoIds = new HashMap<String, Integer>();
+    private final ArrayList<String> m_todoLines = new ArrayList<String>();
+    private final HashMap<Long, Postings> m_todoPostings = new HashMap<Long, Postings>();
+    private int m_removedTodo;
+
+    // done.txt, lines are identified by their number in the index
+    private boolean m_doneLoaded;
+    // Indexed part of done.txt, always ends after a line break
+    private long m_doneLength;
+    private long m_doneCheck;
+    private long[] m_doneOffsets = new long[256];
+    private int m_doneLineCount;
+    private final HashMap<Long, Postings> m_donePostings = new HashMap<Long, Postings>();
+
+    /**
+     * Ascending line ids containing a trigram.
+     */
+    private static class Postings {
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+
+    public TrigramIndex(File doneFile, File indexFile) {
+        m_doneFile = doneFile;
+        m_indexFile = indexFile;
+    }
+
+    static String fold(String text) {
+        return text.toUpperCase(Locale.getDefault());
+    }
+
+    private static String[] parts(String query) {
+        ArrayList<String> parts = new ArrayList<String>();
+        if (query != null) {
+            for (String part : fold(query).split("\\s")) {
+                if (part.length() > 0) {
+                    parts.add(part);
+                }
+            }
+        }
+        return parts.toArray(new String[parts.size()]);
+    }
+
+    private static void addTrigrams(String folded, Collection<Long> trigrams) {
+        int length = folded.length();
+        for (int i = 0; i + 3 <= length; i++) {
+            char c0 = folded.charAt(i);
+            char c1 = folded.charAt(i + 1);
+            char c2 = folded.charAt(i + 2);
+            // Words of a query never contain whitespace
+            if (Character.isWhitespace(c0) || Character.isWhitespace(c1) || Character.isWhitespace(c2)) {
+                continue;
+            }
+            trigrams.add(((long) c0 << 32) | ((long) c1 << 16) | c2);
+        }
+    }
+
+    private static void index(HashMap<Long, Postings> postings, int id, String line) {
+        HashSet<Long> trigrams = new HashSet<Long>();
+        addTrigrams(fold(line), trigrams);
+        for (Long trigram : trigrams) {
+            Postings ids = postings.get(trigram);
+            if (ids == null) {
+                ids = new Postings();
+                postings.put(trigram, ids);
+            }
+            ids.add(id);
+        }
+    }
+
+    private static boolean matches(String line, String[] parts) {
+        String folded = fold(line);
+        for (String part : parts) {
+            if (!folded.contains(part)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return ascending ids of the lines which may match parts, null if
+     * the parts are too short to use the index and all lines have to be
+     * checked
+     */
+    private static int[] candidates(HashMap<Long, Postings> postings, String[] parts) {
+        HashSet<Long> trigrams = new HashSet<Long>();
+        for (String part : parts) {
+            addTrigrams(part, trigrams);
+        }
+        if (trigrams.isEmpty()) {
+            return null;
+        }
+        ArrayList<Postings> lists = new ArrayList<Postings>();
+        for (Long trigram : trigrams) {
+            Postings ids = postings.get(trigram);
+            if (ids == null) {
+                return new int[0];
+            }
+            lists.add(ids);
+        }
+        // Start with the rarest trigram, the result only gets smaller
+        Collections.sort(lists, new Comparator<Postings>() {
+            @Override
+            public int compare(Postings lhs, Postings rhs) {
+                return lhs.size - rhs.size;
+            }
+        });
+        int[] result = Arrays.copyOf(lists.get(0).ids, lists.get(0).size);
+        int size = result.length;
+        for (int l = 1; l < lists.size() && size > 0; l++) {
+            Postings other = lists.get(l);
+            int kept = 0;
+            int j = 0;
+            for (int i = 0; i < size; i++) {
+                int id = result[i];
+                while (j < other.size && other.ids[j] < id) {
+                    j++;
+                }
+                if (j < other.size && other.ids[j] == id) {
+                    result[kept++] = id;
+                }
+            }
+            size = kept;
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Updates the index to the current lines of the tasks, only lines
+     * which weren't there before are indexed.
+     */
+    public synchronized void updateTodo(List<String> lines) {
+        HashSet<String> current = new HashSet<String>(lines);
+        Iterator<Map.Entry<String, Integer>> it = m_todoIds.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Integer> entry = it.next();
+            if (!current.contains(entry.getKey())) {
+                m_todoLines.set(entry.getValue(), null);
+                m_removedTodo++;
+                it.remove();
+            }
+        }
+        if (m_removedTodo > MAX_REMOVED && m_removedTodo > m_todoIds.size()) {
+            // Drop the ids of removed lines from the postings
+            m_todoIds.clear();
+            m_todoLines.clear();
+            m_todoPostings.clear();
+            m_removedTodo = 0;
+        }
+        for (String line : current) {
+            if (!m_todoIds.containsKey(line)) {
+                int id = m_todoLines.size();
+                m_todoLines.add(line);
+                m_todoIds.put(line, id);
+                index(m_todoPostings, id, line);
+            }
+        }
+    }
+
+    /**
+     * @return the distinct task lines containing every word of query,
+     * ignoring case
+     */
+    public synchronized List<String> searchTodo(String query) {
+        String[] parts = parts(query);
+        ArrayList<String> found = new ArrayList<String>();
+        int[] ids = candidates(m_todoPostings, parts);
+        if (ids == null) {
+            for (String line : m_todoLines) {
+                if (line != null && matches(line, parts)) {
+                    found.add(line);
+                }
+            }
+            return found;
+        }
+        for (int id : ids) {
+            String line = m_todoLines.get(id);
+            if (line != null && matches(line, parts)) {
+                found.add(line);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the lines of done.txt containing every word of query,
+     * ignoring case, in the order they were archived
+     */
+    public synchronized List<String> searchDone(String query) {
+        syncDone();
+        String[] parts = parts(query);
+        int[] ids = candidates(m_donePostings, parts);
+        if (ids == null) {
+            ids = new int[m_doneLineCount];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = i;
+            }
+        }
+        ArrayList<String> found = new ArrayList<String>();
+        if (!m_doneFile.exists()) {
+            return found;
+        }
+        try {
+            InputStream is = new BufferedInputStream(new FileInputStream(m_doneFile));
+            try {
+                long pos = 0;
+                for (int id : ids) {
+                    long start = m_doneOffsets[id];
+                    long end = id + 1 < m_doneLineCount ? m_doneOffsets[id + 1] : m_doneLength;
+                    skip(is, start - pos);
+                    String line = read(is, (int) (end - start)).trim();
+                    pos = end;
+                    if (matches(line, parts)) {
+                        found.add(line);
+                    }
+                }
+                // A last line without line break isn't indexed yet
+                skip(is, m_doneLength - pos);
+                String tail = read(is, (int) (m_doneFile.length() - m_doneLength)).trim();
+                if (tail.length() > 0 && matches(tail, parts)) {
+                    found.add(tail);
+                }
+            } finally {
+                is.close();
+            }
+        } catch (IOException e) {
+            throw new TodoException("Error searching " + m_doneFile.getAbsolutePath(), e);
+        }
+        return found;
+    }
+
+    private static void skip(InputStream is, long count) throws IOException {
+        while (count > 0) {
+            long skipped = is.skip(count);
+            if (skipped <= 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            count -= skipped;
+        }
+    }
+
+    private static String read(InputStream is, int count) throws IOException {
+        byte[] bytes = new byte[count];
+        int read = 0;
+        while (read < count) {
+            int n = is.read(bytes, read, count - read);
+            if (n == -1) {
+                break;
+            }
+            read += n;
+        }
+        return new String(bytes, 0, read, UTF8);
+    }
+
+    /**
+     * Indexes the lines appended to done.txt since the last update, if
+     * the index of done.txt is in use. Errors are only logged, the next
+     * search tries again.
+     */
+    public synchronized void doneAppended() {
+        if (!m_doneLoaded) {
+            // The first search catches up
+            return;
+        }
+        try {
+            syncDone();
+        } catch (TodoException e) {
+            Log.w(TAG, "Couldn't update index of " + m_doneFile.getAbsolutePath(), e);
+        }
+    }
+
+    private void syncDone() {
+        if (!m_doneLoaded) {
+            load();
+            m_doneLoaded = true;
+        }
+        long length = m_doneFile.exists() ? m_doneFile.length() : 0;
+        boolean changed = false;
+        try {
+            if (length < m_doneLength || (m_doneLength > 0 && checksum(m_doneLength) != m_doneCheck)) {
+                Log.v(TAG, m_doneFile.getName() + " was replaced, indexing it again");
+                clearDone();
+                changed = true;
+            }
+            if (length > m_doneLength) {
+                changed |= indexDone();
+            }
+        } catch (IOException e) {
+            throw new TodoException("Error indexing " + m_doneFile.getAbsolutePath(), e);
+        }
+        if (changed) {
+            save();
+        }
+    }
+
+    private void clearDone() {
+        m_doneLength = 0;
+        m_doneCheck = 0;
+        m_doneLineCount = 0;
+        m_donePostings.clear();
+    }
+
+    /**
+     * Indexes the complete lines after the indexed part of done.txt.
+     *
+     * @return true if anything was indexed
+     */
+    private boolean indexDone() throws IOException {
+        InputStream is = new BufferedInputStream(new FileInputStream(m_doneFile));
+        long indexed = m_doneLength;
+        try {
+            skip(is, m_doneLength);
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            long pos = m_doneLength;
+            long lineStart = pos;
+            int b;
+            while ((b = is.read()) != -1) {
+                pos++;
+                if (b == '\n' || b == '\r') {
+                    String text = new String(line.toByteArray(), UTF8).trim();
+                    if (text.length() > 0) {
+                        addDoneLine(lineStart, text);
+                    }
+                    line.reset();
+                    lineStart = pos;
+                    indexed = pos;
+                } else {
+                    line.write(b);
+                }
+            }
+        } finally {
+            is.close();
+        }
+        if (indexed == m_doneLength) {
+            return false;
+        }
+        m_doneLength = indexed;
+        m_doneCheck = checksum(indexed);
+        return true;
+    }
+
+    private void addDoneLine(long offset, String line) {
+        if (m_doneLineCount == m_doneOffsets.length) {
+            m_doneOffsets = Arrays.copyOf(m_doneOffsets, m_doneLineCount * 2);
+        }
+        int id = m_doneLineCount++;
+        m_doneOffsets[id] = offset;
+        index(m_donePostings, id, line);
+    }
+
+    private long checksum(long length) throws IOException {
+        int count = (int) Math.min(CHECK_BYTES, length);
+        byte[] bytes = new byte[count];
+        RandomAccessFile file = new RandomAccessFile(m_doneFile, "r");
+        try {
+            file.seek(length - count);
+            file.readFully(bytes);
+        } finally {
+            file.close();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    private void load() {
+        clearDone();
+        if (!m_indexFile.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_indexFile)));
+            try {
+                if (in.readInt() != VERSION) {
+                    Log.v(TAG, "Ignoring index of an older version");
+                    return;
+                }
+                long length = in.readLong();
+                long check = in.readLong();
+                int lines = in.readInt();
+                long[] offsets = new long[Math.max(256, lines)];
+                long offset = 0;
+                for (int i = 0; i < lines; i++) {
+                    offset += readVarLong(in);
+                    offsets[i] = offset;
+                }
+                int trigrams = in.readInt();
+                for (int t = 0; t < trigrams; t++) {
+                    long trigram = ((long) in.readChar() << 32) | ((long) in.readChar() << 16) | in.readChar();
+                    Postings postings = new Postings();
+                    int size = (int) readVarLong(in);
+                    postings.ids = new int[Math.max(4, size)];
+                    int id = 0;
+                    for (int i = 0; i < size; i++) {
+                        id += (int) readVarLong(in);
+                        postings.ids[i] = id;
+                    }
+                    postings.size = size;
+                    m_donePostings.put(trigram, postings);
+                }
+                m_doneLength = length;
+                m_doneCheck = check;
+                m_doneOffsets = offsets;
+                m_doneLineCount = lines;
+            } finally {
+                Util.closeStream(in);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't read " + m_indexFile.getAbsolutePath() + ", indexing again", e);
+            clearDone();
+        }
+    }
+
+    /**
+     * Writes the index of done.txt to a temporary file which replaces the
+     * saved index when complete. Failing to save only costs time later.
+     */
+    private void save() {
+        File target = new File(m_indexFile.getParentFile(), m_indexFile.getName() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(target)));
+            try {
+                out.writeInt(VERSION);
+                out.writeLong(m_doneLength);
+                out.writeLong(m_doneCheck);
+                out.writeInt(m_doneLineCount);
+                long offset = 0;
+                for (int i = 0; i < m_doneLineCount; i++) {
+                    writeVarLong(out, m_doneOffsets[i] - offset);
+                    offset = m_doneOffsets[i];
+                }
+                out.writeInt(m_donePostings.size());
+                for (Map.Entry<Long, Postings> entry : m_donePostings.entrySet()) {
+                    long trigram = entry.getKey();
+                    out.writeChar((int) (trigram >>> 32));
+                    out.writeChar((int) (trigram >>> 16));
+                    out.writeChar((int) trigram);
+                    Postings postings = entry.getValue();
+                    writeVarLong(out, postings.size);
+                    int id = 0;
+                    for (int i = 0; i < postings.size; i++) {
+                        writeVarLong(out, postings.ids[i] - id);
+                        id = postings.ids[i];
+                    }
+                }
+            } finally {
+                Util.closeStream(out);
+            }
+            if (!target.renameTo(m_indexFile)) {
+                throw new IOException("Couldn't rename " + target.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Couldn't save " + m_indexFile.getAbsolutePath(), e);
+            target.delete();
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift > 63) {
+                throw new IOException("Malformed index");
+            }
+        }
+    }
+
+    public synchronized int getTodoLineCount() {
+        return m_todoIds.size();
+    }
+
+    /**
+     * @return number of indexed lines of done.txt, 0 before the first
+     * search
+     */
+    public synchronized int getDoneLineCount() {
+        return m_doneLineCount;
+    }
+}
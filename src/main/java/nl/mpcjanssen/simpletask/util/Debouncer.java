@@ -0,0 +1,99 @@
+/**
+ * This file is part of Simpletask.
+ *
+ * @license http://www.gnu.org/licenses/gpl.html
+ */
+package nl.mpcjanssen.simpletask.util;
+
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs an action once events for a key stopped coming in.
+ *
+ * Every event for a key postpones the action for that key by the quiet
+ * period, so a burst of events results in a single run after the last one.
+ * Actions run one at a time on a single background thread.
+ */
+public class Debouncer {
+    final static String TAG = Debouncer.class.getSimpleName();
+
+    private final long m_quietPeriod;
+    private final ScheduledExecutorService m_executor = Executors.newSingleThreadScheduledExecutor();
+    private final HashMap<String, Run> m_pending = new HashMap<String, Run>();
+    private int m_events;
+    private int m_runs;
+
+    private class Run implements Runnable {
+        final String key;
+        final Runnable action;
+        ScheduledFuture<?> future;
+
+        Run(String key, Runnable action) {
+            this.key = key;
+            this.action = action;
+        }
+
+        @Override
+        public void run() {
+            synchronized (Debouncer.this) {
+                if (m_pending.get(key) == this) {
+                    m_pending.remove(key);
+                }
+                m_runs++;
+            }
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Action for " + key + " failed", e);
+            }
+        }
+    }
+
+    public Debouncer(long quietPeriod) {
+        m_quietPeriod = quietPeriod;
+    }
+
+    /**
+     * Runs action after no events for key came in for the quiet period.
+     * The action of the last event for a key is the one that runs.
+     */
+    public synchronized void trigger(String key, Runnable action) {
+        m_events++;
+        Run pending = m_pending.get(key);
+        if (pending != null) {
+            pending.future.cancel(false);
+        }
+        Run run = new Run(key, action);
+        m_pending.put(key, run);
+        run.future = m_executor.schedule(run, m_quietPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if an action for key is waiting for its quiet period
+     */
+    public synchronized boolean isPending(String key) {
+        return m_pending.containsKey(key);
+    }
+
+    public synchronized int getEventCount() {
+        return m_events;
+    }
+
+    /**
+     * @return number of actions that ran, events minus runs were absorbed
+     * by a later event
+     */
+    public synchronized int getRunCount() {
+        return m_runs;
+    }
+
+    public void shutdown() {
+        m_executor.shutdownNow();
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * This file is part of Simpletask.
+ *
+ * @license http://www.gnu.org/licenses/gpl.html
+ */
+package nl.mpcjanssen.simpletask.util;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Records the time between frames while it runs and logs a summary when
+ * stopped, for instance around a scroll of the task list.
+ *
+ * Frame callbacks need Jelly Bean, on older versions the trace does
+ * nothing.
+ */
+public class FrameTrace {
+    final static String TAG = FrameTrace.class.getSimpleName();
+    // A frame taking longer than this missed at least one vsync at 60 Hz
+    private static final long JANK_NANOS = 17 * 1000 * 1000;
+
+    private final String m_name;
+    private long[] m_intervals = new long[256];
+    private int m_frames;
+    private long m_lastFrame;
+    private boolean m_hasFrame;
+    private boolean m_running;
+    // A frame callback is waiting, a restarted trace keeps using it
+    private boolean m_posted;
+    private Object m_callback;
+
+    public FrameTrace(String name) {
+        m_name = name;
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+    }
+
+    public void start() {
+        if (m_running || !isSupported()) {
+            return;
+        }
+        m_running = true;
+        m_frames = 0;
+        m_hasFrame = false;
+        postCallback();
+    }
+
+    /**
+     * Stops recording and logs the frame times.
+     *
+     * @param extra appended to the logged summary
+     */
+    public void stop(String extra) {
+        if (!m_running) {
+            return;
+        }
+        m_running = false;
+        Log.i(TAG, m_name + ": " + getSummary() + (extra != null ? ", " + extra : ""));
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postCallback() {
+        if (m_callback == null) {
+            m_callback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    m_posted = false;
+                    if (!m_running) {
+                        return;
+                    }
+                    frame(frameTimeNanos);
+                    postCallback();
+                }
+            };
+        }
+        if (!m_posted) {
+            m_posted = true;
+            Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) m_callback);
+        }
+    }
+
+    void frame(long frameTimeNanos) {
+        if (m_hasFrame) {
+            if (m_frames == m_intervals.length) {
+                m_intervals = Arrays.copyOf(m_intervals, m_frames * 2);
+            }
+            m_intervals[m_frames++] = frameTimeNanos - m_lastFrame;
+        }
+        m_lastFrame = frameTimeNanos;
+        m_hasFrame = true;
+    }
+
+    /**
+     * @return the number of frames, the average, median, 90th percentile and
+     * worst frame time in ms and the number of frames over 17 ms
+     */
+    public String getSummary() {
+        if (m_frames == 0) {
+            return "no frames";
+        }
+        long[] sorted = Arrays.copyOf(m_intervals, m_frames);
+        Arrays.sort(sorted);
+        long total = 0;
+        int janky = 0;
+        for (long interval : sorted) {
+            total += interval;
+            if (interval > JANK_NANOS) {
+                janky++;
+            }
+        }
+        return m_frames + " frames, avg " + ms(total / m_frames)
+                + " ms, p50 " + ms(sorted[m_frames / 2])
+                + " ms, p90 " + ms(sorted[m_frames * 9 / 10])
+                + " ms, max " + ms(sorted[m_frames - 1])
+                + " ms, " + janky + " over 17 ms";
+    }
+
+    private static String ms(long nanos) {
+        return String.format(Locale.US, "%.1f", nanos / 1000000.0);
+    }
+}
@@ -25,10 +25,18 @@ package nl.mpcjanssen.simpletask.util;
 import android.util.Log;
 import nl.mpcjanssen.simpletask.task.Task;
 import nl.mpcjanssen.simpletask.task.TaskBag;
+import nl.mpcjanssen.simpletask.task.TaskPersistException;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -38,7 +46,37 @@ import java.util.List;
  */
 public class TaskIo {
     private final static String TAG = TaskIo.class.getSimpleName();
-    private static boolean sWindowsLineBreaks;
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    // Below this number of lines parsing on a single thread is faster
+    // than starting the worker pool
+    private final static int PARALLEL_THRESHOLD = 2000;
+    private final static int MAX_WORKERS = 4;
+    private final static long LF_BYTES = 0x0A0A0A0A0A0A0A0AL;
+    private final static long CR_BYTES = 0x0D0D0D0D0D0D0D0DL;
+
+    /**
+     * The tasks of a file and the line breaks used in it.
+     */
+    public static class LoadedTasks {
+        private final ArrayList<Task> tasks;
+        private final boolean windowsLineBreaks;
+
+        LoadedTasks(ArrayList<Task> tasks, boolean windowsLineBreaks) {
+            this.tasks = tasks;
+            this.windowsLineBreaks = windowsLineBreaks;
+        }
+
+        public ArrayList<Task> getTasks() {
+            return tasks;
+        }
+
+        /**
+         * @return true if the file contained \r\n line breaks
+         */
+        public boolean hasWindowsLineBreaks() {
+            return windowsLineBreaks;
+        }
+    }
 
     public static ArrayList<Task> loadTasksFromStream(InputStream is)
             throws IOException {
@@ -62,86 +100,209 @@ public class TaskIo {
         return items;
     }
 
-    private static String readLine(BufferedReader r) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        boolean eol = false;
-        int c;
-        while(!eol && (c = r.read()) >= 0) {
-            sb.append((char)c);
-            eol = (c == '\r' || c == '\n');
-
-            // check for \r\n
-            if (c == '\r') {
-                r.mark(1);
-                c = r.read();
-                if (c != '\n') {
-                    r.reset();
-                } else {
-                    sWindowsLineBreaks = true;
-                    sb.append((char)c);
+    public static ArrayList<Task> loadTasksFromFile(File file, TaskBag.Preferences preferences)
+            throws IOException {
+        LoadedTasks loaded = loadTasksFromFile(file);
+        preferences.setUseWindowsLineBreaksEnabled(loaded.hasWindowsLineBreaks());
+        return loaded.getTasks();
+    }
+
+    /**
+     * Loads the tasks from file with a single read. The ids of the tasks
+     * are their line numbers in the file.
+     *
+     * @return the tasks and the line breaks the file uses
+     */
+    public static LoadedTasks loadTasksFromFile(File file) throws IOException {
+        if (!file.exists()) {
+            Log.w(TAG, file.getAbsolutePath() + " does not exist!");
+            return new LoadedTasks(new ArrayList<Task>(), false);
+        }
+        ArrayList<String> lines = new ArrayList<String>();
+        boolean windowsLineBreaks;
+        FileInputStream is = new FileInputStream(file);
+        try {
+            FileChannel channel = is.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file.getAbsolutePath() + " is too large to load");
+            }
+            // Read into the heap instead of mapping the file, a mapped file
+            // truncated by another app crashes the process with SIGBUS
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    // The file shrank in the mean time
+                    break;
                 }
             }
+            buffer.flip();
+            windowsLineBreaks = splitLines(buffer, lines);
+        } finally {
+            Util.closeStream(is);
         }
-        return sb.length() == 0 ? null : sb.toString();
+        return new LoadedTasks(parseTasks(lines.toArray(new String[lines.size()])), windowsLineBreaks);
     }
 
-    public static ArrayList<Task> loadTasksFromFile(File file, TaskBag.Preferences preferences)
-            throws IOException {
-        ArrayList<Task> items = new ArrayList<Task>();
-        BufferedReader in = null;
-        if (!file.exists()) {
-            Log.w(TAG, file.getAbsolutePath() + " does not exist!");
+    /**
+     * Splits the UTF-8 encoded buffer on \n, \r and \r\n. Line breaks never
+     * occur inside a multi byte UTF-8 sequence so the bytes can be scanned
+     * without decoding them first.
+     *
+     * @return true if the buffer contains \r\n line breaks
+     */
+    private static boolean splitLines(ByteBuffer buffer, ArrayList<String> lines) {
+        boolean windowsLineBreaks = false;
+        byte[] scratch = new byte[256];
+        int limit = buffer.limit();
+        int pos = 0;
+        while (pos < limit) {
+            int eol = nextLineBreak(buffer, pos, limit);
+            int length = eol - pos;
+            if (length > scratch.length) {
+                scratch = new byte[length * 2];
+            }
+            buffer.position(pos);
+            buffer.get(scratch, 0, length);
+            lines.add(new String(scratch, 0, length, UTF8));
+            if (eol == limit) {
+                pos = limit;
+            } else if (buffer.get(eol) == '\r' && eol + 1 < limit && buffer.get(eol + 1) == '\n') {
+                windowsLineBreaks = true;
+                pos = eol + 2;
+            } else {
+                pos = eol + 1;
+            }
+        }
+        return windowsLineBreaks;
+    }
+
+    private static int nextLineBreak(ByteBuffer buffer, int pos, int limit) {
+        // Check eight bytes at a time and only look at the separate bytes
+        // when one of them is a \n or \r
+        while (pos + 8 <= limit) {
+            long word = buffer.getLong(pos);
+            if (containsByte(word, LF_BYTES) || containsByte(word, CR_BYTES)) {
+                break;
+            }
+            pos += 8;
+        }
+        while (pos < limit) {
+            byte b = buffer.get(pos);
+            if (b == '\n' || b == '\r') {
+                return pos;
+            }
+            pos++;
+        }
+        return limit;
+    }
+
+    private static boolean containsByte(long word, long pattern) {
+        long x = word ^ pattern;
+        return ((x - 0x0101010101010101L) & ~x & 0x8080808080808080L) != 0;
+    }
+
+    private static ArrayList<Task> parseTasks(final String[] lines) throws IOException {
+        final Task[] tasks = new Task[lines.length];
+        int workers = Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors());
+        if (lines.length < PARALLEL_THRESHOLD || workers < 2) {
+            parseTasks(lines, tasks, 0, lines.length);
         } else {
-            InputStream is = new FileInputStream(file);
+            ExecutorService pool = Executors.newFixedThreadPool(workers);
             try {
-                in = new BufferedReader(new InputStreamReader(is, "UTF-8"));
-                String line;
-                long counter = 0L;
-                sWindowsLineBreaks = false;
-                while ((line = readLine(in)) != null) {
-                    line = line.trim();
-                    if (line.length() > 0) {
-                        items.add(new Task(counter, line));
-                    }
-                    counter++;
+                List<Future<?>> results = new ArrayList<Future<?>>();
+                int chunk = (lines.length + workers - 1) / workers;
+                for (int start = 0; start < lines.length; start += chunk) {
+                    final int from = start;
+                    final int to = Math.min(lines.length, start + chunk);
+                    results.add(pool.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            parseTasks(lines, tasks, from, to);
+                        }
+                    }));
+                }
+                for (Future<?> result : results) {
+                    result.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while parsing tasks");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
                 }
+                throw new IOException("Parsing tasks failed", cause);
             } finally {
-                Util.closeStream(in);
-                Util.closeStream(is);
+                pool.shutdownNow();
+            }
+        }
+        ArrayList<Task> items = new ArrayList<Task>(tasks.length);
+        for (Task task : tasks) {
+            if (task != null) {
+                items.add(task);
             }
         }
-        preferences.setUseWindowsLineBreaksEnabled(sWindowsLineBreaks);
         return items;
     }
 
+    private static void parseTasks(String[] lines, Task[] tasks, int from, int to) {
+        for (int i = from; i < to; i++) {
+            String line = lines[i].trim();
+            if (line.length() > 0) {
+                tasks[i] = new Task(i, line);
+            }
+        }
+    }
 
     public static void writeToFile(List<Task> tasks, File file,
                                    boolean useWindowsBreaks) {
         writeToFile(tasks, file, false, useWindowsBreaks);
     }
 
+    /**
+     * Writes the tasks to file. A complete write goes to a temporary file in
+     * the same directory which is synced to disk and then renamed over file,
+     * so file always contains either the old or the new tasks. Appends are
+     * synced to disk before returning.
+     *
+     * @throws TaskPersistException if the tasks could not be written
+     */
     public static void writeToFile(List<Task> tasks, File file,
                                    boolean append, boolean useWindowsBreaks) {
+        Util.createParentDirectory(file);
+        File target = append ? file : new File(file.getParentFile(), "." + file.getName() + ".tmp");
         try {
-            Util.createParentDirectory(file);
-            Writer fw = new BufferedWriter(new OutputStreamWriter(
-                    new FileOutputStream(file, append), "UTF-8"));
+            FileOutputStream os = new FileOutputStream(target, append);
+            try {
+                Writer fw = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
                 for (Task task : tasks) {
                     if (task!=null) {
-                    String fileFormat = task.inFileFormat();
-                    fw.write(fileFormat);
-                    if (useWindowsBreaks) {
-                        // Log.v(TAG, "Using Windows line breaks");
-                        fw.write("\r\n");
-                    } else {
-                        // Log.v(TAG, "NOT using Windows line breaks");
-                        fw.write("\n");
+                        String fileFormat = task.inFileFormat();
+                        fw.write(fileFormat);
+                        if (useWindowsBreaks) {
+                            fw.write("\r\n");
+                        } else {
+                            fw.write("\n");
+                        }
                     }
                 }
+                fw.flush();
+                os.getChannel().force(true);
+            } finally {
+                Util.closeStream(os);
+            }
+        } catch (IOException e) {
+            if (!append) {
+                target.delete();
             }
-            fw.close();
-        } catch (Exception e) {
-            Log.e(TAG, e.getMessage());
+            throw new TaskPersistException("Error writing " + file.getAbsolutePath(), e);
+        }
+        if (!append && !target.renameTo(file)) {
+            target.delete();
+            throw new TaskPersistException("Error renaming " + target.getAbsolutePath()
+                    + " to " + file.getAbsolutePath());
         }
     }
 }